@@ -0,0 +1,241 @@
+import java.io.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.time.*;
+import java.time.format.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
+import java.util.function.*;
+
+/**
+ * Logging that stays off the caller's path. A call below the level returns at once;
+ * otherwise it claims a slot in a fixed ring with one CAS and stores the template and
+ * its arguments as they are. A single writer thread builds the lines ("{}" is replaced
+ * by the next argument), writes them in batches through a 64 KB buffer and rotates
+ * the file by size (name, name.1, ... name.N). When the ring is full, records are
+ * dropped and counted instead of making the caller wait.
+ */
+final class AsyncLog implements Closeable {
+    enum Level { DEBUG, INFO, WARN, ERROR, OFF }
+
+    private static final DateTimeFormatter TIME = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss.SSS");
+    private static final ZoneId ZONE = ZoneId.systemDefault();
+
+    /** sequence is the ring position + 1 once the slot is written, so the writer can tell it is ready. */
+    private static final class Slot {
+        volatile long sequence;
+        Level level;
+        long time;
+        String template;
+        Object a, b, c;
+    }
+
+    private final Slot[] slots;
+    private final int mask;
+    private final AtomicLong claimed = new AtomicLong();
+    private volatile long consumed;
+    private final LongAdder dropped = new LongAdder();
+    private volatile int threshold;
+
+    private final Path file;
+    private final long maxBytes;
+    private final int maxFiles;
+    private final List<Consumer<String>> sinks = new CopyOnWriteArrayList<>();
+    private final Thread writer;
+    private volatile boolean sleeping;
+    private volatile boolean closed;
+    private Writer out;
+    private long fileBytes;
+
+    /** file may be null to only feed sinks. */
+    AsyncLog(String name, Path file, Level level, int capacity, long maxBytes, int maxFiles) {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        this.slots = new Slot[size];
+        for (int i = 0; i < size; i++) {
+            slots[i] = new Slot();
+        }
+        this.mask = size - 1;
+        this.threshold = level.ordinal();
+        this.file = file;
+        this.maxBytes = maxBytes;
+        this.maxFiles = maxFiles;
+        writer = new Thread(this::drain, name + "-log");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /** Settings from CHAT_LOG_LEVEL, CHAT_LOG_BUFFER, CHAT_LOG_MAX_MB and CHAT_LOG_FILES; "off" as the file disables it. */
+    static AsyncLog fromEnv(String name, String file) {
+        return new AsyncLog(name, file.equals("off") ? null : Paths.get(file),
+                Level.valueOf(ServerConfig.env("CHAT_LOG_LEVEL", "INFO").toUpperCase()),
+                ServerConfig.envInt("CHAT_LOG_BUFFER", 8192),
+                ServerConfig.envLong("CHAT_LOG_MAX_MB", 10) * 1024 * 1024,
+                ServerConfig.envInt("CHAT_LOG_FILES", 5));
+    }
+
+    /** Receives every formatted line, on the writer thread. */
+    void addSink(Consumer<String> sink) {
+        sinks.add(sink);
+    }
+
+    boolean isEnabled(Level level) {
+        return level.ordinal() >= threshold;
+    }
+
+    void setLevel(Level level) {
+        threshold = level.ordinal();
+    }
+
+    long dropped() {
+        return dropped.sum();
+    }
+
+    void debug(String template) { log(Level.DEBUG, template, null, null, null); }
+    void debug(String template, Object a) { log(Level.DEBUG, template, a, null, null); }
+    void debug(String template, Object a, Object b) { log(Level.DEBUG, template, a, b, null); }
+    void debug(String template, Object a, Object b, Object c) { log(Level.DEBUG, template, a, b, c); }
+
+    void info(String template) { log(Level.INFO, template, null, null, null); }
+    void info(String template, Object a) { log(Level.INFO, template, a, null, null); }
+    void info(String template, Object a, Object b) { log(Level.INFO, template, a, b, null); }
+    void info(String template, Object a, Object b, Object c) { log(Level.INFO, template, a, b, c); }
+
+    void warn(String template) { log(Level.WARN, template, null, null, null); }
+    void warn(String template, Object a) { log(Level.WARN, template, a, null, null); }
+    void warn(String template, Object a, Object b) { log(Level.WARN, template, a, b, null); }
+    void warn(String template, Object a, Object b, Object c) { log(Level.WARN, template, a, b, c); }
+
+    void error(String template, Object a) { log(Level.ERROR, template, a, null, null); }
+    void error(String template, Object a, Object b) { log(Level.ERROR, template, a, b, null); }
+
+    private void log(Level level, String template, Object a, Object b, Object c) {
+        if (level.ordinal() < threshold) return;
+        long seq;
+        do {
+            seq = claimed.get();
+            if (seq - consumed >= slots.length) {
+                dropped.increment();
+                return;
+            }
+        } while (!claimed.compareAndSet(seq, seq + 1));
+        Slot slot = slots[(int) seq & mask];
+        slot.level = level;
+        slot.time = System.currentTimeMillis();
+        slot.template = template;
+        slot.a = a;
+        slot.b = b;
+        slot.c = c;
+        slot.sequence = seq + 1;
+        if (sleeping) {
+            LockSupport.unpark(writer);
+        }
+    }
+
+    private void drain() {
+        StringBuilder line = new StringBuilder(256);
+        long seq = 0;
+        long reportedDrops = 0;
+        while (true) {
+            Slot slot = slots[(int) seq & mask];
+            if (slot.sequence != seq + 1) {
+                long drops = dropped.sum();
+                if (drops > reportedDrops) {
+                    emit(line, Level.WARN, System.currentTimeMillis(), "{} log records dropped, buffer full", drops - reportedDrops, null, null);
+                    reportedDrops = drops;
+                }
+                flush();
+                if (closed) return;
+                sleeping = true;
+                if (slot.sequence != seq + 1) {
+                    LockSupport.parkNanos(100_000_000);
+                }
+                sleeping = false;
+                continue;
+            }
+            emit(line, slot.level, slot.time, slot.template, slot.a, slot.b, slot.c);
+            slot.template = null;
+            slot.a = slot.b = slot.c = null;
+            consumed = ++seq;
+        }
+    }
+
+    private void emit(StringBuilder line, Level level, long time, String template, Object a, Object b, Object c) {
+        line.setLength(0);
+        TIME.formatTo(LocalDateTime.ofInstant(Instant.ofEpochMilli(time), ZONE), line);
+        line.append(' ').append(level).append(' ');
+        int arg = 0;
+        int from = 0;
+        for (int i; (i = template.indexOf("{}", from)) >= 0; from = i + 2) {
+            line.append(template, from, i);
+            line.append(arg == 0 ? a : arg == 1 ? b : c);
+            arg++;
+        }
+        line.append(template, from, template.length());
+        String text = line.toString();
+        for (Consumer<String> sink : sinks) {
+            try {
+                sink.accept(text);
+            } catch (RuntimeException e) {}
+        }
+        write(text);
+    }
+
+    private void write(String text) {
+        if (file == null) return;
+        try {
+            if (out == null || fileBytes > maxBytes) {
+                rotate();
+            }
+            out.write(text);
+            out.write(System.lineSeparator());
+            fileBytes += text.length() + 1;
+        } catch (IOException e) {
+            out = null;
+        }
+    }
+
+    private void rotate() throws IOException {
+        if (out != null) {
+            out.close();
+            if (maxFiles <= 1) {
+                Files.deleteIfExists(file);
+            }
+            for (int i = maxFiles - 1; i >= 1; i--) {
+                Path from = i == 1 ? file : Paths.get(file + "." + (i - 1));
+                if (Files.exists(from)) {
+                    Files.move(from, Paths.get(file + "." + i), StandardCopyOption.REPLACE_EXISTING);
+                }
+            }
+        }
+        fileBytes = Files.exists(file) ? Files.size(file) : 0;
+        out = new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(file.toFile(), true), StandardCharsets.UTF_8), 64 * 1024);
+    }
+
+    private void flush() {
+        if (out == null) return;
+        try {
+            out.flush();
+        } catch (IOException e) {
+            out = null;
+        }
+    }
+
+    /** Writes what is queued and stops the writer. */
+    public void close() {
+        closed = true;
+        LockSupport.unpark(writer);
+        try {
+            writer.join(5000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            if (out != null) {
+                out.close();
+            }
+        } catch (IOException e) {}
+    }
+}
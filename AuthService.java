@@ -0,0 +1,304 @@
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Talks to the users table: LoginClient registers through it and ChatServer
+ * checks logins with it. Connections come from a small bounded pool and keep their
+ * prepared statements, so a login is one round-trip on an open connection instead of
+ * a fresh TCP/auth handshake with MySQL per attempt. Passwords are stored as
+ * {@link PasswordHasher} hashes; plain-text rows from before are upgraded on the
+ * next successful login.
+ *
+ * Settings come from the same environment variables LoginClient always used
+ * (DB_URL, DB_USER, DB_PASS) plus DB_POOL_SIZE, DB_CACHE_TTL_MS (userExists cache,
+ * 0 disables it) and DB_INIT_SCHEMA (create the users table if it is missing). Any
+ * JDBC 4 driver on the classpath works, e.g. H2 with
+ * DB_URL=jdbc:h2:./chatdb;MODE=MySQL for running without a MySQL server.
+ */
+public class AuthService {
+    enum RegisterResult { REGISTERED, DUPLICATE, FAILED }
+
+    private static final String SCHEMA = "CREATE TABLE IF NOT EXISTS users ("
+            + "username VARCHAR(64) NOT NULL PRIMARY KEY, password VARCHAR(255) NOT NULL)";
+
+    private final Pool pool;
+    private final PasswordHasher hasher;
+    private final long cacheTtlMillis;
+    private final Map<String, CachedLookup> existsCache = new ConcurrentHashMap<>();
+
+    public AuthService() {
+        this(System.getenv("DB_URL"), System.getenv("DB_USER"), System.getenv("DB_PASS"),
+                ServerConfig.envInt("DB_POOL_SIZE", 4), ServerConfig.envLong("DB_CACHE_TTL_MS", 0), new PasswordHasher());
+        if (Boolean.parseBoolean(System.getenv("DB_INIT_SCHEMA"))) {
+            try {
+                createSchema();
+            } catch (SQLException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    AuthService(String url, String user, String password, int poolSize, long cacheTtlMillis, PasswordHasher hasher) {
+        this.pool = new Pool(url, user, password, poolSize);
+        this.hasher = hasher;
+        this.cacheTtlMillis = cacheTtlMillis;
+    }
+
+    void createSchema() throws SQLException {
+        PooledConnection c = pool.acquire();
+        boolean ok = false;
+        try (Statement st = c.connection.createStatement()) {
+            st.execute(SCHEMA);
+            ok = true;
+        } finally {
+            pool.release(c, ok);
+        }
+    }
+
+    /** Verifies the password against the stored hash. This is the expensive part of a login. */
+    public boolean authenticate(String username, String password) {
+        String stored = lookup("SELECT password FROM users WHERE username = ?", username);
+        if (!hasher.verify(password, stored)) {
+            return false;
+        }
+        if (hasher.needsRehash(stored)) {
+            update("UPDATE users SET password = ? WHERE username = ?", hasher.hash(password), username);
+        }
+        return true;
+    }
+
+    public boolean userExists(String username) {
+        if (cacheTtlMillis > 0) {
+            CachedLookup cached = existsCache.get(username);
+            if (cached != null && cached.expiresAt > System.currentTimeMillis()) {
+                return cached.exists;
+            }
+        }
+        boolean exists = lookup("SELECT 1 FROM users WHERE username = ?", username) != null;
+        remember(username, exists);
+        return exists;
+    }
+
+    /** Every registered name, or null if the query failed. */
+    public Set<String> usernames() {
+        PooledConnection c;
+        try {
+            c = pool.acquire();
+        } catch (SQLException e) {
+            e.printStackTrace();
+            return null;
+        }
+        boolean ok = false;
+        try (ResultSet rs = c.prepare("SELECT username FROM users").executeQuery()) {
+            Set<String> names = new HashSet<>();
+            while (rs.next()) {
+                names.add(rs.getString(1));
+            }
+            ok = true;
+            return names;
+        } catch (SQLException e) {
+            e.printStackTrace();
+            return null;
+        } finally {
+            pool.release(c, ok);
+        }
+    }
+
+    /**
+     * Inserts the user in one statement; an existing name is reported by the
+     * database's unique key instead of a separate lookup first.
+     */
+    public RegisterResult register(String username, String password) {
+        PooledConnection c;
+        try {
+            c = pool.acquire();
+        } catch (SQLException e) {
+            e.printStackTrace();
+            return RegisterResult.FAILED;
+        }
+        boolean ok = false;
+        try {
+            PreparedStatement pst = c.prepare("INSERT INTO users (username, password) VALUES (?, ?)");
+            pst.setString(1, username);
+            pst.setString(2, hasher.hash(password));
+            int rows = pst.executeUpdate();
+            ok = true;
+            remember(username, true);
+            return rows > 0 ? RegisterResult.REGISTERED : RegisterResult.FAILED;
+        } catch (SQLException e) {
+            if (isDuplicateKey(e)) {
+                ok = true;
+                remember(username, true);
+                return RegisterResult.DUPLICATE;
+            }
+            e.printStackTrace();
+            return RegisterResult.FAILED;
+        } finally {
+            pool.release(c, ok);
+        }
+    }
+
+    /** Returns the first column of the first row, or null if there is no row or the query failed. */
+    private String lookup(String sql, String... params) {
+        PooledConnection c;
+        try {
+            c = pool.acquire();
+        } catch (SQLException e) {
+            e.printStackTrace();
+            return null;
+        }
+        boolean ok = false;
+        try {
+            PreparedStatement pst = c.prepare(sql);
+            for (int i = 0; i < params.length; i++) {
+                pst.setString(i + 1, params[i]);
+            }
+            String value;
+            try (ResultSet rs = pst.executeQuery()) {
+                value = rs.next() ? rs.getString(1) : null;
+            }
+            ok = true;
+            return value;
+        } catch (SQLException e) {
+            e.printStackTrace();
+            return null;
+        } finally {
+            pool.release(c, ok);
+        }
+    }
+
+    private void update(String sql, String... params) {
+        PooledConnection c;
+        try {
+            c = pool.acquire();
+        } catch (SQLException e) {
+            e.printStackTrace();
+            return;
+        }
+        boolean ok = false;
+        try {
+            PreparedStatement pst = c.prepare(sql);
+            for (int i = 0; i < params.length; i++) {
+                pst.setString(i + 1, params[i]);
+            }
+            pst.executeUpdate();
+            ok = true;
+        } catch (SQLException e) {
+            e.printStackTrace();
+        } finally {
+            pool.release(c, ok);
+        }
+    }
+
+    private void remember(String username, boolean exists) {
+        if (cacheTtlMillis > 0) {
+            existsCache.put(username, new CachedLookup(exists, System.currentTimeMillis() + cacheTtlMillis));
+        }
+    }
+
+    static boolean isDuplicateKey(SQLException e) {
+        return e instanceof SQLIntegrityConstraintViolationException
+                || (e.getSQLState() != null && e.getSQLState().startsWith("23"));
+    }
+
+    public void close() {
+        pool.close();
+    }
+
+    private static final class CachedLookup {
+        final boolean exists;
+        final long expiresAt;
+
+        CachedLookup(boolean exists, long expiresAt) {
+            this.exists = exists;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    /** A pooled connection together with the statements prepared on it. */
+    static final class PooledConnection {
+        final Connection connection;
+        private final Map<String, PreparedStatement> statements = new HashMap<>();
+
+        PooledConnection(Connection connection) {
+            this.connection = connection;
+        }
+
+        PreparedStatement prepare(String sql) throws SQLException {
+            PreparedStatement pst = statements.get(sql);
+            if (pst == null) {
+                pst = connection.prepareStatement(sql);
+                statements.put(sql, pst);
+            }
+            return pst;
+        }
+
+        void close() {
+            try {
+                connection.close();
+            } catch (SQLException e) {}
+        }
+    }
+
+    /**
+     * At most maxSize connections, opened on demand. A connection whose last use
+     * failed is closed instead of being handed out again.
+     */
+    static final class Pool {
+        private static final long ACQUIRE_TIMEOUT_MILLIS = 5000;
+
+        private final String url;
+        private final String user;
+        private final String password;
+        private final int maxSize;
+        private final BlockingQueue<PooledConnection> idle;
+        private final AtomicInteger open = new AtomicInteger();
+
+        Pool(String url, String user, String password, int maxSize) {
+            this.url = url;
+            this.user = user;
+            this.password = password;
+            this.maxSize = maxSize;
+            this.idle = new ArrayBlockingQueue<>(maxSize);
+        }
+
+        PooledConnection acquire() throws SQLException {
+            PooledConnection c = idle.poll();
+            if (c != null) return c;
+            if (open.incrementAndGet() <= maxSize) {
+                try {
+                    return new PooledConnection(DriverManager.getConnection(url, user, password));
+                } catch (SQLException e) {
+                    open.decrementAndGet();
+                    throw e;
+                }
+            }
+            open.decrementAndGet();
+            try {
+                c = idle.poll(ACQUIRE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (c == null) {
+                throw new SQLTransientConnectionException("No database connection available");
+            }
+            return c;
+        }
+
+        void release(PooledConnection c, boolean healthy) {
+            if (healthy && idle.offer(c)) return;
+            c.close();
+            open.decrementAndGet();
+        }
+
+        void close() {
+            PooledConnection c;
+            while ((c = idle.poll()) != null) {
+                c.close();
+                open.decrementAndGet();
+            }
+        }
+    }
+}
@@ -0,0 +1,133 @@
+import java.security.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Checks logins for ChatServer. Password checks run on a small bounded pool so
+ * PBKDF2 work never runs on an I/O or accept thread; when the pool's queue is full
+ * the login is refused rather than queued without limit. A successful login returns
+ * a session token, and a client reconnecting with it skips the hash entirely.
+ *
+ * The names of registered users are also kept in memory, reloaded on the same pool,
+ * so that I/O threads can ask whether a user exists without going to the database.
+ */
+final class Authenticator {
+    interface Callback {
+        /** token is null when the login failed; reason says why. */
+        void done(String token, String reason);
+    }
+
+    private final AuthService users;
+    private final ExecutorService hashPool;
+    private final AsyncLog logger;
+    private final long sessionTtlMillis;
+    private final Map<String, Session> sessions = new ConcurrentHashMap<>();
+    private final Set<String> registered = ConcurrentHashMap.newKeySet();
+    private final SecureRandom random = new SecureRandom();
+
+    Authenticator(ServerConfig config, AsyncLog logger) {
+        this.users = config.authRequired ? new AuthService() : null;
+        this.logger = logger;
+        this.sessionTtlMillis = config.sessionTtlMillis;
+        this.hashPool = new ThreadPoolExecutor(config.authThreads, config.authThreads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(config.authQueue), r -> {
+                    Thread t = new Thread(r, "chat-auth");
+                    t.setDaemon(true);
+                    return t;
+                });
+    }
+
+    boolean required() {
+        return users != null;
+    }
+
+    /**
+     * Whether name is a registered user, as of the last {@link #reloadUsers}; only known
+     * when logins are required. Never touches the database.
+     */
+    boolean isRegistered(String name) {
+        return users != null && registered.contains(name);
+    }
+
+    /** Reloads the registered names on a hashing thread; users who log in are added meanwhile. */
+    void reloadUsers() {
+        if (users == null) return;
+        try {
+            hashPool.execute(() -> {
+                Set<String> names = users.usernames();
+                if (names != null) {
+                    registered.addAll(names);
+                    registered.retainAll(names);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // busy with logins; the next reload will do
+        }
+    }
+
+    /** Checks a password; the callback runs on a hashing thread. */
+    void login(String name, String password, Callback callback) {
+        if (users == null) {
+            callback.done(newSession(name), null);
+            return;
+        }
+        try {
+            hashPool.execute(() -> {
+                boolean ok;
+                try {
+                    ok = users.authenticate(name, password);
+                } catch (RuntimeException e) {
+                    // e.g. a stored hash that cannot be parsed
+                    logger.error("Login check failed for {}: {}", name, e);
+                    callback.done(null, "Login failed");
+                    return;
+                }
+                if (ok) {
+                    registered.add(name);
+                    callback.done(newSession(name), null);
+                } else {
+                    callback.done(null, "Invalid credentials");
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            callback.done(null, "Server busy, try again");
+        }
+    }
+
+    /** Checks a session token from an earlier login; the callback runs on the calling thread. */
+    void resume(String name, String token, Callback callback) {
+        Session session = sessions.get(token);
+        long now = System.currentTimeMillis();
+        if (session == null || session.expiresAt < now || !session.name.equals(name)) {
+            if (session != null && session.expiresAt < now) {
+                sessions.remove(token);
+            }
+            callback.done(null, "Session expired");
+            return;
+        }
+        session.expiresAt = now + sessionTtlMillis;
+        callback.done(token, null);
+    }
+
+    private String newSession(String name) {
+        byte[] bytes = new byte[24];
+        random.nextBytes(bytes);
+        String token = Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+        sessions.put(token, new Session(name, System.currentTimeMillis() + sessionTtlMillis));
+        if (sessions.size() > 1024 && random.nextInt(64) == 0) {
+            long now = System.currentTimeMillis();
+            sessions.values().removeIf(s -> s.expiresAt < now);
+        }
+        return token;
+    }
+
+    private static final class Session {
+        final String name;
+        volatile long expiresAt;
+
+        Session(String name, long expiresAt) {
+            this.name = name;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
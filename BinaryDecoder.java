@@ -0,0 +1,192 @@
+import java.io.*;
+import java.nio.*;
+import java.util.function.*;
+
+/**
+ * Incremental decoder for {@link Wire} frames from a client, which {@link FrameDecoder}
+ * hands over to once the client has logged in with version 2. Every frame but a file
+ * chunk is collected into one array that is kept for the connection and read in
+ * place; chunk bytes are passed on in whatever pieces the socket delivers, like the
+ * legacy decoder does.
+ */
+final class BinaryDecoder {
+    private enum Step { OP, LENGTH, PAYLOAD, CHUNK_ID, CHUNK_DATA }
+
+    private final FrameDecoder.Listener listener;
+    private final IntFunction<String> userNames;
+    private final int maxFrameBytes;
+    private final Wire.Reader reader = new Wire.Reader();
+    private Step step = Step.OP;
+
+    private byte op;
+    private long varint;
+    private int shift;
+    private byte[] payload = new byte[256];
+    private int length;
+    private int filled;
+    private int chunkId;
+    private long chunkRemaining;
+
+    BinaryDecoder(FrameDecoder.Listener listener, IntFunction<String> userNames, int maxFrameBytes) {
+        this.listener = listener;
+        this.userNames = userNames;
+        this.maxFrameBytes = maxFrameBytes;
+    }
+
+    /** Consumes every remaining byte of in. */
+    void decode(ByteBuffer in) throws IOException {
+        while (in.hasRemaining()) {
+            switch (step) {
+                case OP:
+                    op = in.get();
+                    varint = 0;
+                    shift = 0;
+                    step = Step.LENGTH;
+                    break;
+                case LENGTH:
+                    if (!readVarint(in)) return;
+                    if (varint < 0) {
+                        throw new IOException("Negative frame length: " + varint);
+                    }
+                    if (op == Wire.FILE_CHUNK) {
+                        chunkRemaining = varint;
+                        varint = 0;
+                        shift = 0;
+                        step = Step.CHUNK_ID;
+                        break;
+                    }
+                    if (varint > maxFrameBytes) {
+                        throw new IOException("Frame of " + varint + " bytes is over the " + maxFrameBytes + " byte limit");
+                    }
+                    length = (int) varint;
+                    filled = 0;
+                    if (payload.length < length) {
+                        payload = new byte[Math.max(length, payload.length * 2)];
+                    }
+                    step = Step.PAYLOAD;
+                    if (length == 0) {
+                        step = Step.OP;
+                        dispatch();
+                    }
+                    break;
+                case PAYLOAD: {
+                    int n = Math.min(in.remaining(), length - filled);
+                    in.get(payload, filled, n);
+                    filled += n;
+                    if (filled == length) {
+                        step = Step.OP;
+                        dispatch();
+                        if (payload.length > 64 * 1024) {
+                            payload = new byte[256]; // don't pin a large buffer per idle connection
+                        }
+                    }
+                    break;
+                }
+                case CHUNK_ID:
+                    if (chunkRemaining == 0) {
+                        throw new IOException("File chunk without an id");
+                    }
+                    chunkRemaining--;
+                    if (!readVarintByte(in.get())) break;
+                    if (varint < 0 || varint > Integer.MAX_VALUE) {
+                        throw new IOException("File id out of range: " + varint);
+                    }
+                    chunkId = (int) varint;
+                    step = chunkRemaining > 0 ? Step.CHUNK_DATA : Step.OP;
+                    break;
+                case CHUNK_DATA: {
+                    int n = (int) Math.min(in.remaining(), chunkRemaining);
+                    ByteBuffer data = in.duplicate();
+                    data.limit(data.position() + n);
+                    in.position(in.position() + n);
+                    chunkRemaining -= n;
+                    if (chunkRemaining == 0) {
+                        step = Step.OP;
+                    }
+                    listener.onFileData(chunkId, data.asReadOnlyBuffer());
+                    break;
+                }
+            }
+        }
+    }
+
+    private void dispatch() throws IOException {
+        Wire.Reader r = reader.reset(payload, length);
+        switch (op) {
+            case Wire.TEXT:
+                listener.onText(r.rest());
+                break;
+            case Wire.PRIVATE: {
+                String receiver = user(r.id());
+                listener.onPrivate(receiver, r.rest());
+                break;
+            }
+            case Wire.ROOM: {
+                String room = r.string();
+                listener.onRoomMessage(room, r.rest());
+                break;
+            }
+            case Wire.JOIN:
+                listener.onJoinRoom(r.rest());
+                break;
+            case Wire.LEAVE:
+                listener.onLeaveRoom(r.rest());
+                break;
+            case Wire.SEARCH:
+                listener.onSearch(r.rest());
+                break;
+            case Wire.FILE_BEGIN: {
+                int id = r.id();
+                byte target = r.get();
+                String receiver;
+                if (target == Wire.TO_ALL) {
+                    receiver = null;
+                } else if (target == Wire.TO_USER) {
+                    receiver = user(r.id());
+                } else if (target == Wire.TO_ROOM) {
+                    receiver = "#" + r.string();
+                } else {
+                    throw new IOException("Unknown file target " + target);
+                }
+                long size = r.varint();
+                if (size < 0) {
+                    throw new IOException("Negative file size: " + size);
+                }
+                listener.onFileBegin(id, receiver, r.rest(), size);
+                break;
+            }
+            case Wire.PING:
+                listener.onPing();
+                break;
+            case Wire.PONG:
+                break; // the read itself showed the client is alive
+            default:
+                throw new IOException("Unknown opcode " + (op & 0xff));
+        }
+    }
+
+    private String user(int id) throws IOException {
+        String name = userNames.apply(id);
+        if (name == null) {
+            throw new IOException("Unknown user id " + id);
+        }
+        return name;
+    }
+
+    /** Adds to varint from in; true once its last byte has been read. */
+    private boolean readVarint(ByteBuffer in) throws IOException {
+        while (in.hasRemaining()) {
+            if (readVarintByte(in.get())) return true;
+        }
+        return false;
+    }
+
+    private boolean readVarintByte(byte b) throws IOException {
+        if (shift >= 64) {
+            throw new IOException("Malformed varint");
+        }
+        varint |= (long) (b & 0x7f) << shift;
+        shift += 7;
+        return (b & 0x80) == 0;
+    }
+}
@@ -1,20 +1,31 @@
 import javax.swing.*;
 import java.awt.*;
-import java.io.*;
-import java.net.*;
 import java.util.*;
-import java.util.concurrent.*;
 
-public class BroadcastServer extends JFrame {
-    ServerSocket serverSocket;
-    static final int PORT = 7500;
-    final Map<String, ClientHandler> clients = new ConcurrentHashMap<>();
+/**
+ * Swing window for a {@link ChatServer}. Log lines go into a fixed-size ring and the
+ * window picks them up a few times a second, so a busy server never floods the event
+ * queue and the log area never holds more than the last LOG_LINES lines. Without a
+ * display, main runs the server headless instead.
+ */
+public class BroadcastServer extends JFrame implements ChatServer.Listener {
+    private static final int LOG_LINES = 1000;
+    private static final int REFRESH_MILLIS = 250;
+
+    final ChatServer server = new ChatServer();
     DefaultListModel<String> clientListModel;
     JTextArea logArea;
 
+    private final String[] ring = new String[LOG_LINES];
+    private long written;
+    private long shown;
+    private final Map<String, Boolean> pendingClients = new LinkedHashMap<>();
+
     public BroadcastServer() {
         setupGUI();
-        new Thread(()->startServer()).start();
+        server.addListener(this);
+        new javax.swing.Timer(REFRESH_MILLIS, e -> refresh()).start();
+        server.start();
     }
 
     private void setupGUI() {
@@ -41,164 +52,59 @@ public class BroadcastServer extends JFrame {
         setVisible(true);
     }
 
-    private void startServer() {
-        try {
-            serverSocket = new ServerSocket(PORT);
-            appendLog("Server started on port " + PORT);
-
-            while (true) {
-                Socket clientSocket = serverSocket.accept();
-                DataInputStream tempIn = new DataInputStream(clientSocket.getInputStream());
-                String clientName = tempIn.readUTF();
-
-                appendLog("Client connected: " + clientName);
-                ClientHandler handler = new ClientHandler(clientSocket, clientName);
-                clients.put(clientName, handler);
-
-                SwingUtilities.invokeLater(() -> {
-                    clientListModel.addElement(clientName);
-                    broadcastClientList();
-                });
-
-                new Thread(handler).start();
-            }
-        } catch (IOException e) {
-            appendLog("Error starting server: " + e.getMessage());
-        }
+    public synchronized void onLog(String message) {
+        ring[(int) (written++ % LOG_LINES)] = message;
     }
 
-    private void broadcastClientList() {
-        StringBuilder sb = new StringBuilder("USER_LIST");
-        for (String name : clients.keySet()) {
-            sb.append("/").append(name);
-        }
-
-        for (ClientHandler c : clients.values()) {
-            try {
-                c.sendText(sb.toString());
-            } catch (IOException e) {
-                appendLog("Failed to send user list to " + c.clientName);
-            }
-        }
+    public synchronized void onClientJoined(String name) {
+        pendingClients.put(name, true);
     }
 
-    private void appendLog(String message) {
-        SwingUtilities.invokeLater(() -> {
-            logArea.append(message + "\n");
-            logArea.setCaretPosition(logArea.getDocument().getLength());
-        });
+    public synchronized void onClientLeft(String name) {
+        pendingClients.put(name, false);
     }
 
-    class ClientHandler implements Runnable {
-        private final Socket socket;
-        private final String clientName;
-        private DataInputStream in;
-        private DataOutputStream out;
-
-        public ClientHandler(Socket socket, String clientName) {
-            this.socket = socket;
-            this.clientName = clientName;
-            try {
-                in = new DataInputStream(socket.getInputStream());
-                out = new DataOutputStream(socket.getOutputStream());
-            } catch (IOException e) {
-                appendLog("Error setting up streams for " + clientName);
+    /** Runs on the EDT: appends the lines logged since the last refresh and applies joins and leaves. */
+    private void refresh() {
+        StringBuilder sb = new StringBuilder();
+        Map<String, Boolean> changes;
+        synchronized (this) {
+            long from = Math.max(shown, written - LOG_LINES);
+            if (from > shown) {
+                sb.append("... ").append(from - shown).append(" lines skipped\n");
             }
-        }
-
-        public void run() {
-            try {
-                while (true) {
-                    String type = in.readUTF();
-
-                    if (type.equals("File")) {
-                        String fileName = in.readUTF();
-                        int size = in.readInt();
-                        byte[] fileData = new byte[size];
-                        in.readFully(fileData);
-
-                        appendLog(clientName + " sent file: " + fileName);
-                        broadcastFile(fileName, fileData, this);
-                    } else if (type.equals("PRIVATE_FILE")) {
-                        String receiver = in.readUTF();
-                        String fileName = in.readUTF();
-                        int size = in.readInt();
-                        byte[] fileData = new byte[size];
-                        in.readFully(fileData);
-
-                        ClientHandler target = clients.get(receiver);
-                        if (target != null) {
-                            appendLog("[Private File] " + clientName + " -> " + receiver + ": " + fileName);
-                            target.sendFile(fileName, fileData);
-                        } else {
-                            sendText("User '" + receiver + "' not found.");
-                        }
-                    } else if (type.equals("PRIVATE")) {
-                        String receiver = in.readUTF();
-                        String message = in.readUTF();
-                        ClientHandler target = clients.get(receiver);
-                        if (target != null) {
-                            appendLog("[Private] " + clientName + " -> " + receiver + ": " + message);
-                            target.sendText("[Private] " + clientName + ": " + message);
-                        }
-                    } else {
-                        appendLog(clientName + ": " + type);
-                        broadcastMessage(clientName + ": " + type, this);
-                    }
-                }
-            } catch (IOException e) {
-                appendLog("Client disconnected: " + clientName);
-            } finally {
-                clients.remove(clientName);
-                SwingUtilities.invokeLater(() -> {
-                    clientListModel.removeElement(clientName);
-                    broadcastClientList();
-                });
-                try {
-                    socket.close();
-                } catch (IOException e) {}
+            for (long i = from; i < written; i++) {
+                sb.append(ring[(int) (i % LOG_LINES)]).append('\n');
             }
+            shown = written;
+            changes = new LinkedHashMap<>(pendingClients);
+            pendingClients.clear();
         }
-
-        public void sendText(String msg) throws IOException {
-            out.writeUTF(msg);
-            out.flush();
-        }
-
-        public void sendFile(String filename, byte[] data) throws IOException {
-            out.writeUTF("File");
-            out.writeUTF(filename);
-            out.writeInt(data.length);
-            out.write(data);
-            out.flush();
-        }
-    }
-
-    private void broadcastMessage(String message, ClientHandler sender) {
-        for (ClientHandler client : clients.values()) {
-            if (client != sender) {
-                try {
-                    client.sendText(message);
-                } catch (IOException e) {
-                    appendLog("Failed to send message to " + client.clientName);
+        for (Map.Entry<String, Boolean> change : changes.entrySet()) {
+            if (change.getValue()) {
+                if (!clientListModel.contains(change.getKey())) {
+                    clientListModel.addElement(change.getKey());
                 }
+            } else {
+                clientListModel.removeElement(change.getKey());
             }
         }
-    }
-
-    private void broadcastFile(String fileName, byte[] data, ClientHandler sender) {
-        for (ClientHandler client : clients.values()) {
-            if (client != sender) {
-                try {
-                    client.sendFile(fileName, data);
-                } catch (IOException e) {
-                    appendLog("Failed to send file to " + client.clientName);
-                }
-            }
+        if (sb.length() == 0) return;
+        logArea.append(sb.toString());
+        int excess = logArea.getLineCount() - LOG_LINES;
+        if (excess > 0) {
+            try {
+                logArea.replaceRange("", 0, logArea.getLineStartOffset(excess));
+            } catch (javax.swing.text.BadLocationException e) {}
         }
+        logArea.setCaretPosition(logArea.getDocument().getLength());
     }
 
     public static void main(String[] args) {
+        if (GraphicsEnvironment.isHeadless()) {
+            ChatServer.main(args);
+            return;
+        }
         SwingUtilities.invokeLater(()->new BroadcastServer());
     }
 }
@@ -0,0 +1,865 @@
+import java.io.*;
+import java.nio.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * The chat server without any user interface: connections, logins, routing, history
+ * and mailboxes. It needs no display and no AWT; what happens is reported to
+ * {@link Listener}s, such as the Swing window in {@link BroadcastServer} or the
+ * console when run headless with {@code java ChatServer}.
+ */
+public class ChatServer {
+    /** Called on server threads (log lines on the logger's writer thread); implementations must not block. */
+    interface Listener {
+        void onLog(String message);
+
+        default void onClientJoined(String name) {}
+
+        default void onClientLeft(String name) {}
+    }
+
+    final ServerConfig config = new ServerConfig();
+    final Map<String, ClientHandler> clients = new ConcurrentHashMap<>();
+    final RoomIndex<ClientHandler> rooms = new RoomIndex<>();
+    final UserIds userIds = new UserIds();
+    final ServerMetrics metrics = new ServerMetrics();
+    final RateLimiter limiter = new RateLimiter(config);
+    final Map<String, Long> lastSeen = new ConcurrentHashMap<>();
+    volatile MessageLog history;
+    volatile Mailboxes mailboxes;
+    final ScheduledThreadPoolExecutor timers = new ScheduledThreadPoolExecutor(1, r -> {
+        Thread t = new Thread(r, "chat-timers");
+        t.setDaemon(true);
+        return t;
+    });
+
+    {
+        timers.setRemoveOnCancelPolicy(true);
+    }
+    /** Per-connection timeouts: handshakes and heartbeats. */
+    final TimerWheel wheel = new TimerWheel("chat-wheel", 100, 512);
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+    final AsyncLog logger = AsyncLog.fromEnv("chat", config.logFile);
+
+    {
+        logger.addSink(line -> {
+            for (Listener l : listeners) {
+                l.onLog(line);
+            }
+        });
+    }
+    final Authenticator authenticator = new Authenticator(config, logger);
+    final Cluster cluster = new Cluster(config, clients.keySet(), new RemoteDelivery(), logger);
+    final Presence presence = new Presence(clients, cluster, userIds, timers, config.presenceWindowMillis);
+
+    void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    /** Starts serving on a background thread and returns. */
+    public void start() {
+        new Thread(this::run, "chat-server").start();
+    }
+
+    /** Serves on the calling thread until the engine stops. */
+    public void run() {
+        ConnectionEngine engine = config.createEngine(metrics, logger);
+        try {
+            logger.info("Server started on port {} using {} engine", config.port, engine.name());
+            if (!authenticator.required()) {
+                logger.warn("Authentication is off: clients are trusted to give their own name");
+            }
+            if (!config.historyDir.isEmpty() && !config.historyDir.equals("off")) {
+                try {
+                    history = new MessageLog(java.nio.file.Paths.get(config.historyDir), config.historySegmentBytes, config.historyFsyncMillis, config.searchIndex);
+                } catch (IOException e) {
+                    logger.warn("Message history disabled: {}", e.getMessage());
+                }
+            }
+            if (!config.mailboxDir.isEmpty() && !config.mailboxDir.equals("off")) {
+                try {
+                    Mailboxes boxes = new Mailboxes(java.nio.file.Paths.get(config.mailboxDir), config.mailboxMaxBytes, config.mailboxTtlMillis);
+                    timers.scheduleWithFixedDelay(boxes::sweep, 0, 1, TimeUnit.HOURS);
+                    mailboxes = boxes;
+                } catch (IOException e) {
+                    logger.warn("Offline delivery disabled: {}", e.getMessage());
+                }
+            }
+            if (cluster.isEnabled()) {
+                cluster.start();
+            }
+            try {
+                new MetricsExporter(this).start();
+            } catch (IOException e) {
+                logger.warn("Metrics page disabled: {}", e.getMessage());
+            }
+            timers.scheduleAtFixedRate(() -> {
+                String summary = metrics.sampleAccepts();
+                if (summary != null) {
+                    logger.info(summary);
+                }
+                summary = metrics.sampleWrites();
+                if (summary != null) {
+                    logger.info(summary);
+                }
+            }, 10, 10, TimeUnit.SECONDS);
+            timers.scheduleWithFixedDelay(() -> limiter.sweep(clients.keySet()), 1, 1, TimeUnit.MINUTES);
+            if (authenticator.required()) {
+                timers.scheduleWithFixedDelay(authenticator::reloadUsers, 0, config.usersReloadMillis, TimeUnit.MILLISECONDS);
+            }
+            engine.serve(config.port, ClientHandler::new);
+        } catch (IOException e) {
+            logger.error("Error starting server: {}", e.getMessage());
+            logger.close(); // the JVM may exit before the writer thread gets to it
+        }
+    }
+
+    private void record(String conversation, String sender, String text) {
+        MessageLog log = history;
+        if (log == null) return;
+        try {
+            log.append(conversation, sender, text);
+        } catch (IOException e) {
+            logger.warn("Could not store message from {}: {}", sender, e.getMessage());
+        }
+    }
+
+    /**
+     * Whether messages for an offline user can be queued: registered users when logins
+     * are required, otherwise names that have been online since the server started.
+     * Answered from memory, as it runs on I/O threads.
+     */
+    private boolean canQueueFor(String user) {
+        if (mailboxes == null) return false;
+        if (authenticator.required()) return authenticator.isRegistered(user);
+        return lastSeen.containsKey(user) || mailboxes.hasMail(user);
+    }
+
+    class ClientHandler implements FrameDecoder.Listener {
+        private static final int MAIL_BATCH_BYTES = 64 * 1024;
+        private static final int MAX_ROOM_NAME = 64;
+        /** Keeps every user list entry far below a presence frame's limit. */
+        private static final int MAX_USER_NAME = 64;
+
+        private final ConnectionEngine.Connection connection;
+        private final Map<Integer, FileRelay> uploads = new ConcurrentHashMap<>();
+        private volatile String clientName;
+        private int clientId;
+        private boolean legacyClient;
+        private boolean wantsBinary;
+        private volatile boolean binary;
+        /** Ids this binary client has been sent a USER_NAME for. */
+        private final BitSet namedIds = new BitSet();
+        private final TimerWheel.Timeout handshakeTimeout;
+        private volatile TimerWheel.Timeout heartbeat;
+        private volatile boolean closed;
+        private long pingSentNanos;
+        /** This user's {@link RateLimiter} buckets, from login on. */
+        private RateLimiter.Bucket[] limits;
+        private long limitNoticeNanos;
+
+        public ClientHandler(ConnectionEngine.Connection connection) {
+            this.connection = connection;
+            metrics.accepted.increment();
+            handshakeTimeout = wheel.schedule(() -> {
+                if (clientName == null) {
+                    metrics.handshakesTimedOut.increment();
+                    connection.close();
+                }
+            }, config.handshakeTimeoutMillis);
+        }
+
+        public BinaryDecoder onProtocol(int version) {
+            if (version < Wire.VERSION || config.protocolVersion < Wire.VERSION) return null;
+            wantsBinary = true;
+            return new BinaryDecoder(this, userIds::nameOf, config.maxFrameBytes);
+        }
+
+        public void onHandshake(String name) throws IOException {
+            if (!validName(name)) return;
+            if (authenticator.required()) {
+                logger.info("Refused {}: client did not log in", name);
+                refuse("Login required");
+                return;
+            }
+            legacyClient = true;
+            startSession(name);
+            join();
+            replayHistory(false);
+            deliverMail();
+        }
+
+        public void onLogin(String name, String password) throws IOException {
+            if (!validName(name)) return;
+            authenticator.login(name, password, (token, reason) -> loggedIn(name, token, reason, false));
+        }
+
+        public void onResume(String name, String token) throws IOException {
+            if (!validName(name)) return;
+            authenticator.resume(name, token, (t, reason) -> loggedIn(name, t, reason, true));
+        }
+
+        private void loggedIn(String name, String token, String reason, boolean resumed) {
+            try {
+                if (token == null) {
+                    logger.info("Login failed for {}: {}", name, reason);
+                    refuse(reason);
+                    return;
+                }
+                binary = wantsBinary;
+                startSession(name);
+                queue(Wire.MESSAGE, Frames.text("AUTH_OK " + token + (binary ? " v" + Wire.VERSION : "")));
+                join();
+                replayHistory(resumed);
+                deliverMail();
+            } catch (IOException e) {
+                connection.close();
+            }
+        }
+
+        private boolean validName(String name) throws IOException {
+            if (!name.isEmpty() && name.length() <= MAX_USER_NAME) return true;
+            logger.info("Refused a user name of {} characters", name.length());
+            refuse("Invalid user name");
+            return false;
+        }
+
+        private void refuse(String reason) throws IOException {
+            metrics.handshakesRefused.increment();
+            queue(Wire.MESSAGE, Frames.text("AUTH_FAIL " + reason));
+            connection.closeWhenFlushed();
+        }
+
+        private void requireLogin() throws IOException {
+            if (clientName == null) {
+                throw new IOException("Command before login");
+            }
+        }
+
+        /**
+         * Sets up the session before the client can learn it has logged in. This may run
+         * on an auth thread while commands are decoded on the connection's own thread, so
+         * clientName is written last: a handler that finds it set (requireLogin) also sees
+         * clientId and limits.
+         */
+        private void startSession(String name) {
+            handshakeTimeout.cancel();
+            clientId = userIds.idOf(name);
+            limits = limiter.bucketsFor(name);
+            clientName = name;
+        }
+
+        private void join() {
+            metrics.handshakesCompleted.increment();
+            logger.info("Client connected: {}", clientName);
+            clients.put(clientName, this);
+            cluster.localChanged(clientName);
+            try {
+                presence.sendSnapshot(this);
+            } catch (IOException e) {
+                connection.close();
+            }
+            presence.changed(clientName);
+            scheduleHeartbeat();
+
+            for (Listener l : listeners) {
+                l.onClientJoined(clientName);
+            }
+        }
+
+        private void scheduleHeartbeat() {
+            long every = Math.min(enabled(config.pingIntervalMillis), enabled(config.writeTimeoutMillis)) / 2;
+            if (every == Long.MAX_VALUE / 2 || closed) return;
+            heartbeat = wheel.schedule(this::checkHeartbeat, Math.max(250, every));
+        }
+
+        private long enabled(long millis) {
+            return millis > 0 ? millis : Long.MAX_VALUE;
+        }
+
+        /**
+         * Runs on the wheel. Closes a session whose outbound frames, queued or taken by the
+         * writer, have not moved for the write timeout, so a client that stopped reading does not hold its queue until
+         * TCP gives up. Binary clients are also pinged once they have been quiet for the
+         * ping interval and closed when nothing at all has arrived for the idle timeout;
+         * writeUTF clients have no ping and rely on the write check and TCP keepalive.
+         */
+        private void checkHeartbeat() {
+            if (closed) return;
+            long now = System.nanoTime();
+            if (config.writeTimeoutMillis > 0 && connection.outbound().isStalled(TimeUnit.MILLISECONDS.toNanos(config.writeTimeoutMillis))) {
+                metrics.writeTimeouts.increment();
+                logger.info("Closing {}: not reading ({} bytes queued)", clientName, connection.outbound().queuedBytes());
+                connection.close();
+                return;
+            }
+            if (binary && config.pingIntervalMillis > 0) {
+                long quiet = now - connection.lastReadNanos();
+                if (config.idleTimeoutMillis > 0 && quiet > TimeUnit.MILLISECONDS.toNanos(config.idleTimeoutMillis)) {
+                    metrics.idleReaped.increment();
+                    logger.info("Closing {}: nothing received for {} ms", clientName, TimeUnit.NANOSECONDS.toMillis(quiet));
+                    connection.close();
+                    return;
+                }
+                long interval = TimeUnit.MILLISECONDS.toNanos(config.pingIntervalMillis);
+                if (quiet >= interval && now - pingSentNanos >= interval) {
+                    pingSentNanos = now;
+                    try {
+                        queue(Wire.PING, Wire.PING_FRAME);
+                    } catch (IOException e) {
+                        connection.close();
+                        return;
+                    }
+                }
+            }
+            scheduleHeartbeat();
+        }
+
+        public void onPing() throws IOException {
+            metrics.received.add(Wire.PING, 0);
+            queue(Wire.PONG, Wire.PONG_FRAME);
+        }
+
+        /** Clients that log in get user list changes as deltas; name-only clients get the whole list. */
+        boolean wantsPresenceDeltas() {
+            return !legacyClient;
+        }
+
+        /** Whether this client gets {@link Wire} frames instead of writeUTF strings. */
+        boolean isBinary() {
+            return binary;
+        }
+
+        /**
+         * Sends the history a joining client missed: everything since it left when it
+         * reconnects with its session token, otherwise the last few messages.
+         */
+        private void replayHistory(boolean resumed) throws IOException {
+            MessageLog log = history;
+            if (log == null) return;
+            Long since = resumed ? lastSeen.get(clientName) : null;
+            List<MessageLog.Entry> entries = since != null
+                    ? log.sinceFor(clientName, since, config.historyMaxReplay)
+                    : log.recentFor(clientName, config.historyReplay);
+            for (MessageLog.Entry e : entries) {
+                int senderId = userIds.idOf(e.sender);
+                send(e.isPrivate() ? Outgoing.direct(e.sender, senderId, e.text) : Outgoing.broadcast(e.sender, senderId, e.text));
+            }
+        }
+
+        /**
+         * Sends what was queued while the user was offline. Text messages are packed
+         * into large buffers and everything is queued before the connection flushes, so
+         * a big backlog goes out in a few writes instead of one per message.
+         */
+        private void deliverMail() throws IOException {
+            Mailboxes boxes = mailboxes;
+            if (boxes == null) return;
+            List<Mailboxes.Item> items = boxes.drain(clientName);
+            if (items.isEmpty()) return;
+            List<ByteBuffer> batch = new ArrayList<>();
+            int batchBytes = 0;
+            int sent = 0;
+            try {
+                for (Mailboxes.Item item : items) {
+                    if (item.isFile()) {
+                        if (!batch.isEmpty()) {
+                            queueBatch(batch);
+                            batch.clear();
+                            batchBytes = 0;
+                        }
+                        sendStoredFile(item);
+                    } else {
+                        record(MessageLog.privateConversation(item.sender, clientName), item.sender, item.text);
+                        ByteBuffer frame = frameFor(Outgoing.direct(item.sender, userIds.idOf(item.sender), item.text));
+                        batch.add(frame);
+                        batchBytes += frame.remaining();
+                        if (batchBytes >= MAIL_BATCH_BYTES) {
+                            queueBatch(batch);
+                            batch.clear();
+                            batchBytes = 0;
+                        }
+                    }
+                    sent++;
+                }
+                if (!batch.isEmpty()) {
+                    queueBatch(batch);
+                }
+            } finally {
+                for (Mailboxes.Item item : items.subList(sent, items.size())) {
+                    if (item.isFile()) {
+                        java.nio.file.Files.deleteIfExists(item.file);
+                    }
+                }
+            }
+            logger.info("Delivered {} queued messages to {}", items.size(), clientName);
+        }
+
+        /** Streams a mailbox file with the same FILE_BEGIN/FILE_CHUNK frames a live relay uses. */
+        private void sendStoredFile(Mailboxes.Item item) throws IOException {
+            FileSpool spool = new FileSpool(item.file);
+            try {
+                int id = FileRelay.nextId();
+                queue(Wire.FILE_BEGIN, binary ? Wire.fileBegin(id, item.fileName, item.size) : Frames.fileBegin(id, item.fileName, item.size));
+                for (long offset = 0; offset < item.size; offset += SimpleChatClient.FILE_CHUNK_SIZE) {
+                    int length = (int) Math.min(SimpleChatClient.FILE_CHUNK_SIZE, item.size - offset);
+                    ByteBuffer header = binary ? Wire.fileChunkHeader(id, offset, length) : Frames.fileChunkHeader(id, offset, length);
+                    sendRegion(spool.region(header, offset, length));
+                }
+            } finally {
+                spool.release();
+            }
+        }
+
+        public void onText(String type) throws IOException {
+            requireLogin();
+            int bytes = Wire.utf8Length(type);
+            metrics.received.add(Wire.TEXT, bytes);
+            if (!admit(RateLimiter.Limit.BROADCASTS, bytes)) return;
+            record(MessageLog.ROOM, clientName, type);
+            logger.info("{}: {}", clientName, type);
+            broadcastMessage(Outgoing.broadcast(clientName, clientId, type), this);
+            cluster.forwardBroadcast(clientName, type);
+        }
+
+        public void onPrivate(String receiver, String message) throws IOException {
+            requireLogin();
+            int bytes = Wire.utf8Length(receiver) + Wire.utf8Length(message);
+            metrics.received.add(Wire.PRIVATE, bytes);
+            if (!admit(RateLimiter.Limit.PRIVATES, bytes)) return;
+            ClientHandler target = clients.get(receiver);
+            if (target != null) {
+                record(MessageLog.privateConversation(clientName, receiver), clientName, message);
+                logger.info("[Private] {} -> {}: {}", clientName, receiver, message);
+                try {
+                    target.send(Outgoing.direct(clientName, clientId, message));
+                } catch (IOException e) {
+                    logger.warn("Failed to send message to {}", receiver);
+                }
+            } else if (cluster.forwardPrivate(clientName, receiver, message)) {
+                record(MessageLog.privateConversation(clientName, receiver), clientName, message);
+                logger.info("[Private] {} -> {} (other node): {}", clientName, receiver, message);
+            } else if (canQueueFor(receiver)) {
+                boolean stored;
+                try {
+                    stored = mailboxes.storeText(receiver, clientName, message);
+                } catch (UTFDataFormatException e) {
+                    sendText("Message too long to keep for '" + receiver + "' while they are offline.");
+                    return;
+                }
+                if (stored) {
+                    logger.info("[Private] {} -> {} (offline): {}", clientName, receiver, message);
+                } else {
+                    sendText("Mailbox of '" + receiver + "' is full.");
+                }
+            } else {
+                sendText("User '" + receiver + "' not found.");
+            }
+        }
+
+        public void onJoinRoom(String room) throws IOException {
+            requireLogin();
+            metrics.received.add(Wire.JOIN, Wire.utf8Length(room));
+            if (!admit(RateLimiter.Limit.ROOM_CHANGES, 0)) return;
+            if (room.isEmpty() || room.length() > MAX_ROOM_NAME) {
+                sendText("Invalid room name.");
+                return;
+            }
+            if (rooms.join(room, this)) {
+                logger.info("{} joined #{}", clientName, room);
+            }
+            if (closed) {
+                // onClose may have cleared the rooms before the join above landed
+                rooms.leaveAll(this);
+                return;
+            }
+            sendText("Joined #" + room + " (" + rooms.members(room).size() + " members)");
+        }
+
+        public void onLeaveRoom(String room) throws IOException {
+            requireLogin();
+            metrics.received.add(Wire.LEAVE, Wire.utf8Length(room));
+            if (!admit(RateLimiter.Limit.ROOM_CHANGES, 0)) return;
+            if (rooms.leave(room, this)) {
+                logger.info("{} left #{}", clientName, room);
+                sendText("Left #" + room);
+            }
+        }
+
+        /** Goes only to the room's members, not to every connected client. */
+        public void onRoomMessage(String room, String message) throws IOException {
+            requireLogin();
+            int bytes = Wire.utf8Length(room) + Wire.utf8Length(message);
+            metrics.received.add(Wire.ROOM, bytes);
+            if (!admit(RateLimiter.Limit.ROOM_MESSAGES, bytes)) return;
+            if (!rooms.isMember(room, this)) {
+                sendText("Join #" + room + " before posting to it.");
+                return;
+            }
+            record("#" + room, clientName, message);
+            logger.info("[#{}] {}: {}", room, clientName, message);
+            Outgoing out = Outgoing.inRoom(room, clientName, clientId, message);
+            long start = System.nanoTime();
+            for (ClientHandler member : rooms.members(room)) {
+                if (member != this) {
+                    try {
+                        member.send(out);
+                    } catch (IOException e) {
+                        logger.warn("Failed to send message to {}", member.clientName);
+                    }
+                }
+            }
+            metrics.roomFanout.record(System.nanoTime() - start);
+            cluster.forwardRoom(room, clientName, message);
+        }
+
+        /**
+         * Searches the history for messages this user could have seen: the main room,
+         * their private conversations, and the rooms they are in now. The hits go back
+         * oldest first, as one SEARCH_RESULTS frame or as a line per message.
+         */
+        public void onSearch(String text) throws IOException {
+            requireLogin();
+            metrics.received.add(Wire.SEARCH, Wire.utf8Length(text));
+            if (!admit(RateLimiter.Limit.SEARCHES, 0)) return;
+            MessageLog log = history;
+            if (log == null || !log.isSearchable()) {
+                sendText("Search is not available on this server.");
+                return;
+            }
+            long start = System.nanoTime();
+            SearchIndex.Query query;
+            try {
+                query = SearchIndex.Query.parse(text, clientName, System.currentTimeMillis());
+            } catch (IllegalArgumentException e) {
+                sendText("Search: " + e.getMessage());
+                return;
+            }
+            if (query.conversation != null && query.conversation.startsWith("#") && !rooms.isMember(query.conversation.substring(1), this)) {
+                sendText("Join " + query.conversation + " to search it.");
+                return;
+            }
+            List<MessageLog.Entry> hits = log.search(query, this::canSee, config.searchResults);
+            metrics.searchLatency.record(System.nanoTime() - start);
+            logger.debug("{} searched for '{}': {} found", clientName, text, hits.size());
+            if (hits.isEmpty()) {
+                sendText("No messages found for: " + text);
+                return;
+            }
+            String count = hits.size() == config.searchResults ? "The newest " + hits.size() + " messages" : hits.size() == 1 ? "1 message" : hits.size() + " messages";
+            sendText(count + " found for: " + text);
+            if (binary) {
+                for (MessageLog.Entry e : hits) {
+                    introduce(userIds.idOf(e.sender), e.sender);
+                }
+                queue(Wire.SEARCH_RESULTS, Wire.searchResults(hits, userIds));
+            } else {
+                List<ByteBuffer> lines = new ArrayList<>();
+                for (MessageLog.Entry e : hits) {
+                    String line = Wire.searchHit(e.timestamp, Wire.kindOf(e), e.sender, e.room(), e.text);
+                    try {
+                        lines.add(Frames.text(line));
+                    } catch (UTFDataFormatException tooLong) {
+                        lines.add(Frames.text(line.substring(0, 20_000) + "..."));
+                    }
+                }
+                queueBatch(lines);
+            }
+        }
+
+        private boolean canSee(String conversation) {
+            if (conversation.equals(MessageLog.ROOM)) return true;
+            if (conversation.startsWith("#")) return rooms.isMember(conversation.substring(1), this);
+            return MessageLog.isParticipant(conversation, clientName);
+        }
+
+        public void onFileBegin(int id, String receiver, String fileName, long size) throws IOException {
+            requireLogin();
+            metrics.received.add(Wire.FILE_BEGIN, Wire.utf8Length(fileName));
+            FileRelay unfinished = uploads.remove(id);
+            if (unfinished != null) {
+                // the new file takes over the id, so the old one could never be finished
+                unfinished.abort();
+                sendText("File " + id + " was restarted before it finished; the earlier upload is cancelled.");
+            }
+            List<ClientHandler> recipients = new ArrayList<>();
+            Mailboxes.PendingFile pending = null;
+            if (!admit(RateLimiter.Limit.FILES, 0)) {
+                // the data still arrives and is taken, but goes nowhere
+                logger.info("Not relaying {} from {}: over the file limit", fileName, clientName);
+            } else if (receiver == null) {
+                logger.info("{} sent file: {}", clientName, fileName);
+                recipients.addAll(clients.values());
+                recipients.remove(this);
+            } else if (receiver.startsWith("#")) {
+                String room = receiver.substring(1);
+                if (rooms.isMember(room, this)) {
+                    logger.info("[#{}] {} sent file: {}", room, clientName, fileName);
+                    recipients.addAll(rooms.members(room));
+                    recipients.remove(this);
+                } else {
+                    sendText("Join " + receiver + " before posting to it.");
+                }
+            } else {
+                ClientHandler target = clients.get(receiver);
+                if (target != null) {
+                    logger.info("[Private File] {} -> {}: {}", clientName, receiver, fileName);
+                    recipients.add(target);
+                } else if (cluster.hasUser(receiver)) {
+                    sendText("'" + receiver + "' is on another server; files can only go to users on this one.");
+                } else if (!canQueueFor(receiver)) {
+                    sendText("User '" + receiver + "' not found.");
+                } else if ((pending = mailboxes.storeFile(receiver, clientName, fileName, size)) == null) {
+                    sendText("Mailbox of '" + receiver + "' is full.");
+                } else {
+                    logger.info("[Private File] {} -> {} (offline): {}", clientName, receiver, fileName);
+                    sendText("'" + receiver + "' is offline; the file will be delivered when they log in.");
+                }
+            }
+            FileRelay relay = new FileRelay(fileName, size, recipients, pending);
+            relay.begin();
+            if (!relay.isComplete()) {
+                uploads.put(id, relay);
+            }
+        }
+
+        public void onFileData(int id, ByteBuffer data) throws IOException {
+            metrics.received.add(Wire.FILE_CHUNK, data.remaining());
+            throttle(data.remaining());
+            FileRelay relay = uploads.get(id);
+            if (relay == null) {
+                throw new IOException("Data for unknown file transfer " + id);
+            }
+            relay.relay(data);
+            if (relay.isComplete()) {
+                uploads.remove(id);
+            }
+        }
+
+        /**
+         * Charges a command to the sender's rate limits before it is relayed, and returns
+         * false if it is to be dropped. Under the delay action it goes through and the
+         * connection stops reading until the buckets have refilled, so TCP slows the
+         * sender down; commands already read past the longest allowed delay are dropped.
+         */
+        private boolean admit(RateLimiter.Limit limit, long bytes) throws IOException {
+            boolean delay = config.limitAction == RateLimiter.Action.DELAY;
+            long now = System.nanoTime();
+            RateLimiter.Bucket count = limits[limit.ordinal()];
+            RateLimiter.Bucket volume = limits[RateLimiter.Limit.BYTES.ordinal()];
+            RateLimiter.Limit over = null;
+            long wait = 0;
+            if (count != null && (wait = delay ? count.take(1, now) : count.tryTake(1, now)) > 0) {
+                over = limit;
+            }
+            if (volume != null && bytes > 0 && (over == null || delay)) {
+                long bytesWait = delay ? volume.take(bytes, now) : volume.tryTake(bytes, now);
+                if (bytesWait > wait) {
+                    if (over == null && count != null && !delay) {
+                        count.giveBack(1);
+                    }
+                    wait = bytesWait;
+                    over = RateLimiter.Limit.BYTES;
+                }
+            }
+            if (over == null) return true;
+            metrics.rateLimited[over.ordinal()].increment();
+            long maxDelay = TimeUnit.MILLISECONDS.toNanos(config.limitMaxDelayMillis);
+            switch (config.limitAction) {
+                case DISCONNECT:
+                    metrics.limitDisconnects.increment();
+                    logger.info("Closing {}: over the {} limit", clientName, over.label);
+                    throw new IOException("Over the " + over.label + " limit");
+                case DELAY:
+                    connection.pauseReading(Math.min(wait, maxDelay));
+                    if (wait <= maxDelay) {
+                        metrics.limitDelays.increment();
+                        return true;
+                    }
+                    if (count != null) {
+                        count.giveBack(1);
+                    }
+                    if (volume != null) {
+                        volume.giveBack(bytes);
+                    }
+                    break;
+                default:
+                    break;
+            }
+            metrics.limitDrops.increment();
+            if (now - limitNoticeNanos >= TimeUnit.SECONDS.toNanos(1) || limitNoticeNanos == 0) {
+                limitNoticeNanos = now;
+                sendText("You are sending too fast; some of your messages were not delivered.");
+            }
+            return false;
+        }
+
+        /**
+         * File data is charged to the byte limit but never dropped, which would leave the
+         * recipients with a broken file: whatever the action, an upload over the limit
+         * is read more slowly instead.
+         */
+        private void throttle(long bytes) {
+            RateLimiter.Bucket volume = limits == null ? null : limits[RateLimiter.Limit.BYTES.ordinal()];
+            if (volume == null) return;
+            long wait = volume.take(bytes, System.nanoTime());
+            if (wait > 0) {
+                metrics.rateLimited[RateLimiter.Limit.BYTES.ordinal()].increment();
+                metrics.limitDelays.increment();
+                connection.pauseReading(Math.min(wait, TimeUnit.MILLISECONDS.toNanos(config.limitMaxDelayMillis)));
+            }
+        }
+
+        public void onClose() {
+            closed = true;
+            handshakeTimeout.cancel();
+            TimerWheel.Timeout beat = heartbeat;
+            if (beat != null) {
+                beat.cancel();
+            }
+            if (clientName == null) return;
+            lastSeen.put(clientName, System.currentTimeMillis());
+            long dropped = connection.outbound().droppedMessages();
+            if (dropped > 0) {
+                logger.info("Client disconnected: {} ({} messages dropped)", clientName, dropped);
+            } else {
+                logger.info("Client disconnected: {}", clientName);
+            }
+            if (clients.remove(clientName, this)) {
+                cluster.localChanged(clientName);
+                for (Listener l : listeners) {
+                    l.onClientLeft(clientName);
+                }
+            }
+            rooms.leaveAll(this);
+            for (FileRelay relay : uploads.values()) {
+                relay.abort();
+            }
+            uploads.clear();
+            presence.changed(clientName);
+        }
+
+        /** A notice from the server itself. */
+        public void sendText(String msg) throws IOException {
+            queue(Wire.MESSAGE, binary ? Wire.notice(msg) : Frames.text(msg));
+        }
+
+        public void send(Outgoing message) throws IOException {
+            queue(Wire.MESSAGE, frameFor(message));
+        }
+
+        /** The encoding of message this client reads, after naming its sender if the client has not heard of them. */
+        private ByteBuffer frameFor(Outgoing message) throws IOException {
+            if (!binary) return message.legacy();
+            if (message.senderId != 0) {
+                introduce(message.senderId, message.sender);
+            }
+            return message.binary();
+        }
+
+        /** Sends a USER_NAME for id unless this binary client already has one. */
+        private void introduce(int id, String name) throws IOException {
+            synchronized (namedIds) {
+                if (!namedIds.get(id)) {
+                    queue(Wire.USER_NAME, Wire.userName(id, name));
+                    namedIds.set(id);
+                }
+            }
+        }
+
+        /** Sends an already encoded frame; the same frame can go to any number of clients. op is what it counts as. */
+        public void sendFrame(byte op, ByteBuffer frame) throws IOException {
+            queue(op, frame);
+        }
+
+        public void sendRegion(FileSpool.Region region) throws IOException {
+            metrics.sent.add(Wire.FILE_CHUNK, region.header.remaining() + region.remaining());
+            connection.send(region);
+        }
+
+        private void queue(byte op, ByteBuffer frame) throws IOException {
+            metrics.sent.add(op, frame.remaining());
+            if (Wire.isControl(op)) {
+                connection.sendControl(frame);
+            } else {
+                connection.send(frame);
+            }
+        }
+
+        /** Mail delivery packs many messages into one frame. */
+        private void queueBatch(List<ByteBuffer> batch) throws IOException {
+            ByteBuffer frame = Frames.concat(batch);
+            metrics.sent.add(Wire.MESSAGE, batch.size(), frame.remaining());
+            connection.send(frame);
+        }
+
+        String name() {
+            return clientName;
+        }
+
+        long queuedBytes() {
+            return connection.outbound().queuedBytes();
+        }
+    }
+
+    /** Hands what other cluster nodes forward to the clients connected here. */
+    private class RemoteDelivery implements Cluster.Delivery {
+        public void onRemoteBroadcast(String sender, String text) {
+            record(MessageLog.ROOM, sender, text);
+            broadcastMessage(Outgoing.broadcast(sender, userIds.idOf(sender), text), null);
+        }
+
+        public void onRemotePrivate(String sender, String receiver, String text) {
+            ClientHandler target = clients.get(receiver);
+            if (target == null) {
+                logger.warn("Private message from {} for {} dropped: no longer connected here", sender, receiver);
+                return;
+            }
+            record(MessageLog.privateConversation(sender, receiver), sender, text);
+            try {
+                target.send(Outgoing.direct(sender, userIds.idOf(sender), text));
+            } catch (IOException e) {
+                logger.warn("Failed to send message to {}", receiver);
+            }
+        }
+
+        public void onRemoteRoom(String room, String sender, String text) {
+            record("#" + room, sender, text);
+            Outgoing out = Outgoing.inRoom(room, sender, userIds.idOf(sender), text);
+            long start = System.nanoTime();
+            for (ClientHandler member : rooms.members(room)) {
+                try {
+                    member.send(out);
+                } catch (IOException e) {
+                    logger.warn("Failed to send message to {}", member.clientName);
+                }
+            }
+            metrics.roomFanout.record(System.nanoTime() - start);
+        }
+
+        public void onRemotePresence(String user) {
+            presence.changed(user);
+        }
+    }
+
+    private void broadcastMessage(Outgoing message, ClientHandler sender) {
+        long start = System.nanoTime();
+        for (ClientHandler client : clients.values()) {
+            if (client != sender) {
+                try {
+                    client.send(message);
+                } catch (IOException e) {
+                    logger.warn("Failed to send message to {}", client.clientName);
+                }
+            }
+        }
+        metrics.broadcastFanout.record(System.nanoTime() - start);
+    }
+
+    public static void main(String[] args) {
+        ChatServer server = new ChatServer();
+        server.addListener(System.out::println);
+        server.run();
+    }
+}
@@ -0,0 +1,295 @@
+import javax.swing.*;
+import java.awt.*;
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * The message area of {@link SimpleChatClient}: a JList with one reusable bubble
+ * renderer, so only the rows on screen are painted and a message costs a model entry
+ * and its wrapped lines instead of a panel, text area, font and colour. Messages may be posted from any
+ * thread; they are queued and added in one model update per frame. The list keeps at
+ * most maxRows messages; every message also goes to a transcript file for the session,
+ * and scrolling to the top or bottom of the list pages older or newer ones back in.
+ */
+final class ChatView {
+    private static final int FRAME_MILLIS = 16;
+    private static final int PAGE = 200;
+    private static final Font FONT = new Font("Arial", Font.PLAIN, 14);
+    private static final Color SENT = new Color(220, 248, 198, 230);
+    private static final Color RECEIVED = new Color(240, 240, 240, 200);
+
+    static final class Message {
+        final String text;
+        final boolean sent;
+        /** Set by the renderer for the list width it was laid out for. */
+        int layoutWidth = -1;
+        String[] lines;
+        int textWidth;
+        int height;
+
+        Message(String text, boolean sent) {
+            this.text = text;
+            this.sent = sent;
+        }
+    }
+
+    private final int maxRows;
+    private final Queue<Message> incoming = new ConcurrentLinkedQueue<>();
+    private final Rows rows = new Rows();
+    private final JList<Message> list = new JList<>(rows);
+    private final JScrollPane scrollPane = new JScrollPane(list);
+
+    private final RandomAccessFile transcript;
+    private long[] offsets = new long[1024];
+    private int total;
+    /** Transcript index of the first row in the list. */
+    private int first;
+
+    ChatView(int maxRows) throws IOException {
+        this.maxRows = maxRows;
+        Path file = Files.createTempFile("chat-transcript", ".bin");
+        file.toFile().deleteOnExit();
+        transcript = new RandomAccessFile(file.toFile(), "rw");
+
+        list.setCellRenderer(new BubbleRenderer());
+        list.setOpaque(false);
+        list.setFocusable(false);
+        scrollPane.setOpaque(false);
+        scrollPane.getViewport().setOpaque(false);
+        scrollPane.setBorder(null);
+        scrollPane.setVerticalScrollBarPolicy(JScrollPane.VERTICAL_SCROLLBAR_AS_NEEDED);
+        scrollPane.getVerticalScrollBar().setUnitIncrement(16);
+        scrollPane.getVerticalScrollBar().addAdjustmentListener(e -> {
+            if (!e.getValueIsAdjusting()) {
+                pageIfAtEdge();
+            }
+        });
+        new javax.swing.Timer(FRAME_MILLIS, e -> drain()).start();
+    }
+
+    JComponent component() {
+        return scrollPane;
+    }
+
+    /** Safe to call from any thread. */
+    void post(String text, boolean sent) {
+        incoming.add(new Message(text, sent));
+    }
+
+    /** Runs on the EDT once per frame: moves everything posted since into the list. */
+    private void drain() {
+        if (incoming.isEmpty()) return;
+        boolean following = atBottom() && first + rows.size() == total;
+        java.util.List<Message> batch = new ArrayList<>();
+        Message m;
+        while ((m = incoming.poll()) != null) {
+            batch.add(m);
+        }
+        try {
+            append(batch);
+        } catch (IOException e) {
+            // keep showing messages even if the transcript cannot be written
+        }
+        if (following) {
+            int keep = Math.min(batch.size(), maxRows);
+            rows.addLast(batch.subList(batch.size() - keep, batch.size()));
+            int excess = rows.size() - maxRows;
+            if (excess > 0) {
+                rows.removeFirst(excess);
+            }
+            first = total - rows.size();
+            list.ensureIndexIsVisible(rows.size() - 1);
+        }
+    }
+
+    private boolean atBottom() {
+        JScrollBar bar = scrollPane.getVerticalScrollBar();
+        return bar.getValue() + bar.getVisibleAmount() >= bar.getMaximum() - 4;
+    }
+
+    private void pageIfAtEdge() {
+        JScrollBar bar = scrollPane.getVerticalScrollBar();
+        try {
+            if (bar.getValue() == bar.getMinimum() && first > 0 && bar.getMaximum() > bar.getVisibleAmount()) {
+                int from = Math.max(0, first - PAGE);
+                java.util.List<Message> older = read(from, first);
+                rows.addFirst(older);
+                first = from;
+                int excess = rows.size() - maxRows;
+                if (excess > 0) {
+                    rows.removeLast(excess);
+                }
+                Rectangle added = list.getCellBounds(0, older.size() - 1);
+                SwingUtilities.invokeLater(() -> bar.setValue(bar.getValue() + (added != null ? added.height : 0)));
+            } else if (atBottom() && first + rows.size() < total) {
+                int from = first + rows.size();
+                java.util.List<Message> newer = read(from, Math.min(total, from + PAGE));
+                rows.addLast(newer);
+                int excess = rows.size() - maxRows;
+                if (excess > 0) {
+                    Rectangle removed = list.getCellBounds(0, excess - 1);
+                    rows.removeFirst(excess);
+                    first += excess;
+                    SwingUtilities.invokeLater(() -> bar.setValue(bar.getValue() - (removed != null ? removed.height : 0)));
+                }
+            }
+        } catch (IOException e) {
+            // transcript unreadable; stay with what is in the list
+        }
+    }
+
+    /** Transcript records: a sent flag byte, then the text as writeUTF would write it. */
+    private void append(java.util.List<Message> batch) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        long position = transcript.length();
+        for (Message m : batch) {
+            if (total == offsets.length) {
+                offsets = Arrays.copyOf(offsets, total * 2);
+            }
+            offsets[total++] = position + out.size();
+            out.writeBoolean(m.sent);
+            out.writeUTF(m.text.length() > 20_000 ? m.text.substring(0, 20_000) : m.text);
+        }
+        transcript.seek(position);
+        transcript.write(bytes.toByteArray());
+    }
+
+    private java.util.List<Message> read(int from, int to) throws IOException {
+        java.util.List<Message> messages = new ArrayList<>(to - from);
+        transcript.seek(offsets[from]);
+        for (int i = from; i < to; i++) {
+            boolean sent = transcript.readBoolean();
+            messages.add(new Message(transcript.readUTF(), sent));
+        }
+        return messages;
+    }
+
+    /** The messages currently in the list, between first and first + size() in the transcript. */
+    private static final class Rows extends AbstractListModel<Message> {
+        private static final long serialVersionUID = 1L;
+
+        private final ArrayList<Message> messages = new ArrayList<>();
+
+        public int getSize() {
+            return messages.size();
+        }
+
+        public Message getElementAt(int index) {
+            return messages.get(index);
+        }
+
+        int size() {
+            return messages.size();
+        }
+
+        void addLast(java.util.List<Message> more) {
+            if (more.isEmpty()) return;
+            int start = messages.size();
+            messages.addAll(more);
+            fireIntervalAdded(this, start, messages.size() - 1);
+        }
+
+        void addFirst(java.util.List<Message> more) {
+            if (more.isEmpty()) return;
+            messages.addAll(0, more);
+            fireIntervalAdded(this, 0, more.size() - 1);
+        }
+
+        void removeFirst(int n) {
+            messages.subList(0, n).clear();
+            fireIntervalRemoved(this, 0, n - 1);
+        }
+
+        void removeLast(int n) {
+            int size = messages.size();
+            messages.subList(size - n, size).clear();
+            fireIntervalRemoved(this, size - n, size - 1);
+        }
+    }
+
+    /**
+     * Paints a message as a bubble. Line breaks and size are worked out once per
+     * message and list width and kept on the message, because JList asks every row for
+     * its size again whenever the model changes.
+     */
+    private static final class BubbleRenderer extends JComponent implements ListCellRenderer<Message> {
+        private static final long serialVersionUID = 1L;
+        private static final int PAD_X = 10, PAD_Y = 8, MARGIN = 5;
+
+        private Message message;
+        private int width;
+
+        public Component getListCellRendererComponent(JList<? extends Message> list, Message m, int index,
+                                                      boolean selected, boolean focused) {
+            message = m;
+            width = list.getWidth();
+            if (m.layoutWidth != width) {
+                layout(m, getFontMetrics(FONT), Math.max(120, width * 3 / 4) - 2 * PAD_X);
+                m.layoutWidth = width;
+            }
+            return this;
+        }
+
+        public Dimension getPreferredSize() {
+            return new Dimension(width, message.height);
+        }
+
+        protected void paintComponent(Graphics g) {
+            Message m = message;
+            Map<?, ?> hints = (Map<?, ?>) Toolkit.getDefaultToolkit().getDesktopProperty("awt.font.desktophints");
+            if (hints != null) {
+                ((Graphics2D) g).addRenderingHints(hints); // antialias like the Swing text components
+            }
+            FontMetrics fm = g.getFontMetrics(FONT);
+            int bubbleWidth = m.textWidth + 2 * PAD_X;
+            int x = m.sent ? getWidth() - bubbleWidth - MARGIN : MARGIN;
+            g.setColor(m.sent ? SENT : RECEIVED);
+            g.fillRect(x, MARGIN, bubbleWidth, m.height - 2 * MARGIN);
+            g.setColor(Color.BLACK);
+            g.setFont(FONT);
+            int y = MARGIN + PAD_Y + fm.getAscent();
+            for (String line : m.lines) {
+                g.drawString(line, x + PAD_X, y);
+                y += fm.getHeight();
+            }
+        }
+
+        /** Greedy word wrap to maxWidth pixels; words longer than a line are split. */
+        private static void layout(Message m, FontMetrics fm, int maxWidth) {
+            java.util.List<String> lines = new ArrayList<>();
+            int widest = 0;
+            for (String paragraph : m.text.split("\n", -1)) {
+                StringBuilder line = new StringBuilder();
+                for (String word : paragraph.split(" ", -1)) {
+                    String candidate = line.length() == 0 ? word : line + " " + word;
+                    if (fm.stringWidth(candidate) <= maxWidth) {
+                        line.setLength(0);
+                        line.append(candidate);
+                        continue;
+                    }
+                    if (line.length() > 0) {
+                        lines.add(line.toString());
+                        widest = Math.max(widest, fm.stringWidth(line.toString()));
+                        line.setLength(0);
+                    }
+                    for (char c : word.toCharArray()) {
+                        if (line.length() > 0 && fm.stringWidth(line.toString() + c) > maxWidth) {
+                            lines.add(line.toString());
+                            widest = Math.max(widest, fm.stringWidth(line.toString()));
+                            line.setLength(0);
+                        }
+                        line.append(c);
+                    }
+                }
+                lines.add(line.toString());
+                widest = Math.max(widest, fm.stringWidth(line.toString()));
+            }
+            m.lines = lines.toArray(new String[0]);
+            m.textWidth = widest;
+            m.height = lines.size() * fm.getHeight() + 2 * PAD_Y + 2 * MARGIN;
+        }
+    }
+}
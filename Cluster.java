@@ -0,0 +1,331 @@
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.security.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Lets several {@link ChatServer} nodes act as one chat. Each node dials every peer in
+ * CHAT_CLUSTER_PEERS and only sends on that link; what a peer sends arrives on the link
+ * it dialled to this node's CHAT_CLUSTER_PORT. Nodes tell each other which users they
+ * hold, so every node keeps a directory of the users on the others, and they hand on
+ * broadcasts, room messages and private messages for users held elsewhere.
+ *
+ * Frames for a peer go through an {@link OutboundQueue} and are written in batches, so
+ * a busy node forwards many messages per write. Frames use the {@link Wire} layout
+ * (opcode, varint length, payload). A node is known by its CHAT_NODE_ID, which must be
+ * the host:port the other nodes list it under, and it proves it belongs to the cluster
+ * with CHAT_CLUSTER_SECRET in its hello. When a peer's link drops, its users
+ * are taken out of the directory until it reconnects and sends its list again, and
+ * messages for it are dropped in the meantime.
+ */
+final class Cluster {
+    /** What arrives from other nodes; called on the link's reader thread. */
+    interface Delivery {
+        void onRemoteBroadcast(String sender, String text);
+
+        void onRemotePrivate(String sender, String receiver, String text);
+
+        void onRemoteRoom(String room, String sender, String text);
+
+        /** A user on another node came or went. */
+        void onRemotePresence(String user);
+    }
+
+    private static final byte HELLO = 1;     // node id, cluster secret
+    private static final byte USERS = 2;     // (1 | 0, name)*: users now on or no longer on the sending node
+    private static final byte BROADCAST = 3; // sender, text
+    private static final byte PRIVATE = 4;   // sender, receiver, text
+    private static final byte ROOM = 5;      // room, sender, text
+
+    private static final int MAX_BATCH = 64;
+    private static final int MAX_FRAME_BYTES = 16 * 1024 * 1024;
+    private static final int MAX_HELLO_BYTES = 4096;
+
+    private final ServerConfig config;
+    private final Set<String> localUsers;
+    private final Delivery delivery;
+    private final AsyncLog logger;
+    private final Map<String, Peer> peers = new LinkedHashMap<>();
+    /** User on another node to that node's id. */
+    private final Map<String, String> directory = new ConcurrentHashMap<>();
+    /** The reader currently serving each node, so a stale link closing late does not remove a reconnected node's users. */
+    private final Map<String, Object> inbound = new ConcurrentHashMap<>();
+
+    Cluster(ServerConfig config, Set<String> localUsers, Delivery delivery, AsyncLog logger) {
+        this.config = config;
+        this.localUsers = localUsers;
+        this.delivery = delivery;
+        this.logger = logger;
+        for (String address : config.clusterPeers.split(",")) {
+            address = address.trim();
+            if (!address.isEmpty() && !address.equals(config.nodeId)) {
+                peers.put(address, new Peer(address));
+            }
+        }
+    }
+
+    boolean isEnabled() {
+        return config.clusterPort > 0;
+    }
+
+    /** Listens for peers and starts dialling them. */
+    void start() throws IOException {
+        if (config.clusterSecret.isEmpty()) {
+            throw new IOException("CHAT_CLUSTER_SECRET must be set to run a cluster");
+        }
+        ServerSocketChannel server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress(config.clusterHost, config.clusterPort));
+        daemon("cluster-accept", () -> {
+            while (true) {
+                try {
+                    SocketChannel channel = server.accept();
+                    daemon("cluster-in", () -> readLink(channel));
+                } catch (IOException e) {
+                    logger.warn("Cluster listener stopped: {}", e.getMessage());
+                    return;
+                }
+            }
+        });
+        for (Peer peer : peers.values()) {
+            daemon("cluster-out-" + peer.address, peer);
+        }
+        logger.info("Cluster node {} listening on {} with {} peers", config.nodeId, server.getLocalAddress(), peers.size());
+    }
+
+    boolean hasUser(String user) {
+        return directory.containsKey(user);
+    }
+
+    Set<String> remoteUsers() {
+        return directory.keySet();
+    }
+
+    /** Tells the peers whether user is now connected here. */
+    synchronized void localChanged(String user) {
+        if (peers.isEmpty()) return;
+        ByteBuffer frame = users(Collections.singletonMap(user, localUsers.contains(user)));
+        for (Peer peer : peers.values()) {
+            peer.send(frame);
+        }
+    }
+
+    void forwardBroadcast(String sender, String text) {
+        if (peers.isEmpty()) return;
+        ByteBuffer frame = frame(BROADCAST, sender, text);
+        for (Peer peer : peers.values()) {
+            peer.send(frame);
+        }
+    }
+
+    void forwardRoom(String room, String sender, String text) {
+        if (peers.isEmpty()) return;
+        ByteBuffer frame = frame(ROOM, room, sender, text);
+        for (Peer peer : peers.values()) {
+            peer.send(frame);
+        }
+    }
+
+    /** Returns false if receiver is not on another node that is linked right now. */
+    boolean forwardPrivate(String sender, String receiver, String text) {
+        String node = directory.get(receiver);
+        Peer peer = node != null ? peers.get(node) : null;
+        return peer != null && peer.send(frame(PRIVATE, sender, receiver, text));
+    }
+
+    /** Reads what one peer sends until its link closes. */
+    private void readLink(SocketChannel channel) {
+        String node = null;
+        Object link = new Object();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel), 64 * 1024))) {
+            byte[] payload = new byte[256];
+            Wire.Reader r = new Wire.Reader();
+            while (true) {
+                byte op = in.readByte();
+                long length = Wire.readVarint(in);
+                if (length < 0 || length > (node == null ? MAX_HELLO_BYTES : MAX_FRAME_BYTES)) {
+                    throw new IOException("Cluster frame of " + length + " bytes");
+                }
+                if (payload.length < length) {
+                    payload = new byte[(int) Math.max(length, payload.length * 2L)];
+                }
+                in.readFully(payload, 0, (int) length);
+                r.reset(payload, (int) length);
+                if (node == null) {
+                    if (op != HELLO) throw new IOException("Peer did not say hello");
+                    String id = r.string();
+                    if (!MessageDigest.isEqual(Wire.utf8(r.rest()), Wire.utf8(config.clusterSecret))) {
+                        logger.warn("Refused cluster link from {} claiming to be {}: wrong secret", channel.getRemoteAddress(), id);
+                        return;
+                    }
+                    node = id;
+                    inbound.put(node, link);
+                    logger.info("Cluster node {} linked in", node);
+                    continue;
+                }
+                switch (op) {
+                    case USERS:
+                        while (r.hasRemaining()) {
+                            boolean online = r.get() != 0;
+                            String user = r.string();
+                            if (online) {
+                                directory.put(user, node);
+                            } else {
+                                directory.remove(user, node);
+                            }
+                            delivery.onRemotePresence(user);
+                        }
+                        break;
+                    case BROADCAST: {
+                        String sender = r.string();
+                        delivery.onRemoteBroadcast(sender, r.rest());
+                        break;
+                    }
+                    case PRIVATE: {
+                        String sender = r.string();
+                        String receiver = r.string();
+                        delivery.onRemotePrivate(sender, receiver, r.rest());
+                        break;
+                    }
+                    case ROOM: {
+                        String room = r.string();
+                        String sender = r.string();
+                        delivery.onRemoteRoom(room, sender, r.rest());
+                        break;
+                    }
+                    default:
+                        throw new IOException("Unknown cluster opcode " + op);
+                }
+            }
+        } catch (IOException e) {
+            // link closed or broken
+        }
+        if (node != null && inbound.remove(node, link)) {
+            logger.warn("Cluster node {} disconnected", node);
+            for (Map.Entry<String, String> entry : directory.entrySet()) {
+                if (entry.getValue().equals(node) && directory.remove(entry.getKey(), node)) {
+                    delivery.onRemotePresence(entry.getKey());
+                }
+            }
+        }
+    }
+
+    /** The link to one peer: dials it, says hello with this node's users, then writes queued frames in batches. */
+    private final class Peer implements Runnable {
+        final String address;
+        /** null while the link is down. */
+        private volatile OutboundQueue queue;
+
+        Peer(String address) {
+            this.address = address;
+        }
+
+        /**
+         * Queues frame if the link is up; false if it is not. A full queue drops the link
+         * rather than the frame, as a lost presence or private message would leave the
+         * nodes disagreeing; the peer reconnects and sends its users again. A queued frame
+         * is only lost if the link breaks before it is written.
+         */
+        boolean send(ByteBuffer frame) {
+            OutboundQueue q = queue;
+            if (q == null) return false;
+            if (q.offer(frame.duplicate())) return true;
+            q.close(); // the writer sees it and reconnects
+            return false;
+        }
+
+        public void run() {
+            int slash = address.lastIndexOf(':');
+            InetSocketAddress target = new InetSocketAddress(address.substring(0, slash), Integer.parseInt(address.substring(slash + 1)));
+            long backoff = 100;
+            while (true) {
+                OutboundQueue q = new OutboundQueue(config.queueBytes, OutboundQueue.OverflowPolicy.DISCONNECT, 0);
+                try (SocketChannel channel = SocketChannel.open(target)) {
+                    channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                    q.offer(frame(HELLO, config.nodeId, config.clusterSecret));
+                    synchronized (Cluster.this) {
+                        Map<String, Boolean> online = new LinkedHashMap<>();
+                        for (String user : localUsers) {
+                            online.put(user, true);
+                        }
+                        q.offer(users(online));
+                        queue = q;
+                    }
+                    logger.info("Cluster link to {} up", address);
+                    backoff = 100;
+                    writeLoop(channel, q);
+                } catch (IOException | InterruptedException e) {
+                    if (queue != null) {
+                        logger.warn("Cluster link to {} lost: {}{}", address, e.getMessage(), q.droppedMessages() > 0 ? " (queue full)" : "");
+                    }
+                } finally {
+                    queue = null;
+                    q.close();
+                }
+                try {
+                    Thread.sleep(backoff);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                backoff = Math.min(backoff * 2, 5000);
+            }
+        }
+
+        private void writeLoop(SocketChannel channel, OutboundQueue q) throws IOException, InterruptedException {
+            ByteBuffer[] batch = new ByteBuffer[MAX_BATCH];
+            while (q.awaitFrames(config.clusterFlushNanos, config.flushBytes)) {
+                int n = q.pollBatch(batch, config.flushBytes);
+                for (int start = 0; start < n; ) {
+                    channel.write(batch, start, n - start);
+                    while (start < n && !batch[start].hasRemaining()) {
+                        batch[start++] = null;
+                    }
+                }
+            }
+            throw new IOException("queue closed");
+        }
+    }
+
+    private static ByteBuffer users(Map<String, Boolean> users) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            for (Map.Entry<String, Boolean> user : users.entrySet()) {
+                out.writeByte(user.getValue() ? 1 : 0);
+                Wire.writeString(out, user.getKey());
+            }
+            return encode(USERS, bytes);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e); // not thrown by a ByteArrayOutputStream
+        }
+    }
+
+    /** All fields but the last are length-prefixed. */
+    private static ByteBuffer frame(byte op, String... fields) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            for (int i = 0; i < fields.length - 1; i++) {
+                Wire.writeString(out, fields[i]);
+            }
+            out.write(Wire.utf8(fields[fields.length - 1]));
+            return encode(op, bytes);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static ByteBuffer encode(byte op, ByteArrayOutputStream payload) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(payload.size() + 6);
+        Wire.writeFrame(new DataOutputStream(bytes), op, payload);
+        return ByteBuffer.wrap(bytes.toByteArray()).asReadOnlyBuffer();
+    }
+
+    private static void daemon(String name, Runnable task) {
+        Thread t = new Thread(task, name);
+        t.setDaemon(true);
+        t.start();
+    }
+}
@@ -0,0 +1,85 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.function.*;
+
+/**
+ * Accepts sockets and moves bytes between them and the server. Every engine speaks
+ * the same wire formats, decoded by {@link FrameDecoder}.
+ */
+interface ConnectionEngine {
+    String name();
+
+    /**
+     * Binds the port and runs the accept loop on the calling thread. The loop only
+     * accepts and hands sockets over; reading the client's login happens elsewhere,
+     * so a client that never sends one cannot hold up the next accept.
+     */
+    void serve(int port, Function<Connection, FrameDecoder.Listener> sessions) throws IOException;
+
+    /**
+     * Called by an accept loop when accept() failed. The usual cause is running out of
+     * file descriptors, which lasts a while, so this waits a moment before the next try
+     * instead of letting the loop spin. Rethrows if the listening socket is closed.
+     */
+    static void acceptFailed(ServerSocketChannel server, IOException e, ServerMetrics metrics, AsyncLog logger) throws IOException {
+        if (!server.isOpen()) throw e;
+        metrics.acceptFailures.increment();
+        logger.warn("Accept failed: {}", e.getMessage());
+        try {
+            Thread.sleep(100);
+        } catch (InterruptedException interrupted) {
+            Thread.currentThread().interrupt();
+            throw e;
+        }
+    }
+
+    /** Closes a socket that was accepted but could not be handed over. */
+    static void dropAccepted(SocketChannel channel, Exception e, ServerMetrics metrics, AsyncLog logger) {
+        metrics.acceptFailures.increment();
+        logger.warn("Dropped a new connection: {}", e.toString());
+        try {
+            channel.close();
+        } catch (IOException ignored) {}
+    }
+
+    /** One accepted socket, as seen by the server. */
+    interface Connection {
+        /**
+         * Queues a complete frame for this connection's writer and returns without
+         * waiting for the network. The buffer must not be modified afterwards. Throws
+         * if the connection is closed or was closed because its queue overflowed.
+         */
+        void send(ByteBuffer frame) throws IOException;
+
+        /**
+         * Like {@link #send(ByteBuffer)}, for a frame the client cannot do without (see
+         * {@link Wire#isControl}): a full queue never drops it, and closes the
+         * connection instead if nothing else can go.
+         */
+        void sendControl(ByteBuffer frame) throws IOException;
+
+        /** Queues a frame whose body is sent from a spooled file. */
+        void send(FileSpool.Region region) throws IOException;
+
+        OutboundQueue outbound();
+
+        /** System.nanoTime() of the last read that brought bytes from the client. */
+        long lastReadNanos();
+
+        /**
+         * Stops taking bytes from the client for about nanos, extending any pause already
+         * in progress, so a client sending too fast is held back by TCP flow control. Frames
+         * already read are still delivered. Only called from this connection's own decoder
+         * callbacks.
+         */
+        void pauseReading(long nanos);
+
+        void close();
+
+        /** Refuses further frames and closes once everything already queued is written. */
+        void closeWhenFlushed();
+
+        String remoteAddress();
+    }
+}
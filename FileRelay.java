@@ -0,0 +1,125 @@
+import java.io.*;
+import java.nio.*;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Forwards one file upload to its recipients as it arrives. Each piece is written
+ * once to a {@link FileSpool} and every recipient is sent a chunk frame whose body
+ * comes from the spool through transferTo, so file bytes are neither copied per
+ * recipient nor held on the heap while a slow recipient catches up. Each relay gets
+ * a server-wide id because recipients can have transfers from several senders
+ * interleaved on one connection.
+ */
+final class FileRelay {
+    private static final AtomicInteger ids = new AtomicInteger();
+
+    final int id = nextId();
+    final String fileName;
+    final long size;
+    private final List<ChatServer.ClientHandler> recipients;
+    private final Mailboxes.PendingFile mailbox;
+    private FileSpool spool;
+    private long offset;
+
+    FileRelay(String fileName, long size, List<ChatServer.ClientHandler> recipients) {
+        this(fileName, size, recipients, null);
+    }
+
+    /** A relay that also writes the file into an offline user's mailbox. */
+    FileRelay(String fileName, long size, List<ChatServer.ClientHandler> recipients, Mailboxes.PendingFile mailbox) {
+        this.fileName = fileName;
+        this.size = size;
+        this.recipients = recipients;
+        this.mailbox = mailbox;
+    }
+
+    /** Transfer ids are shared with mailbox deliveries so they never clash on a connection. */
+    static int nextId() {
+        return ids.incrementAndGet();
+    }
+
+    void begin() throws IOException {
+        if (isComplete()) {
+            complete();
+        }
+        if (!recipients.isEmpty() && size > 0) {
+            spool = new FileSpool();
+        }
+        ByteBuffer legacy = null;
+        ByteBuffer binary = null;
+        Iterator<ChatServer.ClientHandler> it = recipients.iterator();
+        while (it.hasNext()) {
+            ChatServer.ClientHandler recipient = it.next();
+            try {
+                recipient.sendFrame(Wire.FILE_BEGIN, recipient.isBinary()
+                        ? (binary != null ? binary : (binary = Wire.fileBegin(id, fileName, size)))
+                        : (legacy != null ? legacy : (legacy = Frames.fileBegin(id, fileName, size))));
+            } catch (IOException e) {
+                it.remove(); // closed or overflowed; its client has been disconnected
+            }
+        }
+    }
+
+    void relay(ByteBuffer data) throws IOException {
+        int length = data.remaining();
+        if (offset + length > size) {
+            throw new IOException("More data than announced for " + fileName);
+        }
+        if (spool != null && !recipients.isEmpty()) {
+            spool.write(data, offset);
+            ByteBuffer legacy = null;
+            ByteBuffer binary = null;
+            Iterator<ChatServer.ClientHandler> it = recipients.iterator();
+            while (it.hasNext()) {
+                ChatServer.ClientHandler recipient = it.next();
+                try {
+                    ByteBuffer header = recipient.isBinary()
+                            ? (binary != null ? binary : (binary = Wire.fileChunkHeader(id, offset, length)))
+                            : (legacy != null ? legacy : (legacy = Frames.fileChunkHeader(id, offset, length)));
+                    recipient.sendRegion(spool.region(header.duplicate(), offset, length));
+                } catch (IOException e) {
+                    it.remove();
+                }
+            }
+        }
+        if (mailbox != null) {
+            mailbox.write(data);
+        }
+        offset += length;
+        if (isComplete()) {
+            complete();
+        }
+    }
+
+    boolean isComplete() {
+        return offset == size;
+    }
+
+    void abort() {
+        releaseSpool();
+        if (mailbox != null) {
+            mailbox.discard();
+        }
+        for (ChatServer.ClientHandler recipient : recipients) {
+            try {
+                recipient.sendFrame(Wire.FILE_ABORT, recipient.isBinary() ? Wire.fileAbort(id) : Frames.fileAbort(id));
+            } catch (IOException e) {}
+        }
+    }
+
+    private void complete() throws IOException {
+        releaseSpool();
+        if (mailbox != null) {
+            mailbox.commit();
+        }
+    }
+
+    /** Drops the uploader's reference; the spool goes once recipients have been sent their chunks. */
+    private void releaseSpool() {
+        if (spool != null) {
+            spool.release();
+            spool = null;
+        }
+    }
+}
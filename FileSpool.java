@@ -0,0 +1,88 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Temporary file an upload is written to once, so every recipient can be served from
+ * it with FileChannel.transferTo (sendfile) instead of copying the bytes through the
+ * heap per recipient. Reference counted: the uploader holds one reference and every
+ * queued {@link Region} another; the file is deleted when the last one is released.
+ */
+final class FileSpool {
+    private final FileChannel channel;
+    private final AtomicInteger refs = new AtomicInteger(1);
+
+    FileSpool() throws IOException {
+        Path path = Files.createTempFile("chat-spool", ".part");
+        channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.DELETE_ON_CLOSE);
+    }
+
+    /** Serves an existing file, such as a mailbox file, and deletes it once the last region is sent. */
+    FileSpool(Path existing) throws IOException {
+        channel = FileChannel.open(existing, StandardOpenOption.READ, StandardOpenOption.DELETE_ON_CLOSE);
+    }
+
+    void write(ByteBuffer data, long position) throws IOException {
+        ByteBuffer buf = data.duplicate();
+        while (buf.hasRemaining()) {
+            position += channel.write(buf, position);
+        }
+    }
+
+    /** A frame to send: header is written from memory, then count bytes from the spool. */
+    Region region(ByteBuffer header, long position, long count) {
+        refs.incrementAndGet();
+        return new Region(header, position, count);
+    }
+
+    void release() {
+        if (refs.decrementAndGet() == 0) {
+            try {
+                channel.close();
+            } catch (IOException e) {}
+        }
+    }
+
+    final class Region {
+        final ByteBuffer header;
+        private long position;
+        private final long end;
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        private Region(ByteBuffer header, long position, long count) {
+            this.header = header;
+            this.position = position;
+            this.end = position + count;
+        }
+
+        /** File bytes not written yet, after the header. */
+        long remaining() {
+            return end - position;
+        }
+
+        /**
+         * Writes as much as target accepts and returns true once the whole region has
+         * been sent. On a non-blocking target this can stop early and be called again.
+         */
+        boolean writeTo(WritableByteChannel target) throws IOException {
+            if (header.hasRemaining()) {
+                target.write(header);
+                if (header.hasRemaining()) return false;
+            }
+            while (position < end) {
+                long n = channel.transferTo(position, end - position, target);
+                if (n == 0) return false;
+                position += n;
+            }
+            return true;
+        }
+
+        void release() {
+            if (released.compareAndSet(false, true)) {
+                FileSpool.this.release();
+            }
+        }
+    }
+}
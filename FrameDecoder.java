@@ -0,0 +1,308 @@
+import java.io.*;
+import java.nio.*;
+
+/**
+ * Incremental decoder for the client protocol: optionally "PROTO" and a version, then
+ * a login ("AUTH" or "TOKEN", name, password or session token) or, from older clients,
+ * just the name; then commands
+ * that are either "FILE_BEGIN", "FILE_CHUNK", "PRIVATE", "JOIN", "LEAVE", "ROOM", a
+ * plain chat line, or the legacy whole-file "File" and "PRIVATE_FILE". Bytes can arrive split at any point;
+ * partial fields are kept here so callers can reuse their read buffer. File contents
+ * are never collected: they are handed on in whatever pieces the socket delivers.
+ * A client that agreed on version 2 sends {@link Wire} frames after its login, which
+ * are handed to a {@link BinaryDecoder}.
+ */
+final class FrameDecoder {
+    /** Transfer id the legacy "File" and "PRIVATE_FILE" commands are reported under. */
+    static final int LEGACY_FILE_ID = -1;
+
+    interface Listener {
+        /** The client asked for a protocol version; returns the decoder to use after login, or null to stay on this one. */
+        BinaryDecoder onProtocol(int version);
+
+        /** A client that sent only its name. */
+        void onHandshake(String name) throws IOException;
+
+        void onLogin(String name, String password) throws IOException;
+
+        void onResume(String name, String token) throws IOException;
+
+        void onText(String message) throws IOException;
+
+        void onPrivate(String receiver, String message) throws IOException;
+
+        void onJoinRoom(String room) throws IOException;
+
+        void onLeaveRoom(String room) throws IOException;
+
+        void onRoomMessage(String room, String message) throws IOException;
+
+        /** query is what the user typed; see {@link SearchIndex.Query}. */
+        void onSearch(String query) throws IOException;
+
+        /** receiver is null for a broadcast file. */
+        void onFileBegin(int id, String receiver, String fileName, long size) throws IOException;
+
+        /** data is only valid for the duration of the call. */
+        void onFileData(int id, ByteBuffer data) throws IOException;
+
+        /** A binary client checking the connection; it expects a PONG. */
+        void onPing() throws IOException;
+
+        void onClose();
+    }
+
+    private enum Step {
+        NAME, PROTO_VERSION, LOGIN_NAME, LOGIN_SECRET, TYPE, FILE_ID, FILE_RECEIVER, FILE_NAME, FILE_SIZE, CHUNK_ID, CHUNK_LENGTH, FILE_BODY,
+        PRIVATE_RECEIVER, PRIVATE_TEXT, ROOM_NAME, ROOM_TEXT, SEARCH_QUERY
+    }
+
+    private final Listener listener;
+    private Step step = Step.NAME;
+
+    private byte[] scratch = new byte[64];
+    private int scratchLength;
+    private int utfLength = -1;
+
+    private boolean tokenLogin;
+    private String loginName;
+    private boolean legacyFile;
+    private int fileId;
+    private String receiver;
+    private String roomCommand;
+    private String room;
+    private String fileName;
+    private long bodyRemaining;
+    private BinaryDecoder offered;
+    private BinaryDecoder binary;
+
+    FrameDecoder(Listener listener) {
+        this.listener = listener;
+    }
+
+    /** Consumes every remaining byte of in. */
+    void decode(ByteBuffer in) throws IOException {
+        while (in.hasRemaining()) {
+            if (binary != null) {
+                binary.decode(in);
+                return;
+            }
+            switch (step) {
+                case NAME: {
+                    String name = readUtf(in);
+                    if (name == null) return;
+                    if (name.equals("PROTO")) {
+                        step = Step.PROTO_VERSION;
+                    } else if (name.equals("AUTH") || name.equals("TOKEN")) {
+                        tokenLogin = name.equals("TOKEN");
+                        step = Step.LOGIN_NAME;
+                    } else {
+                        step = Step.TYPE;
+                        listener.onHandshake(name);
+                    }
+                    break;
+                }
+                case PROTO_VERSION: {
+                    String version = readUtf(in);
+                    if (version == null) return;
+                    step = Step.NAME;
+                    try {
+                        offered = listener.onProtocol(Integer.parseInt(version));
+                    } catch (NumberFormatException e) {
+                        offered = null;
+                    }
+                    break;
+                }
+                case LOGIN_NAME:
+                    loginName = readUtf(in);
+                    if (loginName == null) return;
+                    step = Step.LOGIN_SECRET;
+                    break;
+                case LOGIN_SECRET: {
+                    String secret = readUtf(in);
+                    if (secret == null) return;
+                    step = Step.TYPE;
+                    binary = offered;
+                    if (tokenLogin) {
+                        listener.onResume(loginName, secret);
+                    } else {
+                        listener.onLogin(loginName, secret);
+                    }
+                    break;
+                }
+                case TYPE: {
+                    String type = readUtf(in);
+                    if (type == null) return;
+                    if (type.equals("File")) {
+                        legacyFile = true;
+                        fileId = LEGACY_FILE_ID;
+                        receiver = null;
+                        step = Step.FILE_NAME;
+                    } else if (type.equals("PRIVATE_FILE")) {
+                        legacyFile = true;
+                        fileId = LEGACY_FILE_ID;
+                        step = Step.FILE_RECEIVER;
+                    } else if (type.equals("FILE_BEGIN")) {
+                        legacyFile = false;
+                        step = Step.FILE_ID;
+                    } else if (type.equals("FILE_CHUNK")) {
+                        step = Step.CHUNK_ID;
+                    } else if (type.equals("PRIVATE")) {
+                        step = Step.PRIVATE_RECEIVER;
+                    } else if (type.equals("JOIN") || type.equals("LEAVE") || type.equals("ROOM")) {
+                        roomCommand = type;
+                        step = Step.ROOM_NAME;
+                    } else if (type.equals("SEARCH")) {
+                        step = Step.SEARCH_QUERY;
+                    } else {
+                        listener.onText(type);
+                    }
+                    break;
+                }
+                case FILE_ID:
+                    if (!fill(in, 4)) return;
+                    fileId = takeInt();
+                    step = Step.FILE_RECEIVER;
+                    break;
+                case FILE_RECEIVER:
+                    receiver = readUtf(in);
+                    if (receiver == null) return;
+                    if (receiver.isEmpty()) {
+                        receiver = null;
+                    }
+                    step = Step.FILE_NAME;
+                    break;
+                case FILE_NAME:
+                    fileName = readUtf(in);
+                    if (fileName == null) return;
+                    step = Step.FILE_SIZE;
+                    break;
+                case FILE_SIZE: {
+                    long size;
+                    if (legacyFile) {
+                        if (!fill(in, 4)) return;
+                        size = takeInt();
+                    } else {
+                        if (!fill(in, 8)) return;
+                        size = ((long) scratchInt(0) << 32) | (scratchInt(4) & 0xffffffffL);
+                        scratchLength = 0;
+                    }
+                    if (size < 0) {
+                        throw new IOException("Negative file size: " + size);
+                    }
+                    step = legacyFile && size > 0 ? Step.FILE_BODY : Step.TYPE;
+                    bodyRemaining = legacyFile ? size : 0;
+                    listener.onFileBegin(fileId, receiver, fileName, size);
+                    break;
+                }
+                case CHUNK_ID:
+                    if (!fill(in, 4)) return;
+                    fileId = takeInt();
+                    step = Step.CHUNK_LENGTH;
+                    break;
+                case CHUNK_LENGTH: {
+                    if (!fill(in, 4)) return;
+                    int length = takeInt();
+                    if (length < 0) {
+                        throw new IOException("Negative chunk length: " + length);
+                    }
+                    bodyRemaining = length;
+                    step = length > 0 ? Step.FILE_BODY : Step.TYPE;
+                    break;
+                }
+                case FILE_BODY: {
+                    int n = (int) Math.min(in.remaining(), bodyRemaining);
+                    ByteBuffer data = in.duplicate();
+                    data.limit(data.position() + n);
+                    in.position(in.position() + n);
+                    bodyRemaining -= n;
+                    if (bodyRemaining == 0) {
+                        step = Step.TYPE;
+                    }
+                    listener.onFileData(fileId, data.asReadOnlyBuffer());
+                    break;
+                }
+                case PRIVATE_RECEIVER:
+                    receiver = readUtf(in);
+                    if (receiver == null) return;
+                    step = Step.PRIVATE_TEXT;
+                    break;
+                case PRIVATE_TEXT: {
+                    String message = readUtf(in);
+                    if (message == null) return;
+                    step = Step.TYPE;
+                    listener.onPrivate(receiver, message);
+                    break;
+                }
+                case ROOM_NAME:
+                    room = readUtf(in);
+                    if (room == null) return;
+                    if (roomCommand.equals("ROOM")) {
+                        step = Step.ROOM_TEXT;
+                    } else {
+                        step = Step.TYPE;
+                        if (roomCommand.equals("JOIN")) {
+                            listener.onJoinRoom(room);
+                        } else {
+                            listener.onLeaveRoom(room);
+                        }
+                    }
+                    break;
+                case ROOM_TEXT: {
+                    String message = readUtf(in);
+                    if (message == null) return;
+                    step = Step.TYPE;
+                    listener.onRoomMessage(room, message);
+                    break;
+                }
+                case SEARCH_QUERY: {
+                    String query = readUtf(in);
+                    if (query == null) return;
+                    step = Step.TYPE;
+                    listener.onSearch(query);
+                    break;
+                }
+            }
+        }
+    }
+
+    /** Returns the next writeUTF string, or null if it is not complete yet. */
+    private String readUtf(ByteBuffer in) throws IOException {
+        if (utfLength < 0) {
+            if (!fill(in, 2)) return null;
+            utfLength = ((scratch[0] & 0xff) << 8) | (scratch[1] & 0xff);
+        }
+        if (!fill(in, 2 + utfLength)) return null;
+        String s = DataInputStream.readUTF(new DataInputStream(new ByteArrayInputStream(scratch, 0, scratchLength)));
+        utfLength = -1;
+        scratchLength = 0;
+        if (scratch.length > 8192) {
+            scratch = new byte[64]; // don't pin 64 KB per idle connection after one long line
+        }
+        return s;
+    }
+
+    /** Returns the int collected in scratch and empties it. */
+    private int takeInt() {
+        scratchLength = 0;
+        return scratchInt(0);
+    }
+
+    private int scratchInt(int offset) {
+        return ((scratch[offset] & 0xff) << 24) | ((scratch[offset + 1] & 0xff) << 16)
+                | ((scratch[offset + 2] & 0xff) << 8) | (scratch[offset + 3] & 0xff);
+    }
+
+    /** Copies bytes into scratch until it holds n of them. */
+    private boolean fill(ByteBuffer in, int n) {
+        if (scratch.length < n) {
+            byte[] bigger = new byte[Math.max(n, scratch.length * 2)];
+            System.arraycopy(scratch, 0, bigger, 0, scratchLength);
+            scratch = bigger;
+        }
+        int count = Math.min(in.remaining(), n - scratchLength);
+        in.get(scratch, scratchLength, count);
+        scratchLength += count;
+        return scratchLength == n;
+    }
+}
@@ -0,0 +1,95 @@
+import java.io.*;
+import java.nio.*;
+import java.util.*;
+
+/**
+ * Encodes outbound frames in the DataOutputStream format SimpleChatClient reads.
+ * Frames are read-only and encoded once, so a broadcast hands the same buffer to
+ * every recipient and each connection writes its own duplicate of it.
+ */
+final class Frames {
+    private Frames() {}
+
+    static ByteBuffer text(String msg) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(2 + utfLength(msg));
+        putUtf(buf, msg);
+        return buf.flip().asReadOnlyBuffer();
+    }
+
+    /** "FILE_BEGIN", transfer id, file name, size as a long. */
+    static ByteBuffer fileBegin(int id, String fileName, long size) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(4 + utfLength("FILE_BEGIN") + 4 + utfLength(fileName) + 8);
+        putUtf(buf, "FILE_BEGIN");
+        buf.putInt(id);
+        putUtf(buf, fileName);
+        buf.putLong(size);
+        return buf.flip().asReadOnlyBuffer();
+    }
+
+    /**
+     * "FILE_CHUNK", transfer id, offset of the chunk in the file, length. The chunk's
+     * bytes follow, sent from the spool.
+     */
+    static ByteBuffer fileChunkHeader(int id, long offset, int length) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(2 + utfLength("FILE_CHUNK") + 4 + 8 + 4);
+        putUtf(buf, "FILE_CHUNK");
+        buf.putInt(id);
+        buf.putLong(offset);
+        buf.putInt(length);
+        return buf.flip().asReadOnlyBuffer();
+    }
+
+    /** "FILE_ABORT", transfer id: the sender went away before the file was complete. */
+    static ByteBuffer fileAbort(int id) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(2 + utfLength("FILE_ABORT") + 4);
+        putUtf(buf, "FILE_ABORT");
+        buf.putInt(id);
+        return buf.flip().asReadOnlyBuffer();
+    }
+
+    /** Several frames as one buffer, so a backlog goes out in a few large writes. */
+    static ByteBuffer concat(List<ByteBuffer> frames) {
+        int length = 0;
+        for (ByteBuffer f : frames) {
+            length += f.remaining();
+        }
+        ByteBuffer buf = ByteBuffer.allocate(length);
+        for (ByteBuffer f : frames) {
+            buf.put(f.duplicate());
+        }
+        return buf.flip().asReadOnlyBuffer();
+    }
+
+    /** Length of s in modified UTF-8, as written by DataOutputStream.writeUTF. */
+    static int utfLength(String s) throws UTFDataFormatException {
+        int length = s.length();
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == 0 || c > 0x7f) {
+                length += c > 0x7ff ? 2 : 1;
+            }
+        }
+        if (length > 65535) {
+            throw new UTFDataFormatException("Encoded string too long: " + length + " bytes");
+        }
+        return length;
+    }
+
+    /** Writes s the way DataOutputStream.writeUTF does: a 2-byte length, then modified UTF-8. */
+    static void putUtf(ByteBuffer buf, String s) throws UTFDataFormatException {
+        buf.putShort((short) utfLength(s));
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c != 0 && c <= 0x7f) {
+                buf.put((byte) c);
+            } else if (c <= 0x7ff) {
+                buf.put((byte) (0xc0 | (c >> 6)));
+                buf.put((byte) (0x80 | (c & 0x3f)));
+            } else {
+                buf.put((byte) (0xe0 | (c >> 12)));
+                buf.put((byte) (0x80 | ((c >> 6) & 0x3f)));
+                buf.put((byte) (0x80 | (c & 0x3f)));
+            }
+        }
+    }
+}
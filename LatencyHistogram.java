@@ -0,0 +1,76 @@
+import java.util.concurrent.atomic.*;
+
+/**
+ * Counts durations in log-linear buckets, in the manner of HdrHistogram: each power of
+ * two is split into 16 buckets, so any recorded value is known to within about 6%
+ * whether it is microseconds or seconds. Recording is one atomic increment and never
+ * allocates, so it can sit on the fan-out path; the buckets cover every long and are
+ * never reset, so percentiles are over everything recorded since the server started.
+ */
+final class LatencyHistogram {
+    private static final int SUB_BITS = 4;
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+    /** Values below this each get their own bucket. */
+    private static final int LINEAR = SUB_COUNT * 2;
+
+    private final AtomicLongArray counts = new AtomicLongArray(LINEAR + (63 - SUB_BITS) * SUB_COUNT);
+    private final LongAdder total = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    void record(long nanos) {
+        if (nanos < 0) nanos = 0;
+        counts.incrementAndGet(bucket(nanos));
+        total.increment();
+        sum.add(nanos);
+        long m;
+        while (nanos > (m = max.get()) && !max.compareAndSet(m, nanos)) {
+            // retry
+        }
+    }
+
+    long count() {
+        return total.sum();
+    }
+
+    long sum() {
+        return sum.sum();
+    }
+
+    long max() {
+        return max.get();
+    }
+
+    /** The value below which fraction (0 to 1) of the recorded values fall, to the bucket's precision. */
+    long percentile(double fraction) {
+        long n = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            n += counts.get(i);
+        }
+        if (n == 0) return 0;
+        long rank = (long) Math.ceil(fraction * n);
+        long seen = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            seen += counts.get(i);
+            if (seen >= Math.max(1, rank)) {
+                return Math.min(upperBound(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    static int bucket(long v) {
+        if (v < LINEAR) return (int) v;
+        int exponent = 63 - Long.numberOfLeadingZeros(v); // at least SUB_BITS + 1
+        int sub = (int) (v >>> (exponent - SUB_BITS)) & (SUB_COUNT - 1);
+        return LINEAR + (exponent - SUB_BITS - 1) * SUB_COUNT + sub;
+    }
+
+    static long upperBound(int bucket) {
+        if (bucket < LINEAR) return bucket;
+        int exponent = (bucket - LINEAR) / SUB_COUNT + SUB_BITS + 1;
+        int sub = (bucket - LINEAR) % SUB_COUNT;
+        long width = 1L << (exponent - SUB_BITS);
+        return (1L << exponent) + (sub + 1) * width - 1;
+    }
+}
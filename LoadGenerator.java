@@ -0,0 +1,559 @@
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Headless load for a {@link ChatServer}: opens LOAD_USERS connections that log in with
+ * the binary protocol {@link SimpleChatClient} uses, then for LOAD_SECONDS has random
+ * users broadcast, send private messages, post to their room, move to another room and
+ * send files, each at its own rate per second across all users. Every message starts
+ * with the time it was sent, and as the same process receives it, every delivery gives
+ * an end-to-end latency. A line of throughput and latency is printed every
+ * LOAD_REPORT_SECONDS and percentiles over the whole run at the end.
+ *
+ * The server must let clients in without a password (no DB_URL, or CHAT_AUTH=off).
+ * Each user is a TCP connection from this machine, so past about 28,000 users the
+ * local port range has to be widened. Connections are driven by a few selector
+ * threads, so tens of thousands of users cost a handful of threads here.
+ */
+final class LoadGenerator {
+    private static final int BROADCAST = 0;
+    private static final int PRIVATE = 1;
+    private static final int ROOM = 2;
+    private static final String[] KINDS = {"broadcast", "private", "room"};
+
+    /** A user whose unsent frames pass this many bytes gets no more until they drain. */
+    private static final long MAX_UNSENT_BYTES = 1024 * 1024;
+    private static final byte[] FILE_CHUNK = new byte[SimpleChatClient.FILE_CHUNK_SIZE];
+
+    private final InetSocketAddress server = new InetSocketAddress(ServerConfig.env("CHAT_HOST", "localhost"), ServerConfig.envInt("CHAT_PORT", 7500));
+    private final int users = ServerConfig.envInt("LOAD_USERS", 1000);
+    private final int seconds = ServerConfig.envInt("LOAD_SECONDS", 30);
+    private final int connectRate = ServerConfig.envInt("LOAD_CONNECT_RATE", 2000);
+    private final int broadcastRate = ServerConfig.envInt("LOAD_BROADCASTS", 20);
+    private final int privateRate = ServerConfig.envInt("LOAD_PRIVATES", 500);
+    private final int roomRate = ServerConfig.envInt("LOAD_ROOM_MESSAGES", 200);
+    private final int churnRate = ServerConfig.envInt("LOAD_CHURN", 50);
+    private final int fileRate = ServerConfig.envInt("LOAD_FILES", 1);
+    private final int fileBytes = ServerConfig.envInt("LOAD_FILE_KB", 256) * 1024;
+    private final int roomCount = ServerConfig.envInt("LOAD_ROOMS", 50);
+    private final int textBytes = ServerConfig.envInt("LOAD_TEXT_BYTES", 100);
+    private final int reportSeconds = ServerConfig.envInt("LOAD_REPORT_SECONDS", 5);
+    private final int ioThreads = ServerConfig.envInt("LOAD_IO_THREADS", Runtime.getRuntime().availableProcessors());
+
+    private final User[] all = new User[users];
+    /** Server-assigned id of each user, 0 until the first user's list names them. */
+    private final AtomicIntegerArray ids = new AtomicIntegerArray(users);
+    private final AtomicInteger connected = new AtomicInteger();
+    private final LongAdder[] sent = adders(KINDS.length);
+    private final LongAdder[] delivered = adders(KINDS.length);
+    private final LongAdder roomChanges = new LongAdder();
+    private final LongAdder filesSent = new LongAdder();
+    private final LongAdder bytesIn = new LongAdder();
+    private final LongAdder fileBytesIn = new LongAdder();
+    private final LongAdder skipped = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+    private final LatencyHistogram[] latency = histograms();
+    private volatile LatencyHistogram[] recent = histograms();
+
+    public static void main(String[] args) throws Exception {
+        new LoadGenerator().run();
+        System.exit(0);
+    }
+
+    void run() throws Exception {
+        Reactor[] reactors = new Reactor[ioThreads];
+        for (int i = 0; i < reactors.length; i++) {
+            reactors[i] = new Reactor();
+            Thread t = new Thread(reactors[i], "load-io-" + i);
+            t.setDaemon(true);
+            t.start();
+        }
+        System.out.printf("Connecting %,d users to %s at %,d/s%n", users, server, connectRate);
+        long start = System.nanoTime();
+        for (int i = 0; i < users; i++) {
+            long due = start + (long) (i * 1e9 / connectRate);
+            long wait = due - System.nanoTime();
+            if (wait > 0) {
+                TimeUnit.NANOSECONDS.sleep(wait);
+            }
+            all[i] = new User(i, reactors[i % reactors.length]);
+            all[i].connect();
+        }
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (connected.get() + failures.intValue() < users && System.nanoTime() < deadline) {
+            Thread.sleep(50);
+        }
+        System.out.printf("%,d connected in %.1fs, %,d failed%n", connected.get(), (System.nanoTime() - start) / 1e9, failures.sum());
+        if (connected.get() == 0) return;
+
+        Thread driver = new Thread(this::drive, "load-driver");
+        driver.setDaemon(true);
+        driver.start();
+        long runStart = System.nanoTime();
+        long[] lastSent = new long[KINDS.length];
+        long[] lastDelivered = new long[KINDS.length];
+        long lastBytes = 0;
+        long lastFileBytes = 0;
+        long last = runStart;
+        for (int elapsed = reportSeconds; elapsed <= seconds; elapsed += reportSeconds) {
+            Thread.sleep(Math.max(0, TimeUnit.NANOSECONDS.toMillis(runStart + TimeUnit.SECONDS.toNanos(elapsed) - System.nanoTime())));
+            long now = System.nanoTime();
+            double interval = (now - last) / 1e9;
+            LatencyHistogram[] window = recent;
+            recent = histograms();
+            StringBuilder line = new StringBuilder(String.format("%4ds %,d users |", elapsed, connected.get()));
+            for (int k = 0; k < KINDS.length; k++) {
+                long s = sent[k].sum();
+                long d = delivered[k].sum();
+                line.append(String.format(" %s %,.0f/s -> %,.0f/s p50 %s p99 %s |", KINDS[k], (s - lastSent[k]) / interval,
+                        (d - lastDelivered[k]) / interval, millis(window[k].percentile(0.5)), millis(window[k].percentile(0.99))));
+                lastSent[k] = s;
+                lastDelivered[k] = d;
+            }
+            long bytes = bytesIn.sum();
+            long files = fileBytesIn.sum();
+            line.append(String.format(" in %.1f MB/s (files %.1f MB/s)", (bytes - lastBytes) / interval / 1e6, (files - lastFileBytes) / interval / 1e6));
+            lastBytes = bytes;
+            lastFileBytes = files;
+            last = now;
+            System.out.println(line);
+        }
+        summary((System.nanoTime() - runStart) / 1e9);
+    }
+
+    private void summary(double elapsed) {
+        System.out.printf("%nOver %.1fs with %,d users (%,d disconnected or failed):%n", elapsed, connected.get(), failures.sum());
+        for (int k = 0; k < KINDS.length; k++) {
+            LatencyHistogram h = latency[k];
+            System.out.printf("  %-9s sent %,10d  delivered %,12d (%,.0f/s)  latency ms p50 %s  p90 %s  p99 %s  p99.9 %s  max %s%n",
+                    KINDS[k], sent[k].sum(), delivered[k].sum(), delivered[k].sum() / elapsed,
+                    millis(h.percentile(0.5)), millis(h.percentile(0.9)), millis(h.percentile(0.99)), millis(h.percentile(0.999)), millis(h.max()));
+        }
+        System.out.printf("  rooms     %,d changes; files %,d sent, %.1f MB received (%.1f MB/s)%n",
+                roomChanges.sum(), filesSent.sum(), fileBytesIn.sum() / 1e6, fileBytesIn.sum() / 1e6 / elapsed);
+        System.out.printf("  %.1f MB received in all; %,d actions skipped (target unknown or unsent backlog)%n", bytesIn.sum() / 1e6, skipped.sum());
+    }
+
+    /** Issues the configured actions from one thread, in 10 ms steps. */
+    private void drive() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int[] rates = {broadcastRate, privateRate, roomRate, churnRate, fileRate};
+        double[] owed = new double[rates.length];
+        long last = System.nanoTime();
+        while (true) {
+            try {
+                Thread.sleep(10);
+            } catch (InterruptedException e) {
+                return;
+            }
+            long now = System.nanoTime();
+            double step = (now - last) / 1e9;
+            last = now;
+            for (int action = 0; action < rates.length; action++) {
+                owed[action] += rates[action] * step;
+                for (; owed[action] >= 1; owed[action]--) {
+                    User user = all[random.nextInt(users)];
+                    if (!user.ready) {
+                        skipped.increment();
+                        continue;
+                    }
+                    try {
+                        act(action, user, random);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e); // not thrown by a ByteArrayOutputStream
+                    }
+                }
+            }
+        }
+    }
+
+    private void act(int action, User user, Random random) throws IOException {
+        ByteArrayOutputStream payload = new ByteArrayOutputStream(textBytes + 32);
+        DataOutputStream out = new DataOutputStream(payload);
+        switch (action) {
+            case BROADCAST:
+                out.write(text());
+                user.send(Wire.TEXT, payload, BROADCAST);
+                break;
+            case PRIVATE: {
+                int target = ids.get(random.nextInt(users));
+                if (target == 0) {
+                    skipped.increment();
+                    return;
+                }
+                Wire.writeVarint(out, target);
+                out.write(text());
+                user.send(Wire.PRIVATE, payload, PRIVATE);
+                break;
+            }
+            case ROOM:
+                Wire.writeString(out, room(user.room));
+                out.write(text());
+                user.send(Wire.ROOM, payload, ROOM);
+                break;
+            case 3: {
+                int next = random.nextInt(roomCount);
+                out.write(Wire.utf8(room(user.room)));
+                user.send(Wire.LEAVE, payload, -1);
+                out.write(Wire.utf8(room(next)));
+                user.send(Wire.JOIN, payload, -1);
+                user.room = next;
+                roomChanges.increment();
+                break;
+            }
+            default: {
+                int target = ids.get(random.nextInt(users));
+                if (target == 0) {
+                    skipped.increment();
+                    return;
+                }
+                int id = ++user.files;
+                Wire.writeVarint(out, id);
+                out.writeByte(Wire.TO_USER);
+                Wire.writeVarint(out, target);
+                Wire.writeVarint(out, fileBytes);
+                out.write(Wire.utf8("load-" + id + ".bin"));
+                user.send(Wire.FILE_BEGIN, payload, -1);
+                for (int offset = 0; offset < fileBytes; offset += FILE_CHUNK.length) {
+                    Wire.writeVarint(out, id);
+                    out.write(FILE_CHUNK, 0, Math.min(FILE_CHUNK.length, fileBytes - offset));
+                    user.send(Wire.FILE_CHUNK, payload, -1);
+                }
+                filesSent.increment();
+            }
+        }
+    }
+
+    /** "~", the send time in nanoseconds, a space, then padding up to LOAD_TEXT_BYTES. */
+    private byte[] text() {
+        byte[] stamp = ("~" + System.nanoTime() + " ").getBytes(StandardCharsets.US_ASCII);
+        byte[] text = Arrays.copyOf(stamp, Math.max(stamp.length, textBytes));
+        Arrays.fill(text, stamp.length, text.length, (byte) 'x');
+        return text;
+    }
+
+    private static String room(int index) {
+        return "load" + index;
+    }
+
+    private static String millis(long nanos) {
+        return String.format("%.2f", nanos / 1e6);
+    }
+
+    private static LongAdder[] adders(int n) {
+        LongAdder[] adders = new LongAdder[n];
+        for (int i = 0; i < n; i++) {
+            adders[i] = new LongAdder();
+        }
+        return adders;
+    }
+
+    private static LatencyHistogram[] histograms() {
+        LatencyHistogram[] h = new LatencyHistogram[KINDS.length];
+        for (int i = 0; i < h.length; i++) {
+            h[i] = new LatencyHistogram();
+        }
+        return h;
+    }
+
+    private void record(int kind, long sentNanos) {
+        long nanos = System.nanoTime() - sentNanos;
+        delivered[kind].increment();
+        latency[kind].record(nanos);
+        recent[kind].record(nanos);
+    }
+
+    final class Reactor implements Runnable {
+        private final Selector selector;
+        private final Queue<User> registrations = new ConcurrentLinkedQueue<>();
+        private final Queue<User> writeRequests = new ConcurrentLinkedQueue<>();
+
+        Reactor() throws IOException {
+            selector = Selector.open();
+        }
+
+        void register(User user) {
+            registrations.add(user);
+            selector.wakeup();
+        }
+
+        void requestWrite(User user) {
+            writeRequests.add(user);
+            selector.wakeup();
+        }
+
+        public void run() {
+            while (true) {
+                try {
+                    selector.select();
+                } catch (IOException e) {
+                    continue;
+                }
+                User u;
+                while ((u = registrations.poll()) != null) {
+                    try {
+                        u.key = u.channel.register(selector, SelectionKey.OP_CONNECT, u);
+                    } catch (IOException e) {
+                        u.close();
+                    }
+                }
+                while ((u = writeRequests.poll()) != null) {
+                    u.flush();
+                }
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    User user = (User) key.attachment();
+                    try {
+                        if (key.isValid() && key.isConnectable()) {
+                            user.connected();
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            user.flush();
+                        }
+                        if (key.isValid() && key.isReadable()) {
+                            user.read();
+                        }
+                    } catch (IOException e) {
+                        user.close();
+                    }
+                }
+            }
+        }
+    }
+
+    /** One simulated client. Frames are queued by the driver and written and read on its reactor's thread. */
+    final class User {
+        final int index;
+        final Reactor reactor;
+        SocketChannel channel;
+        SelectionKey key;
+        volatile boolean ready;
+        /** Driver thread only. */
+        int room;
+        int files;
+        private final ArrayDeque<ByteBuffer> unsent = new ArrayDeque<>();
+        private long unsentBytes;
+        private final AtomicBoolean writeScheduled = new AtomicBoolean();
+        private ByteBuffer in = ByteBuffer.allocate(16 * 1024);
+        /** Bytes of a file chunk still to be skipped. */
+        private long skip;
+        private boolean closed;
+
+        User(int index, Reactor reactor) {
+            this.index = index;
+            this.reactor = reactor;
+            this.room = index % roomCount;
+        }
+
+        void connect() throws IOException {
+            channel = SocketChannel.open();
+            channel.configureBlocking(false);
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            channel.connect(server);
+            reactor.register(this);
+        }
+
+        void connected() throws IOException {
+            channel.finishConnect();
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeUTF("PROTO");
+            out.writeUTF(String.valueOf(Wire.VERSION));
+            out.writeUTF("AUTH");
+            out.writeUTF("u" + index);
+            out.writeUTF("x");
+            queue(ByteBuffer.wrap(bytes.toByteArray()));
+            key.interestOps(SelectionKey.OP_READ);
+            flush();
+        }
+
+        /** Frames payload as op and queues it, emptying payload; kind is what it counts as sent, or -1. */
+        void send(byte op, ByteArrayOutputStream payload, int kind) throws IOException {
+            ByteArrayOutputStream frame = new ByteArrayOutputStream(payload.size() + 6);
+            Wire.writeFrame(new DataOutputStream(frame), op, payload);
+            synchronized (this) {
+                if (unsentBytes > MAX_UNSENT_BYTES) {
+                    skipped.increment();
+                    return;
+                }
+                queue(ByteBuffer.wrap(frame.toByteArray()));
+            }
+            if (kind >= 0) {
+                sent[kind].increment();
+            }
+            if (writeScheduled.compareAndSet(false, true)) {
+                reactor.requestWrite(this);
+            }
+        }
+
+        private synchronized void queue(ByteBuffer frame) {
+            unsent.add(frame);
+            unsentBytes += frame.remaining();
+        }
+
+        /** Reactor thread only. */
+        void flush() {
+            writeScheduled.set(false);
+            try {
+                synchronized (this) {
+                    ByteBuffer frame;
+                    while ((frame = unsent.peek()) != null) {
+                        int n = channel.write(frame);
+                        unsentBytes -= n;
+                        if (frame.hasRemaining()) break;
+                        unsent.poll();
+                    }
+                    if (key != null && key.isValid()) {
+                        key.interestOps(unsent.isEmpty() ? SelectionKey.OP_READ : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                    }
+                }
+            } catch (IOException e) {
+                close();
+            }
+        }
+
+        /** Reactor thread only. */
+        void read() throws IOException {
+            int n = channel.read(in);
+            if (n < 0) throw new EOFException();
+            bytesIn.add(n);
+            in.flip();
+            while (in.hasRemaining()) {
+                if (skip > 0) {
+                    int s = (int) Math.min(skip, in.remaining());
+                    in.position(in.position() + s);
+                    skip -= s;
+                    continue;
+                }
+                int start = in.position();
+                if (!ready) {
+                    if (in.remaining() < 2) break;
+                    int length = in.getShort(start) & 0xffff;
+                    if (in.remaining() < 2 + length) break;
+                    String reply = new String(in.array(), start + 2, length, StandardCharsets.UTF_8);
+                    in.position(start + 2 + length);
+                    if (!reply.startsWith("AUTH_OK ") || !reply.endsWith(" v" + Wire.VERSION)) {
+                        throw new IOException("Login refused: " + reply);
+                    }
+                    ByteArrayOutputStream payload = new ByteArrayOutputStream();
+                    payload.write(Wire.utf8(room(room)));
+                    send(Wire.JOIN, payload, -1);
+                    ready = true;
+                    connected.incrementAndGet();
+                    continue;
+                }
+                byte op = in.get();
+                long length = varint();
+                if (length < 0) {
+                    in.position(start);
+                    break;
+                }
+                if (op == Wire.FILE_CHUNK) {
+                    fileBytesIn.add(length);
+                    skip = length;
+                    continue;
+                }
+                if (in.remaining() < length) {
+                    in.position(start);
+                    if (length + 16 > in.capacity()) {
+                        in = ByteBuffer.allocate((int) Math.max(length + 16, in.capacity() * 2L)).put(in);
+                        in.flip();
+                    }
+                    break;
+                }
+                int end = in.position() + (int) length;
+                frame(op, end);
+                in.position(end);
+            }
+            in.compact();
+        }
+
+        /** The next varint in the buffer, or -1 if it is not all there. */
+        private long varint() {
+            long v = 0;
+            for (int shift = 0; shift < 64 && in.hasRemaining(); shift += 7) {
+                int b = in.get() & 0xff;
+                v |= (long) (b & 0x7f) << shift;
+                if (b < 0x80) return v;
+            }
+            return -1;
+        }
+
+        private void frame(byte op, int end) throws IOException {
+            switch (op) {
+                case Wire.MESSAGE: {
+                    byte kind = in.get();
+                    varint(); // sender
+                    if (kind == Wire.IN_ROOM) {
+                        long room = varint();
+                        in.position(in.position() + (int) room);
+                    }
+                    if (kind == Wire.NOTICE || in.position() >= end || in.get() != '~') return;
+                    long sentNanos = 0;
+                    byte b;
+                    while (in.position() < end && (b = in.get()) >= '0' && b <= '9') {
+                        sentNanos = sentNanos * 10 + (b - '0');
+                    }
+                    record(kind == Wire.BROADCAST ? BROADCAST : kind == Wire.DIRECT ? PRIVATE : ROOM, sentNanos);
+                    break;
+                }
+                case Wire.USER_LIST:
+                case Wire.USER_DELTA:
+                    if (index == 0) {
+                        learnIds(op, end); // every user gets the same lists; one is enough
+                    }
+                    break;
+                case Wire.PING:
+                    send(Wire.PONG, new ByteArrayOutputStream(), -1);
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        private void learnIds(byte op, int end) {
+            while (in.position() < end) {
+                boolean online = op == Wire.USER_LIST || in.get() != 0;
+                int id = (int) varint();
+                if (!online) continue;
+                int length = (int) varint();
+                String name = new String(in.array(), in.position(), length, StandardCharsets.UTF_8);
+                in.position(in.position() + length);
+                if (name.startsWith("u")) {
+                    try {
+                        int i = Integer.parseInt(name.substring(1));
+                        if (i >= 0 && i < users) {
+                            ids.set(i, id);
+                        }
+                    } catch (NumberFormatException e) {
+                        // not one of ours
+                    }
+                }
+            }
+        }
+
+        /** Reactor thread only. */
+        void close() {
+            if (closed) return;
+            closed = true;
+            failures.increment();
+            if (ready) {
+                ready = false;
+                connected.decrementAndGet();
+            }
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // already gone
+            }
+        }
+    }
+}
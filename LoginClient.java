@@ -1,15 +1,13 @@
 import javax.swing.*;
 import java.awt.*;
-import java.sql.*;
+import java.io.*;
 
 public class LoginClient extends JFrame {
     JTextField usernameField;
     JPasswordField passwordField;
     JButton loginButton, registerButton;
     JLabel statusLabel;
-    String url=System.getenv("DB_URL");
-    String pass=System.getenv("DB_PASS");
-    String user_sql=System.getenv("DB_USER");
+    final AuthService auth = new AuthService();
 
     public LoginClient() {
         setTitle("Login Page");
@@ -37,12 +35,12 @@ public class LoginClient extends JFrame {
             String user = usernameField.getText();
             String pass = new String(passwordField.getPassword());
 
-            if (authenticate(user, pass)) {
+            try {
+                new SimpleChatClient(user, pass); // server checks the password and opens the chat client
                 statusLabel.setText("Login Successful!");
                 dispose(); // Close login window
-                new SimpleChatClient(user); // Open chat client
-            } else {
-                statusLabel.setText("Invalid credentials.");
+            } catch (IOException ex) {
+                statusLabel.setText(ex.getMessage() + ".");
             }
         });
 
@@ -56,91 +54,21 @@ public class LoginClient extends JFrame {
                 return;
             }
 
-            if (userExists(user)) {
-                statusLabel.setText("Username already exists.");
-            } else {
-                if (registerUser(user, pass)) {
+            switch (auth.register(user, pass)) {
+                case REGISTERED:
                     statusLabel.setText("User registered. You can login.");
-                } else {
+                    break;
+                case DUPLICATE:
+                    statusLabel.setText("Username already exists.");
+                    break;
+                default:
                     statusLabel.setText("Registration failed.");
-                }
             }
         });
 
         setVisible(true);
     }
 
-    private boolean userExists(String username) {
-        try {
-            Class.forName("com.mysql.cj.jdbc.Driver");
-            Connection conn = DriverManager.getConnection(url,user_sql,pass);
-
-            String query = "SELECT * FROM users WHERE username = ?";
-            PreparedStatement pst = conn.prepareStatement(query);
-            pst.setString(1, username);
-            ResultSet rs = pst.executeQuery();
-
-            boolean exists = rs.next();
-
-            rs.close();
-            pst.close();
-            conn.close();
-
-            return exists;
-
-        } catch (Exception e) {
-            e.printStackTrace();
-            return false;
-        }
-    }
-
-    private boolean authenticate(String username, String password) {
-        try {
-            Class.forName("com.mysql.cj.jdbc.Driver");
-            Connection conn = DriverManager.getConnection(url,user_sql,pass);
-
-            String query = "SELECT * FROM users WHERE username = ? AND password = ?";
-            PreparedStatement pst = conn.prepareStatement(query);
-            pst.setString(1, username);
-            pst.setString(2, password);
-            ResultSet rs = pst.executeQuery();
-
-            boolean success = rs.next();
-
-            rs.close();
-            pst.close();
-            conn.close();
-
-            return success;
-
-        } catch (Exception e) {
-            e.printStackTrace();
-            return false;
-        }
-    }
-
-    private boolean registerUser(String username, String password) {
-        try {
-            Class.forName("com.mysql.cj.jdbc.Driver");
-            Connection conn = DriverManager.getConnection(url,user_sql,pass);
-
-            String query = "INSERT INTO users (username, password) VALUES (?, ?)";
-            PreparedStatement pst = conn.prepareStatement(query);
-            pst.setString(1, username);
-            pst.setString(2, password);
-
-            int rows = pst.executeUpdate();
-
-            pst.close();
-            conn.close();
-
-            return rows > 0;
-
-        } catch (Exception e) {
-            e.printStackTrace();
-            return false;
-        }
-    }
     public static void main(String[] args) {
          SwingUtilities.invokeLater(()->new LoginClient());
     }
@@ -0,0 +1,236 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Private messages and files for users who are not connected, kept on disk until
+ * they log in. Each user has a directory holding an append-only messages.log and the
+ * bodies of queued files. Storage per user is capped, and entries older than the TTL
+ * are dropped when the mailbox is drained or swept.
+ *
+ * messages.log records: long storedAt, byte kind, UTF sender, then UTF text for a
+ * message or UTF file name, UTF stored file, long size for a file.
+ */
+final class Mailboxes {
+    private static final byte TEXT = 0;
+    private static final byte FILE = 1;
+
+    static final class Item {
+        final String sender;
+        final String text;
+        final String fileName;
+        final Path file;
+        final long size;
+
+        Item(String sender, String text, String fileName, Path file, long size) {
+            this.sender = sender;
+            this.text = text;
+            this.fileName = fileName;
+            this.file = file;
+            this.size = size;
+        }
+
+        boolean isFile() {
+            return file != null;
+        }
+    }
+
+    /** A file being received for an offline user; becomes an Item once committed. */
+    final class PendingFile {
+        private final String user;
+        private final String sender;
+        private final String fileName;
+        private final Path path;
+        private final FileChannel channel;
+        private final long size;
+
+        private PendingFile(String user, String sender, String fileName, Path path, long size) throws IOException {
+            this.user = user;
+            this.sender = sender;
+            this.fileName = fileName;
+            this.path = path;
+            this.size = size;
+            this.channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        }
+
+        void write(ByteBuffer data) throws IOException {
+            ByteBuffer buf = data.duplicate();
+            while (buf.hasRemaining()) {
+                channel.write(buf);
+            }
+        }
+
+        void commit() throws IOException {
+            channel.close();
+            synchronized (lockFor(boxName(user))) {
+                append(user, out -> {
+                    out.writeByte(FILE);
+                    out.writeUTF(sender);
+                    out.writeUTF(fileName);
+                    out.writeUTF(path.getFileName().toString());
+                    out.writeLong(size);
+                });
+            }
+        }
+
+        void discard() {
+            try {
+                channel.close();
+                Files.deleteIfExists(path);
+            } catch (IOException e) {}
+        }
+    }
+
+    private interface RecordWriter {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    private final Path dir;
+    private final long maxBytesPerUser;
+    private final long ttlMillis;
+    private final Map<String, Object> locks = new ConcurrentHashMap<>();
+
+    Mailboxes(Path dir, long maxBytesPerUser, long ttlMillis) throws IOException {
+        this.dir = dir;
+        this.maxBytesPerUser = maxBytesPerUser;
+        this.ttlMillis = ttlMillis;
+        Files.createDirectories(dir);
+    }
+
+    /**
+     * Queues a private message; returns false if the user's mailbox is full. Throws
+     * UTFDataFormatException, before storing anything, for a text writeUTF cannot hold.
+     */
+    boolean storeText(String user, String sender, String text) throws IOException {
+        Frames.utfLength(text);
+        synchronized (lockFor(boxName(user))) {
+            if (usage(user) + text.length() * 3L + 64 > maxBytesPerUser) return false;
+            append(user, out -> {
+                out.writeByte(TEXT);
+                out.writeUTF(sender);
+                out.writeUTF(text);
+            });
+            return true;
+        }
+    }
+
+    /** Starts queueing a private file, or returns null if it would not fit in the mailbox. */
+    PendingFile storeFile(String user, String sender, String fileName, long size) throws IOException {
+        synchronized (lockFor(boxName(user))) {
+            if (usage(user) + size > maxBytesPerUser) return null;
+            Path box = Files.createDirectories(boxOf(user));
+            Path path = Files.createTempFile(box, "file-", ".bin");
+            Files.delete(path); // PendingFile creates it
+            return new PendingFile(user, sender, fileName, path, size);
+        }
+    }
+
+    boolean hasMail(String user) {
+        return Files.exists(boxOf(user).resolve("messages.log"));
+    }
+
+    /**
+     * Takes everything queued for the user, oldest first. Expired entries are
+     * skipped and their files deleted; the caller owns the returned files.
+     */
+    List<Item> drain(String user) throws IOException {
+        List<Item> items = new ArrayList<>();
+        Path log = boxOf(user).resolve("messages.log");
+        byte[] records;
+        synchronized (lockFor(boxName(user))) {
+            if (!Files.exists(log)) return items;
+            records = Files.readAllBytes(log);
+            Files.delete(log);
+        }
+        long oldest = System.currentTimeMillis() - ttlMillis;
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(records));
+        while (in.available() > 0) {
+            long storedAt = in.readLong();
+            byte kind = in.readByte();
+            String sender = in.readUTF();
+            Item item;
+            if (kind == TEXT) {
+                item = new Item(sender, in.readUTF(), null, null, 0);
+            } else {
+                String fileName = in.readUTF();
+                Path file = boxOf(user).resolve(in.readUTF());
+                item = new Item(sender, null, fileName, file, in.readLong());
+            }
+            if (storedAt < oldest) {
+                if (item.isFile()) {
+                    Files.deleteIfExists(item.file);
+                }
+                continue;
+            }
+            items.add(item);
+        }
+        return items;
+    }
+
+    /** Deletes mailboxes nobody has written to within the TTL, and emptied ones. */
+    void sweep() {
+        long oldest = System.currentTimeMillis() - ttlMillis;
+        try (DirectoryStream<Path> boxes = Files.newDirectoryStream(dir)) {
+            for (Path box : boxes) {
+                Path log = box.resolve("messages.log");
+                synchronized (lockFor(box.getFileName().toString())) {
+                    if (Files.exists(log) ? Files.getLastModifiedTime(log).toMillis() < oldest
+                            : Files.getLastModifiedTime(box).toMillis() < oldest) {
+                        deleteBox(box);
+                    }
+                }
+            }
+        } catch (IOException e) {}
+    }
+
+    private void append(String user, RecordWriter writer) throws IOException {
+        Path box = Files.createDirectories(boxOf(user));
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                Files.newOutputStream(box.resolve("messages.log"), StandardOpenOption.CREATE, StandardOpenOption.APPEND)))) {
+            out.writeLong(System.currentTimeMillis());
+            writer.write(out);
+        }
+    }
+
+    private long usage(String user) throws IOException {
+        Path box = boxOf(user);
+        if (!Files.isDirectory(box)) return 0;
+        long total = 0;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(box)) {
+            for (Path f : files) {
+                total += Files.size(f);
+            }
+        }
+        return total;
+    }
+
+    private static void deleteBox(Path box) throws IOException {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(box)) {
+            for (Path f : files) {
+                Files.deleteIfExists(f);
+            }
+        }
+        Files.deleteIfExists(box);
+    }
+
+    private Object lockFor(String box) {
+        return locks.computeIfAbsent(box, k -> new Object());
+    }
+
+    private Path boxOf(String user) {
+        return dir.resolve(boxName(user));
+    }
+
+    /** Hex of the UTF-8 name, so any user name is a safe directory name. */
+    private static String boxName(String user) {
+        StringBuilder sb = new StringBuilder();
+        for (byte b : user.getBytes(StandardCharsets.UTF_8)) {
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,367 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.*;
+import java.util.zip.*;
+
+/**
+ * Append-only message history on disk. Records go into fixed-size memory-mapped
+ * segment files (00000000.log, 00000001.log, ...), so an append is a copy into the
+ * page cache; a background thread forces dirty segments to disk every fsync
+ * interval instead of once per message. An in-memory index per conversation
+ * (timestamps and record positions) answers "last N" and "since t" with a binary
+ * search and reads only the matching records. The index is rebuilt from the
+ * segments at startup, stopping at the first torn or zero record. A searchable log
+ * also feeds every record, recovered ones included, to a {@link SearchIndex}.
+ *
+ * Record layout: int length, int CRC32 of the rest, long timestamp, then
+ * conversation and sender as short-length UTF-8 and text as int-length UTF-8.
+ */
+final class MessageLog implements Closeable {
+    /** Conversation key of the shared chat room. */
+    static final String ROOM = "*";
+
+    static final class Entry {
+        final long timestamp;
+        final String conversation;
+        final String sender;
+        final String text;
+
+        Entry(long timestamp, String conversation, String sender, String text) {
+            this.timestamp = timestamp;
+            this.conversation = conversation;
+            this.sender = sender;
+            this.text = text;
+        }
+
+        boolean isPrivate() {
+            return conversation.startsWith("@");
+        }
+
+        /** The room the message was posted in, or null if it was not posted in a room. */
+        String room() {
+            return conversation.startsWith("#") ? conversation.substring(1) : null;
+        }
+    }
+
+    private final Path dir;
+    private final int segmentBytes;
+    private final List<MappedByteBuffer> segments = new CopyOnWriteArrayList<>();
+    private final Map<String, ConversationIndex> index = new ConcurrentHashMap<>();
+    private final Map<String, Set<String>> conversationsByUser = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService flusher;
+    private final SearchIndex search;
+    private final CRC32 crc = new CRC32();
+    private MappedByteBuffer active;
+    private long lastTimestamp;
+    private volatile boolean dirty;
+
+    MessageLog(Path dir, int segmentBytes, long fsyncMillis) throws IOException {
+        this(dir, segmentBytes, fsyncMillis, false);
+    }
+
+    MessageLog(Path dir, int segmentBytes, long fsyncMillis, boolean searchable) throws IOException {
+        this.dir = dir;
+        this.segmentBytes = segmentBytes;
+        this.search = searchable ? new SearchIndex(this::read) : null;
+        Files.createDirectories(dir);
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, "*.log")) {
+            stream.forEach(files::add);
+        }
+        Collections.sort(files);
+        for (Path file : files) {
+            MappedByteBuffer segment = map(file);
+            segments.add(segment);
+            recover(segments.size() - 1, segment);
+        }
+        if (segments.isEmpty()) {
+            roll();
+        } else {
+            active = segments.get(segments.size() - 1);
+        }
+        flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "chat-history-fsync");
+            t.setDaemon(true);
+            return t;
+        });
+        flusher.scheduleWithFixedDelay(this::force, fsyncMillis, fsyncMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /** Key for the private conversation between two users, the same whichever of them sends. */
+    static String privateConversation(String a, String b) {
+        return a.compareTo(b) < 0 ? "@" + a + "\u0000" + b : "@" + b + "\u0000" + a;
+    }
+
+    /** Whether user is one of the two people in a private conversation key. */
+    static boolean isParticipant(String conversation, String user) {
+        if (!conversation.startsWith("@")) return false;
+        int split = conversation.indexOf('\u0000');
+        return conversation.substring(1, split).equals(user) || conversation.substring(split + 1).equals(user);
+    }
+
+    /** Appends a message and returns the timestamp it was stored with. */
+    synchronized long append(String conversation, String sender, String text) throws IOException {
+        byte[] c = conversation.getBytes(StandardCharsets.UTF_8);
+        byte[] s = sender.getBytes(StandardCharsets.UTF_8);
+        byte[] t = text.getBytes(StandardCharsets.UTF_8);
+        int length = 4 + 8 + 2 + c.length + 2 + s.length + 4 + t.length;
+        if (c.length > 65535 || s.length > 65535 || 4 + length + 4 > segmentBytes) {
+            throw new IOException("Message too large for the history log");
+        }
+        if (active.remaining() < 4 + length + 4) {
+            roll();
+        }
+        long timestamp = Math.max(System.currentTimeMillis(), lastTimestamp);
+        lastTimestamp = timestamp;
+
+        int start = active.position();
+        active.putInt(length).putInt(0).putLong(timestamp);
+        active.putShort((short) c.length).put(c);
+        active.putShort((short) s.length).put(s);
+        active.putInt(t.length).put(t);
+        crc.reset();
+        crc.update(active.duplicate().position(start + 8).limit(active.position()));
+        active.putInt(start + 4, (int) crc.getValue());
+        dirty = true;
+
+        long position = position(segments.size() - 1, start);
+        indexRecord(conversation, timestamp, position);
+        if (search != null) {
+            search.add(position);
+        }
+        return timestamp;
+    }
+
+    /** The last n messages of every conversation the user is part of, the room included, oldest first. */
+    List<Entry> recentFor(String user, int n) {
+        List<Entry> merged = new ArrayList<>();
+        for (String conversation : conversationsOf(user)) {
+            ConversationIndex ci = index.get(conversation);
+            if (ci != null) {
+                for (long position : ci.last(n)) {
+                    merged.add(read(position));
+                }
+            }
+        }
+        return newest(merged, n);
+    }
+
+    /** Messages since timestamp (inclusive) in the user's conversations, at most max of the newest, oldest first. */
+    List<Entry> sinceFor(String user, long timestamp, int max) {
+        List<Entry> merged = new ArrayList<>();
+        for (String conversation : conversationsOf(user)) {
+            ConversationIndex ci = index.get(conversation);
+            if (ci != null) {
+                for (long position : ci.since(timestamp, max)) {
+                    merged.add(read(position));
+                }
+            }
+        }
+        return newest(merged, max);
+    }
+
+    boolean isSearchable() {
+        return search != null;
+    }
+
+    /** The newest max messages matching query in conversations visible accepts, oldest first. */
+    List<Entry> search(SearchIndex.Query query, Predicate<String> visible, int max) {
+        List<Entry> found = new ArrayList<>();
+        for (long position : search.search(query, visible, max)) {
+            found.add(read(position));
+        }
+        Collections.reverse(found);
+        return found;
+    }
+
+    private List<String> conversationsOf(String user) {
+        List<String> conversations = new ArrayList<>(conversationsByUser.getOrDefault(user, Collections.emptySet()));
+        conversations.add(ROOM);
+        return conversations;
+    }
+
+    private static List<Entry> newest(List<Entry> entries, int n) {
+        entries.sort(Comparator.comparingLong(e -> e.timestamp));
+        return entries.size() <= n ? entries : entries.subList(entries.size() - n, entries.size());
+    }
+
+    private void indexRecord(String conversation, long timestamp, long position) {
+        index.computeIfAbsent(conversation, k -> {
+            if (k.startsWith("@")) {
+                String[] members = k.substring(1).split("\u0000", 2);
+                for (String member : members) {
+                    conversationsByUser.computeIfAbsent(member, u -> ConcurrentHashMap.newKeySet()).add(k);
+                }
+            }
+            return new ConversationIndex();
+        }).add(timestamp, position);
+    }
+
+    private static long position(int segment, int offset) {
+        return ((long) segment << 32) | offset;
+    }
+
+    private Entry read(long position) {
+        ByteBuffer buf = segments.get((int) (position >>> 32)).duplicate();
+        buf.position((int) position + 8);
+        return readRecord(buf);
+    }
+
+    private static Entry readRecord(ByteBuffer buf) {
+        long timestamp = buf.getLong();
+        String conversation = readString(buf, buf.getShort() & 0xffff);
+        String sender = readString(buf, buf.getShort() & 0xffff);
+        String text = readString(buf, buf.getInt());
+        return new Entry(timestamp, conversation, sender, text);
+    }
+
+    private static String readString(ByteBuffer buf, int length) {
+        byte[] bytes = new byte[length];
+        buf.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /** Indexes the valid records of a segment and leaves its position after the last one. */
+    private void recover(int segmentIndex, MappedByteBuffer segment) {
+        CRC32 check = new CRC32();
+        int pos = 0;
+        while (pos + 8 <= segment.limit()) {
+            int length = segment.getInt(pos);
+            if (length < 4 + 8 || pos + 4 + length > segment.limit()) break;
+            check.reset();
+            check.update(segment.duplicate().position(pos + 8).limit(pos + 4 + length));
+            if ((int) check.getValue() != segment.getInt(pos + 4)) break;
+            Entry e = readRecord(segment.duplicate().position(pos + 8));
+            lastTimestamp = Math.max(lastTimestamp, e.timestamp);
+            indexRecord(e.conversation, e.timestamp, position(segmentIndex, pos));
+            if (search != null) {
+                search.add(position(segmentIndex, pos));
+            }
+            pos += 4 + length;
+        }
+        segment.position(pos);
+    }
+
+    private void roll() throws IOException {
+        if (active != null) {
+            active.force();
+        }
+        active = map(dir.resolve(String.format("%08d.log", segments.size())));
+        segments.add(active);
+    }
+
+    private MappedByteBuffer map(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentBytes);
+        }
+    }
+
+    private void force() {
+        if (!dirty) return;
+        dirty = false;
+        MappedByteBuffer segment;
+        synchronized (this) {
+            segment = active;
+        }
+        segment.force();
+    }
+
+    public void close() {
+        if (search != null) {
+            search.close();
+        }
+        flusher.shutdown();
+        dirty = true;
+        force();
+    }
+
+    /** Timestamps and record positions of one conversation, in append order. */
+    private static final class ConversationIndex {
+        private long[] timestamps = new long[16];
+        private long[] positions = new long[16];
+        private int size;
+
+        synchronized void add(long timestamp, long position) {
+            if (size == timestamps.length) {
+                timestamps = Arrays.copyOf(timestamps, size * 2);
+                positions = Arrays.copyOf(positions, size * 2);
+            }
+            timestamps[size] = timestamp;
+            positions[size] = position;
+            size++;
+        }
+
+        synchronized long[] last(int n) {
+            int from = Math.max(0, size - n);
+            return Arrays.copyOfRange(positions, from, size);
+        }
+
+        synchronized long[] since(long timestamp, int max) {
+            int lo = 0, hi = size;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (timestamps[mid] < timestamp) lo = mid + 1;
+                else hi = mid;
+            }
+            return Arrays.copyOfRange(positions, Math.max(lo, size - max), size);
+        }
+    }
+
+    /** Measures sustained append rate, replay and search latency against a scratch directory. */
+    public static void main(String[] args) throws Exception {
+        Path dir = Files.createTempDirectory("chat-history-bench");
+        int messages = args.length > 0 ? Integer.parseInt(args[0]) : 2_000_000;
+        String text = "the quick brown fox jumps over the lazy dog, again and again and again";
+        try (MessageLog log = new MessageLog(dir, 64 * 1024 * 1024, 200, true)) {
+            long begin = System.nanoTime();
+            for (int i = 0; i < messages; i++) {
+                if (i % 10 == 0) {
+                    log.append(privateConversation("user" + (i % 1000), "user" + (i % 997)), "user" + (i % 1000), text);
+                } else {
+                    log.append(ROOM, "user" + (i % 1000), text);
+                }
+            }
+            double seconds = (System.nanoTime() - begin) / 1e9;
+            System.out.printf("append: %,d messages in %.2fs = %,.0f msg/s (%.1f MB/s)%n", messages, seconds,
+                    messages / seconds, messages * (text.length() + 40.0) / seconds / 1e6);
+
+            long since = System.currentTimeMillis() - 1000;
+            for (int round = 0; round < 2; round++) {
+                long t = System.nanoTime();
+                int replayed = 0;
+                for (int i = 0; i < 1000; i++) {
+                    replayed += log.recentFor("user" + i, 50).size();
+                }
+                System.out.printf("replay last 50: %.1f us per join (%d entries)%n", (System.nanoTime() - t) / 1e3 / 1000, replayed);
+                t = System.nanoTime();
+                replayed = 0;
+                for (int i = 0; i < 100; i++) {
+                    replayed += log.sinceFor("user" + i, since, 1000).size();
+                }
+                System.out.printf("replay since 1s ago (max 1000): %.1f us per join (%d entries)%n", (System.nanoTime() - t) / 1e3 / 100, replayed);
+            }
+            Thread.sleep(1000); // let the index catch up
+            for (String q : new String[] {"fox", "from:user7 fox", "with:user3 lazy", "from:user7 after:1m", "nosuchword"}) {
+                long t = System.nanoTime();
+                int found = 0;
+                for (int i = 0; i < 100; i++) {
+                    String user = "user" + i;
+                    found += log.search(SearchIndex.Query.parse(q, user, System.currentTimeMillis()),
+                            c -> c.equals(ROOM) || isParticipant(c, user), 50).size();
+                }
+                System.out.printf("search \"%s\": %.1f us per query (%d results)%n", q, (System.nanoTime() - t) / 1e3 / 100, found);
+            }
+        }
+        long start = System.nanoTime();
+        try (MessageLog log = new MessageLog(dir, 64 * 1024 * 1024, 200)) {
+            double millis = (System.nanoTime() - start) / 1e6;
+            System.out.printf("reopen and rebuild index: %.0f ms (%d recent entries for user1)%n", millis,
+                    log.recentFor("user1", 50).size());
+        }
+    }
+}
@@ -0,0 +1,171 @@
+import com.sun.net.httpserver.*;
+import java.io.*;
+import java.lang.management.*;
+import java.net.*;
+import java.nio.charset.*;
+import java.util.*;
+import javax.management.*;
+
+/**
+ * Publishes a {@link ChatServer}'s {@link ServerMetrics} together with what is read at
+ * the moment of asking: connected clients, their outbound queues, and the JVM's
+ * collector, heap and allocation figures. The same values are the attributes of the
+ * JMX bean chat:type=Server,port=N and the lines of a plain-text page, "name value"
+ * per line, at http://CHAT_METRICS_HOST:CHAT_METRICS_PORT/metrics.
+ */
+final class MetricsExporter implements DynamicMBean {
+    /** Clients whose queues are listed by name; the rest only count toward the totals. */
+    private static final int DEEPEST_QUEUES = 10;
+
+    private final ChatServer server;
+    /** Bytes each live thread had allocated at the last collect, so the total survives threads ending. */
+    private final Map<Long, Long> threadAllocated = new HashMap<>();
+    private long allocatedBytes;
+
+    MetricsExporter(ChatServer server) {
+        this.server = server;
+    }
+
+    /** Registers the JMX bean and, unless CHAT_METRICS_PORT is 0, serves the text page. */
+    void start() throws IOException {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName("chat:type=Server,port=" + server.config.port));
+        } catch (JMException e) {
+            server.logger.warn("Metrics not registered with JMX: {}", e.getMessage());
+        }
+        if (server.config.metricsPort <= 0) return;
+        HttpServer http = HttpServer.create(new InetSocketAddress(server.config.metricsHost, server.config.metricsPort), 0);
+        http.createContext("/metrics", exchange -> {
+            byte[] body = text().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        http.start();
+        server.logger.info("Metrics at http://{}:{}/metrics", server.config.metricsHost, server.config.metricsPort);
+    }
+
+    String text() {
+        StringBuilder sb = new StringBuilder(4096);
+        for (Map.Entry<String, Number> e : collect().entrySet()) {
+            sb.append(e.getKey()).append(' ').append(e.getValue()).append('\n');
+        }
+        return sb.toString();
+    }
+
+    synchronized Map<String, Number> collect() {
+        Map<String, Number> m = new LinkedHashMap<>();
+        m.put("chat_clients_connected", server.clients.size());
+        collectQueues(m);
+        server.metrics.collect(m);
+        collectJvm(m);
+        return m;
+    }
+
+    private void collectQueues(Map<String, Number> m) {
+        PriorityQueue<Map.Entry<String, Long>> deepest = new PriorityQueue<>(Map.Entry.comparingByValue());
+        long sum = 0;
+        long max = 0;
+        for (ChatServer.ClientHandler client : server.clients.values()) {
+            long depth = client.queuedBytes();
+            sum += depth;
+            max = Math.max(max, depth);
+            if (depth == 0) continue;
+            deepest.add(new AbstractMap.SimpleEntry<>(client.name(), depth));
+            if (deepest.size() > DEEPEST_QUEUES) {
+                deepest.poll();
+            }
+        }
+        m.put("chat_client_queue_bytes_sum", sum);
+        m.put("chat_client_queue_bytes_max", max);
+        List<Map.Entry<String, Long>> listed = new ArrayList<>(deepest);
+        listed.sort(Map.Entry.<String, Long>comparingByValue().reversed());
+        for (Map.Entry<String, Long> e : listed) {
+            m.put("chat_client_queue_bytes{user=\"" + escape(e.getKey()) + "\"}", e.getValue());
+        }
+    }
+
+    private void collectJvm(Map<String, Number> m) {
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            String label = "{gc=\"" + escape(gc.getName()) + "\"}";
+            m.put("jvm_gc_collections_total" + label, gc.getCollectionCount());
+            m.put("jvm_gc_pause_seconds_total" + label, gc.getCollectionTime() / 1e3);
+        }
+        MemoryUsage heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+        m.put("jvm_heap_used_bytes", heap.getUsed());
+        m.put("jvm_heap_committed_bytes", heap.getCommitted());
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        m.put("jvm_threads", threads.getThreadCount());
+        if (threads instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean t = (com.sun.management.ThreadMXBean) threads;
+            if (t.isThreadAllocatedMemorySupported() && t.isThreadAllocatedMemoryEnabled()) {
+                m.put("jvm_allocated_bytes_total", allocated(t));
+            }
+        }
+    }
+
+    /**
+     * Bytes allocated by platform threads, carried over from call to call so the total
+     * does not drop when a thread ends. What a thread allocated after the last call
+     * before it ended is lost, and virtual threads are not counted, so under the
+     * thread engine this reads low.
+     */
+    private long allocated(com.sun.management.ThreadMXBean t) {
+        long[] ids = t.getAllThreadIds();
+        long[] bytes = t.getThreadAllocatedBytes(ids);
+        Map<Long, Long> seen = new HashMap<>();
+        for (int i = 0; i < ids.length; i++) {
+            if (bytes[i] < 0) continue; // ended since getAllThreadIds
+            Long before = threadAllocated.get(ids[i]);
+            allocatedBytes += bytes[i] - (before != null ? before : 0);
+            seen.put(ids[i], bytes[i]);
+        }
+        threadAllocated.clear();
+        threadAllocated.putAll(seen);
+        return allocatedBytes;
+    }
+
+    private static String escape(String label) {
+        return label.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    public Object getAttribute(String attribute) throws AttributeNotFoundException {
+        Number value = collect().get(attribute);
+        if (value == null) throw new AttributeNotFoundException(attribute);
+        return value;
+    }
+
+    public AttributeList getAttributes(String[] attributes) {
+        Map<String, Number> values = collect();
+        AttributeList list = new AttributeList();
+        for (String name : attributes) {
+            if (values.containsKey(name)) {
+                list.add(new Attribute(name, values.get(name)));
+            }
+        }
+        return list;
+    }
+
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+        throw new AttributeNotFoundException(attribute.getName() + " is read-only");
+    }
+
+    public AttributeList setAttributes(AttributeList attributes) {
+        return new AttributeList();
+    }
+
+    public Object invoke(String action, Object[] params, String[] signature) throws ReflectionException {
+        throw new ReflectionException(new NoSuchMethodException(action));
+    }
+
+    /** The attributes are whatever collect() returns now, so per-user queue entries come and go. */
+    public MBeanInfo getMBeanInfo() {
+        List<MBeanAttributeInfo> attributes = new ArrayList<>();
+        for (Map.Entry<String, Number> e : collect().entrySet()) {
+            attributes.add(new MBeanAttributeInfo(e.getKey(), e.getValue().getClass().getName(), e.getKey(), true, false, false));
+        }
+        return new MBeanInfo(getClass().getName(), "Chat server metrics", attributes.toArray(new MBeanAttributeInfo[0]), null, null, null);
+    }
+}
@@ -0,0 +1,451 @@
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.function.*;
+
+/**
+ * Non-blocking reactor: the calling thread accepts, and a small fixed set of I/O
+ * threads each run a Selector over their share of the connections. Reads go through
+ * one buffer per I/O thread; writes go to each connection's {@link OutboundQueue} and
+ * are drained by its I/O thread when the socket is writable.
+ *
+ * Queued frames go out in gathering writes of up to flushBytes. A connection that
+ * wrote within the last millisecond is busy, and its next write waits up to the flush
+ * delay for more frames to join it (the I/O thread polls instead of sleeping while
+ * any connection waits); an idle connection's frame is written at once.
+ */
+final class NioConnectionEngine implements ConnectionEngine {
+    private static final int MAX_BATCH = 64;
+    private static final long BUSY_NANOS = 1_000_000;
+
+    private final ServerConfig config;
+    private final ServerMetrics metrics;
+    private final AsyncLog logger;
+    private final int ioThreads;
+
+    NioConnectionEngine(ServerConfig config, ServerMetrics metrics, AsyncLog logger) {
+        this.config = config;
+        this.metrics = metrics;
+        this.logger = logger;
+        this.ioThreads = config.ioThreads;
+    }
+
+    public String name() {
+        return "nio (" + ioThreads + " I/O threads)";
+    }
+
+    public void serve(int port, Function<Connection, FrameDecoder.Listener> sessions) throws IOException {
+        Reactor[] reactors = new Reactor[ioThreads];
+        for (int i = 0; i < reactors.length; i++) {
+            reactors[i] = new Reactor();
+            Thread t = new Thread(reactors[i], "chat-io-" + i);
+            t.setDaemon(true);
+            t.start();
+        }
+        try (ServerSocketChannel server = ServerSocketChannel.open()) {
+            server.bind(new InetSocketAddress(port), config.acceptBacklog);
+            int next = 0;
+            while (true) {
+                SocketChannel channel;
+                try {
+                    channel = server.accept();
+                } catch (IOException e) {
+                    ConnectionEngine.acceptFailed(server, e, metrics, logger);
+                    continue;
+                }
+                try {
+                    channel.configureBlocking(false);
+                    channel.setOption(StandardSocketOptions.TCP_NODELAY, config.tcpNoDelay);
+                    channel.setOption(StandardSocketOptions.SO_KEEPALIVE, true);
+                    NioConnection connection = new NioConnection(channel, reactors[next++ % reactors.length], config.newOutboundQueue());
+                    connection.listener = sessions.apply(connection);
+                    connection.decoder = new FrameDecoder(connection.listener);
+                    connection.reactor.register(connection);
+                } catch (IOException | RuntimeException e) {
+                    ConnectionEngine.dropAccepted(channel, e, metrics, logger); // e.g. reset before we got to it
+                }
+            }
+        }
+    }
+
+    final class Reactor implements Runnable {
+        private final Selector selector;
+        private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(64 * 1024);
+        private final Queue<NioConnection> registrations = new ConcurrentLinkedQueue<>();
+        private final Queue<NioConnection> writeRequests = new ConcurrentLinkedQueue<>();
+        /** Connections closed by other threads, for the reactor to release. */
+        private final Queue<NioConnection> closes = new ConcurrentLinkedQueue<>();
+        /** Connections waiting out the flush delay; reactor thread only. */
+        private final ArrayDeque<NioConnection> lingering = new ArrayDeque<>();
+        /** Connections whose reading is paused; reactor thread only, and short enough to scan. */
+        private final List<NioConnection> paused = new ArrayList<>();
+
+        private volatile Thread thread;
+
+        Reactor() throws IOException {
+            selector = Selector.open();
+        }
+
+        void register(NioConnection connection) {
+            registrations.add(connection);
+            selector.wakeup();
+        }
+
+        void requestWrite(NioConnection connection) {
+            writeRequests.add(connection);
+            selector.wakeup();
+        }
+
+        void requestClose(NioConnection connection) {
+            closes.add(connection);
+            selector.wakeup();
+        }
+
+        boolean inReactor() {
+            return Thread.currentThread() == thread;
+        }
+
+        public void run() {
+            thread = Thread.currentThread();
+            while (true) {
+                try {
+                    if (!lingering.isEmpty()) {
+                        selector.selectNow();
+                    } else if (paused.isEmpty()) {
+                        selector.select();
+                    } else {
+                        selector.select(Math.max(1, TimeUnit.NANOSECONDS.toMillis(nextResume() - System.nanoTime())));
+                    }
+                } catch (IOException e) {
+                    continue;
+                }
+                if (!paused.isEmpty()) {
+                    resumeReading();
+                }
+                NioConnection c;
+                while ((c = registrations.poll()) != null) {
+                    if (c.closed.get()) {
+                        c.release();
+                        continue;
+                    }
+                    try {
+                        c.key = c.channel.register(selector, SelectionKey.OP_READ, c);
+                    } catch (IOException e) {
+                        c.close();
+                    }
+                }
+                while ((c = closes.poll()) != null) {
+                    c.release();
+                }
+                for (int i = lingering.size(); i > 0; i--) {
+                    c = lingering.poll();
+                    try {
+                        c.flush();
+                    } catch (RuntimeException e) {
+                        c.failed(e);
+                    }
+                }
+                while ((c = writeRequests.poll()) != null) {
+                    try {
+                        c.flush();
+                    } catch (RuntimeException e) {
+                        c.failed(e);
+                    }
+                }
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    NioConnection connection = (NioConnection) key.attachment();
+                    try {
+                        if (key.isValid() && key.isWritable()) {
+                            connection.flush();
+                        }
+                        if (key.isValid() && key.isReadable() && !connection.readPaused) {
+                            connection.read(readBuffer);
+                        }
+                    } catch (RuntimeException e) {
+                        connection.failed(e);
+                    }
+                }
+            }
+        }
+
+        private long nextResume() {
+            long next = paused.get(0).readResumeNanos;
+            for (NioConnection c : paused) {
+                if (c.readResumeNanos - next < 0) {
+                    next = c.readResumeNanos;
+                }
+            }
+            return next;
+        }
+
+        private void resumeReading() {
+            long now = System.nanoTime();
+            for (Iterator<NioConnection> it = paused.iterator(); it.hasNext(); ) {
+                NioConnection c = it.next();
+                if (c.readResumeNanos - now > 0) continue;
+                it.remove();
+                c.readPaused = false;
+                if (c.key.isValid()) {
+                    c.key.interestOps(c.key.interestOps() | SelectionKey.OP_READ);
+                }
+            }
+        }
+    }
+
+    final class NioConnection implements Connection {
+        final SocketChannel channel;
+        final Reactor reactor;
+        private final OutboundQueue outbound;
+        /** Taken from the queue and not completely written yet: batch[batchStart..batchEnd), or a region. */
+        private final ByteBuffer[] batch = new ByteBuffer[MAX_BATCH];
+        private int batchStart;
+        private int batchEnd;
+        private FileSpool.Region region;
+        private long lastWriteNanos = System.nanoTime() - BUSY_NANOS;
+        private volatile long writeRequestedNanos;
+        private volatile long lastReadNanos = System.nanoTime();
+        /** Set by pauseReading(); reactor thread only. */
+        private boolean readPaused;
+        private long readResumeNanos;
+        private final AtomicBoolean writeScheduled = new AtomicBoolean();
+        private final AtomicBoolean closed = new AtomicBoolean();
+        FrameDecoder.Listener listener;
+        FrameDecoder decoder;
+        SelectionKey key;
+
+        NioConnection(SocketChannel channel, Reactor reactor, OutboundQueue outbound) {
+            this.channel = channel;
+            this.reactor = reactor;
+            this.outbound = outbound;
+        }
+
+        public void send(ByteBuffer frame) throws IOException {
+            queued(outbound.offer(frame.duplicate()));
+        }
+
+        public void sendControl(ByteBuffer frame) throws IOException {
+            queued(outbound.offerControl(frame.duplicate()));
+        }
+
+        public void send(FileSpool.Region region) throws IOException {
+            queued(outbound.offer(region));
+        }
+
+        private void queued(boolean accepted) throws IOException {
+            if (!accepted) {
+                boolean overflow = !closed.get();
+                close();
+                throw new IOException(overflow ? "Outbound queue full" : "Connection closed");
+            }
+            if (writeScheduled.compareAndSet(false, true)) {
+                writeRequestedNanos = System.nanoTime();
+                reactor.requestWrite(this);
+            }
+        }
+
+        public OutboundQueue outbound() {
+            return outbound;
+        }
+
+        public long lastReadNanos() {
+            return lastReadNanos;
+        }
+
+        public void pauseReading(long nanos) {
+            long until = System.nanoTime() + nanos;
+            if (!readPaused || until - readResumeNanos > 0) {
+                readResumeNanos = until;
+            }
+            if (readPaused || key == null || !key.isValid()) return;
+            readPaused = true;
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+            reactor.paused.add(this);
+        }
+
+        /** OP_READ unless reading is paused. */
+        private int readInterest() {
+            return readPaused ? 0 : SelectionKey.OP_READ;
+        }
+
+        /** Called on the reactor thread. */
+        void read(ByteBuffer buffer) {
+            try {
+                buffer.clear();
+                int n = channel.read(buffer);
+                if (n < 0) {
+                    close();
+                    return;
+                }
+                lastReadNanos = System.nanoTime();
+                metrics.bytesRead.add(n);
+                buffer.flip();
+                decoder.decode(buffer);
+            } catch (IOException e) {
+                close();
+            }
+        }
+
+        /** Called on the reactor thread; writes until the queue is empty or the socket is full. */
+        void flush() {
+            if (closed.get()) return;
+            if (key == null || !key.isValid()) {
+                reactor.requestWrite(this); // not registered yet
+                return;
+            }
+            try {
+                if (batchStart == batchEnd && region == null && shouldLinger()) {
+                    reactor.lingering.add(this);
+                    return;
+                }
+                while (true) {
+                    while (takeNext()) {
+                        if (!writeTaken()) {
+                            key.interestOps(readInterest() | SelectionKey.OP_WRITE);
+                            return;
+                        }
+                    }
+                    if (outbound.isDrained()) {
+                        close();
+                        return;
+                    }
+                    key.interestOps(readInterest());
+                    writeScheduled.set(false);
+                    if (outbound.isEmpty() || !writeScheduled.compareAndSet(false, true)) {
+                        return;
+                    }
+                }
+            } catch (IOException e) {
+                close();
+            }
+        }
+
+        /** Busy and still short of flushBytes inside the flush delay: give more frames a chance to arrive. */
+        private boolean shouldLinger() {
+            if (config.flushDelayNanos <= 0) return false;
+            long now = System.nanoTime();
+            return now - lastWriteNanos < BUSY_NANOS
+                    && now - writeRequestedNanos < config.flushDelayNanos
+                    && outbound.queuedBytes() < config.flushBytes;
+        }
+
+        /** True if frames are taken and waiting to be written, taking more from the queue if needed. */
+        private boolean takeNext() {
+            if (batchStart < batchEnd || region != null) return true;
+            batchStart = 0;
+            batchEnd = outbound.pollBatch(batch, config.flushBytes);
+            if (batchEnd == 0) {
+                Object next = outbound.poll();
+                if (next == null) return false;
+                if (next instanceof ByteBuffer) {
+                    batch[batchEnd++] = (ByteBuffer) next;
+                } else {
+                    region = (FileSpool.Region) next;
+                }
+            }
+            metrics.framesWritten.add(region != null ? 1 : batchEnd);
+            return true;
+        }
+
+        /** Writes what was taken; false if the socket filled up first. */
+        private boolean writeTaken() throws IOException {
+            lastWriteNanos = System.nanoTime();
+            boolean moved = false;
+            while (batchStart < batchEnd) {
+                long n = channel.write(batch, batchStart, batchEnd - batchStart);
+                metrics.writeCalls.increment();
+                moved |= n > 0;
+                while (batchStart < batchEnd && !batch[batchStart].hasRemaining()) {
+                    batch[batchStart++] = null;
+                }
+                if (n == 0 && batchStart < batchEnd) return stopped(moved);
+            }
+            if (region != null) {
+                long left = region.header.remaining() + region.remaining();
+                metrics.writeCalls.increment();
+                if (!region.writeTo(channel)) {
+                    return stopped(moved || region.header.remaining() + region.remaining() < left);
+                }
+                region.release();
+                region = null;
+            }
+            outbound.wrote(true);
+            return true;
+        }
+
+        /** The socket is full with some of what was taken still to write. */
+        private boolean stopped(boolean moved) {
+            if (moved) {
+                outbound.wrote(false);
+            }
+            return false;
+        }
+
+        public void closeWhenFlushed() {
+            outbound.finish();
+            if (writeScheduled.compareAndSet(false, true)) {
+                reactor.requestWrite(this);
+            }
+        }
+
+        /**
+         * Called on the reactor thread when the decoder, a listener or the server threw
+         * while handling this connection: only this connection is closed, and the
+         * reactor goes on serving the others.
+         */
+        void failed(RuntimeException e) {
+            logger.error("Closing {} after an unexpected error: {}", remoteAddress(), e);
+            try {
+                close();
+            } catch (RuntimeException again) {
+                logger.error("Error while closing {}: {}", remoteAddress(), again);
+            }
+        }
+
+        /**
+         * May be called on any thread. The key, the channel and what was taken for
+         * writing belong to the reactor, so another thread only marks the connection
+         * closed and leaves the rest to the reactor.
+         */
+        public void close() {
+            if (!closed.compareAndSet(false, true)) return;
+            outbound.close();
+            if (reactor.inReactor()) {
+                release();
+            } else {
+                reactor.requestClose(this);
+            }
+            if (listener != null) {
+                listener.onClose();
+            }
+        }
+
+        /** Called on the reactor thread once the connection is closed. */
+        void release() {
+            if (key != null) {
+                key.cancel();
+            }
+            try {
+                channel.close();
+            } catch (IOException e) {}
+            if (region != null) {
+                region.release();
+                region = null;
+            }
+        }
+
+        public String remoteAddress() {
+            try {
+                return String.valueOf(channel.getRemoteAddress());
+            } catch (IOException e) {
+                return "?";
+            }
+        }
+    }
+}
@@ -0,0 +1,330 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.*;
+
+/**
+ * Bounded queue of frames waiting to be written to one client. Broadcasting only
+ * enqueues here; the connection's writer drains it, so a slow receiver fills its own
+ * queue instead of stalling the sender. A frame is removed from the queue before the
+ * writer starts on it, so dropping never cuts a frame in half.
+ *
+ * Frames offered with {@link #offerControl} are kept when DROP_OLDEST makes room: only
+ * other frames are dropped, and if that is not enough the connection has to go.
+ *
+ * Entries are either a ByteBuffer or a {@link FileSpool.Region}. A region only counts
+ * its header against the limit: its file bytes stay in the spool on disk until the
+ * writer sends them.
+ *
+ * Writers take runs of ByteBuffers at once with {@link #pollBatch} and hand them to
+ * one gathering write, so a burst of chat lines costs one syscall instead of one each.
+ */
+final class OutboundQueue {
+    enum OverflowPolicy {
+        /** Discard queued frames, oldest first, until the new one fits. */
+        DROP_OLDEST,
+        /** Close the connection of a client that cannot keep up. */
+        DISCONNECT,
+        /**
+         * Make the sender wait for space, then disconnect when the timeout runs out.
+         * Only for the thread engine: the nio engine refuses it, as the wait would
+         * hold up every connection on the sender's I/O thread.
+         */
+        BLOCK
+    }
+
+    private final ArrayDeque<Object> frames = new ArrayDeque<>();
+    /** Queued frames that DROP_OLDEST must not drop, by identity. */
+    private final Set<Object> kept = Collections.newSetFromMap(new IdentityHashMap<>());
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+    private final long maxBytes;
+    private final OverflowPolicy policy;
+    private final long blockTimeoutNanos;
+    private long queuedBytes;
+    private long droppedMessages;
+    /** When the writer last took or wrote bytes, or frames last arrived with nothing waiting. */
+    private long movedNanos = System.nanoTime();
+    /** The writer has taken frames and not finished writing them; see {@link #wrote}. */
+    private boolean writing;
+    private boolean closed;
+    private boolean finished;
+
+    OutboundQueue(long maxBytes, OverflowPolicy policy, long blockTimeoutMillis) {
+        this.maxBytes = maxBytes;
+        this.policy = policy;
+        this.blockTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(blockTimeoutMillis);
+    }
+
+    /**
+     * Queues a frame. Returns false when the frame was refused and the connection
+     * should be closed. A frame larger than the limit is still accepted into an
+     * empty queue.
+     */
+    boolean offer(ByteBuffer frame) {
+        return add(frame, false);
+    }
+
+    /** Same as {@link #offer(ByteBuffer)}, for a frame that is never dropped to make room. */
+    boolean offerControl(ByteBuffer frame) {
+        return add(frame, true);
+    }
+
+    /** Same as {@link #offer(ByteBuffer)}; a refused region is released. */
+    boolean offer(FileSpool.Region region) {
+        if (add(region, false)) return true;
+        region.release();
+        return false;
+    }
+
+    private boolean add(Object frame, boolean keep) {
+        int size = sizeOf(frame);
+        lock.lock();
+        try {
+            if (closed || finished) return false;
+            if (queuedBytes + size > maxBytes && !frames.isEmpty()) {
+                switch (policy) {
+                    case DROP_OLDEST:
+                        for (Iterator<Object> it = frames.iterator(); queuedBytes + size > maxBytes && it.hasNext(); ) {
+                            Object old = it.next();
+                            if (kept.contains(old)) continue;
+                            it.remove();
+                            discard(old);
+                            droppedMessages++;
+                        }
+                        if (queuedBytes + size > maxBytes && !frames.isEmpty()) {
+                            droppedMessages++;
+                            return false; // only frames that must not be dropped are left
+                        }
+                        break;
+                    case DISCONNECT:
+                        droppedMessages++;
+                        return false;
+                    case BLOCK:
+                        long nanos = blockTimeoutNanos;
+                        while (queuedBytes + size > maxBytes && !frames.isEmpty() && !closed) {
+                            if (nanos <= 0) {
+                                droppedMessages++;
+                                return false;
+                            }
+                            try {
+                                nanos = notFull.awaitNanos(nanos);
+                            } catch (InterruptedException e) {
+                                Thread.currentThread().interrupt();
+                                return false;
+                            }
+                        }
+                        if (closed) return false;
+                        break;
+                }
+            }
+            if (frames.isEmpty() && !writing) {
+                movedNanos = System.nanoTime();
+            }
+            frames.add(frame);
+            if (keep) {
+                kept.add(frame);
+            }
+            queuedBytes += size;
+            notEmpty.signal();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Removes the next ByteBuffer or region, or returns null if there is none. */
+    Object poll() {
+        lock.lock();
+        try {
+            return removeFirst();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Takes the ByteBuffers at the head of the queue into batch, from index 0, until
+     * batch is full or maxBytes is reached (at least one is taken if any is queued).
+     * Stops at a region, which {@link #poll} returns. Returns how many were taken.
+     */
+    int pollBatch(ByteBuffer[] batch, long maxBytes) {
+        lock.lock();
+        try {
+            int n = 0;
+            long bytes = 0;
+            while (n < batch.length && frames.peek() instanceof ByteBuffer) {
+                ByteBuffer frame = (ByteBuffer) frames.peek();
+                if (n > 0 && bytes + frame.remaining() > maxBytes) break;
+                bytes += frame.remaining();
+                batch[n++] = (ByteBuffer) removeFirst();
+            }
+            return n;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Waits until a frame is queued, then up to lingerNanos more for others to join it
+     * while fewer than flushBytes are queued. Returns false once the queue is closed,
+     * or finished and empty.
+     */
+    boolean awaitFrames(long lingerNanos, long flushBytes) throws InterruptedException {
+        lock.lock();
+        try {
+            while (frames.isEmpty() && !closed && !finished) {
+                notEmpty.await();
+            }
+            long nanos = lingerNanos;
+            while (nanos > 0 && queuedBytes < flushBytes && !closed && !finished) {
+                nanos = notEmpty.awaitNanos(nanos);
+            }
+            return !closed && !frames.isEmpty();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private Object removeFirst() {
+        Object frame = frames.poll();
+        if (frame != null) {
+            if (!kept.isEmpty()) {
+                kept.remove(frame);
+            }
+            movedNanos = System.nanoTime();
+            writing = true;
+            queuedBytes -= sizeOf(frame);
+            notFull.signalAll();
+        }
+        return frame;
+    }
+
+    private void discard(Object frame) {
+        queuedBytes -= sizeOf(frame);
+        abandon(frame);
+    }
+
+    /**
+     * Writes an entry taken from the queue to target. Returns true once it has been
+     * written completely; false means target is full and the call must be repeated.
+     */
+    static boolean write(Object frame, WritableByteChannel target) throws IOException {
+        if (frame instanceof ByteBuffer) {
+            target.write((ByteBuffer) frame);
+            return !((ByteBuffer) frame).hasRemaining();
+        }
+        FileSpool.Region region = (FileSpool.Region) frame;
+        if (region.writeTo(target)) {
+            region.release();
+            return true;
+        }
+        return false;
+    }
+
+    /** Releases an entry that was taken from the queue but will not be written. */
+    static void abandon(Object frame) {
+        if (frame instanceof FileSpool.Region) {
+            ((FileSpool.Region) frame).release();
+        }
+    }
+
+    private static int sizeOf(Object frame) {
+        return frame instanceof ByteBuffer ? ((ByteBuffer) frame).remaining() : ((FileSpool.Region) frame).header.remaining();
+    }
+
+    boolean isEmpty() {
+        lock.lock();
+        try {
+            return frames.isEmpty();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Refuses further frames; what is already queued can still be taken. */
+    void finish() {
+        lock.lock();
+        try {
+            finished = true;
+            notEmpty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** True once {@link #finish} was called and the last frame has been taken. */
+    boolean isDrained() {
+        lock.lock();
+        try {
+            return finished && frames.isEmpty();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void close() {
+        lock.lock();
+        try {
+            closed = true;
+            while (!frames.isEmpty()) {
+                discard(frames.poll());
+            }
+            kept.clear();
+            notEmpty.signalAll();
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Called by the writer after a write that sent bytes of what it took; done once
+     * everything it has taken is written.
+     */
+    void wrote(boolean done) {
+        lock.lock();
+        try {
+            movedNanos = System.nanoTime();
+            if (done) {
+                writing = false;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * True if frames, queued or already taken by the writer, have waited longer than
+     * timeoutNanos without the writer taking or writing any.
+     */
+    boolean isStalled(long timeoutNanos) {
+        lock.lock();
+        try {
+            return (writing || !frames.isEmpty()) && System.nanoTime() - movedNanos > timeoutNanos;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    long queuedBytes() {
+        lock.lock();
+        try {
+            return queuedBytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    long droppedMessages() {
+        lock.lock();
+        try {
+            return droppedMessages;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,58 @@
+import java.io.*;
+import java.nio.*;
+
+/**
+ * A chat message on its way to one or more clients. It is encoded for each protocol
+ * the first time a recipient speaking it needs it, so a broadcast is still encoded at
+ * most twice however many clients it goes to. Used from one thread at a time.
+ */
+final class Outgoing {
+    final byte kind;
+    final String sender;
+    final int senderId;
+    final String room;
+    final String text;
+    private ByteBuffer legacy;
+    private IOException legacyError;
+    private ByteBuffer binary;
+
+    private Outgoing(byte kind, String sender, int senderId, String room, String text) {
+        this.kind = kind;
+        this.sender = sender;
+        this.senderId = senderId;
+        this.room = room;
+        this.text = text;
+    }
+
+    static Outgoing broadcast(String sender, int senderId, String text) {
+        return new Outgoing(Wire.BROADCAST, sender, senderId, null, text);
+    }
+
+    static Outgoing direct(String sender, int senderId, String text) {
+        return new Outgoing(Wire.DIRECT, sender, senderId, null, text);
+    }
+
+    static Outgoing inRoom(String room, String sender, int senderId, String text) {
+        return new Outgoing(Wire.IN_ROOM, sender, senderId, room, text);
+    }
+
+    /** Throws if the text is too long for writeUTF; binary clients have no such limit. */
+    ByteBuffer legacy() throws IOException {
+        if (legacy == null && legacyError == null) {
+            try {
+                legacy = Frames.text(Wire.display(kind, sender, room, text));
+            } catch (IOException e) {
+                legacyError = e;
+            }
+        }
+        if (legacyError != null) throw legacyError;
+        return legacy;
+    }
+
+    ByteBuffer binary() {
+        if (binary == null) {
+            binary = Wire.message(kind, senderId, room, text);
+        }
+        return binary;
+    }
+}
@@ -0,0 +1,114 @@
+import java.nio.charset.*;
+import java.security.*;
+import java.security.spec.*;
+import java.util.*;
+import javax.crypto.*;
+import javax.crypto.spec.*;
+
+/**
+ * Salted PBKDF2-HMAC-SHA256 password hashes, stored as
+ * "pbkdf2-sha256$iterations$salt$hash" with Base64 salt and hash. The iteration
+ * count is the cost factor (PASSWORD_HASH_ITERATIONS); stored hashes remember their
+ * own count, so raising it only affects new and re-hashed passwords.
+ */
+public class PasswordHasher {
+    private static final String PREFIX = "pbkdf2-sha256";
+    private static final int SALT_BYTES = 16;
+    private static final int HASH_BITS = 256;
+
+    private final int iterations;
+    private final SecureRandom random = new SecureRandom();
+    /** Checked against when there is no stored hash; made on first use. */
+    private volatile String dummy;
+
+    public PasswordHasher() {
+        this(ServerConfig.envInt("PASSWORD_HASH_ITERATIONS", 210_000));
+    }
+
+    PasswordHasher(int iterations) {
+        this.iterations = iterations;
+    }
+
+    String hash(String password) {
+        byte[] salt = new byte[SALT_BYTES];
+        random.nextBytes(salt);
+        Base64.Encoder b64 = Base64.getEncoder();
+        return PREFIX + "$" + iterations + "$" + b64.encodeToString(salt) + "$"
+                + b64.encodeToString(pbkdf2(password, salt, iterations));
+    }
+
+    /**
+     * Checks a password against a stored value. Rows written before hashing was
+     * introduced hold the plain password and are compared as such; see
+     * {@link #needsRehash}. With no stored value (an unknown user) a password is
+     * still hashed, so that the time taken does not tell which users exist.
+     */
+    boolean verify(String password, String stored) {
+        if (stored == null) {
+            String d = dummy;
+            if (d == null) {
+                dummy = d = hash("");
+            }
+            verify(password, d);
+            return false;
+        }
+        String[] parts = stored.split("\\$");
+        if (parts.length != 4 || !parts[0].equals(PREFIX)) {
+            return MessageDigest.isEqual(stored.getBytes(StandardCharsets.UTF_8), password.getBytes(StandardCharsets.UTF_8));
+        }
+        Base64.Decoder b64 = Base64.getDecoder();
+        byte[] expected = b64.decode(parts[3]);
+        return MessageDigest.isEqual(expected, pbkdf2(password, b64.decode(parts[2]), Integer.parseInt(parts[1])));
+    }
+
+    /** True for plain-text rows and hashes made with a different cost than the current one. */
+    boolean needsRehash(String stored) {
+        return !stored.startsWith(PREFIX + "$" + iterations + "$");
+    }
+
+    private static byte[] pbkdf2(String password, byte[] salt, int iterations) {
+        try {
+            PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, iterations, HASH_BITS);
+            return SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256").generateSecret(spec).getEncoded();
+        } catch (NoSuchAlgorithmException | InvalidKeySpecException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /** Prints single-threaded and all-cores verify throughput for a few cost factors. */
+    public static void main(String[] args) throws Exception {
+        int threads = Runtime.getRuntime().availableProcessors();
+        int[] costs = args.length > 0 ? Arrays.stream(args).mapToInt(Integer::parseInt).toArray()
+                : new int[] {10_000, 50_000, 100_000, 210_000, 600_000};
+        for (int cost : costs) {
+            PasswordHasher hasher = new PasswordHasher(cost);
+            String stored = hasher.hash("correct horse battery staple");
+            for (int i = 0; i < 3; i++) {
+                hasher.verify("correct horse battery staple", stored); // warm up
+            }
+            int perThread = Math.max(4, 2_000_000 / cost);
+            long start = System.nanoTime();
+            for (int i = 0; i < perThread; i++) {
+                hasher.verify("correct horse battery staple", stored);
+            }
+            double single = perThread / ((System.nanoTime() - start) / 1e9);
+
+            Thread[] workers = new Thread[threads];
+            start = System.nanoTime();
+            for (int t = 0; t < threads; t++) {
+                workers[t] = new Thread(() -> {
+                    for (int i = 0; i < perThread; i++) {
+                        hasher.verify("correct horse battery staple", stored);
+                    }
+                });
+                workers[t].start();
+            }
+            for (Thread w : workers) {
+                w.join();
+            }
+            double parallel = (double) perThread * threads / ((System.nanoTime() - start) / 1e9);
+            System.out.printf("iterations=%,d  %.1f ms/login  %.0f logins/s on 1 thread  %.0f logins/s on %d threads%n",
+                    cost, 1000 / single, single, parallel, threads);
+        }
+    }
+}
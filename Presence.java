@@ -0,0 +1,197 @@
+import java.io.*;
+import java.nio.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Keeps clients' user lists up to date. A joining client gets the full list once
+ * ("USER_LIST/a/b/..."); after that only changes are sent, as "USER_DELTA/+a/-b".
+ * Changes are collected for a short window and sent as one frame, so a reconnect
+ * storm costs a few frames per client instead of a full list per connect.
+ *
+ * Only the names are collected; whether each one is online is read from the clients
+ * map when the window closes, so a delta always states the current truth and applying
+ * it after a snapshot that already contained the change does nothing. Clients that
+ * logged in with just a name (older clients) get the full list after each window.
+ * Clients on the binary protocol get the same updates as {@link Wire} USER_LIST and
+ * USER_DELTA frames, which carry user ids alongside the names. Users on other
+ * {@link Cluster} nodes are listed along with the ones connected here.
+ */
+final class Presence {
+    /** Lists are split so no frame gets near writeUTF's 64 KB limit. */
+    private static final int MAX_FRAME_CHARS = 20_000;
+
+    private final Map<String, ChatServer.ClientHandler> clients;
+    private final Cluster cluster;
+    private final UserIds ids;
+    private final ScheduledExecutorService timers;
+    private final long windowMillis;
+    private final Set<String> changed = ConcurrentHashMap.newKeySet();
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+
+    Presence(Map<String, ChatServer.ClientHandler> clients, Cluster cluster, UserIds ids, ScheduledExecutorService timers, long windowMillis) {
+        this.clients = clients;
+        this.cluster = cluster;
+        this.ids = ids;
+        this.timers = timers;
+        this.windowMillis = windowMillis;
+    }
+
+    /** Sends the current list to a client that just joined. */
+    void sendSnapshot(ChatServer.ClientHandler client) throws IOException {
+        if (client.isBinary()) {
+            client.sendFrame(Wire.USER_LIST, Wire.userList(everyone(), ids));
+            return;
+        }
+        for (ByteBuffer frame : snapshot(everyone())) {
+            client.sendFrame(Wire.USER_LIST, frame);
+        }
+    }
+
+    /** Notes that name connected or disconnected; everyone hears about it when the window closes. */
+    void changed(String name) {
+        changed.add(name);
+        if (scheduled.compareAndSet(false, true)) {
+            timers.schedule(this::flush, windowMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void flush() {
+        scheduled.set(false);
+        Map<String, Boolean> online = new LinkedHashMap<>();
+        List<String> deltas = new ArrayList<>();
+        for (Iterator<String> it = changed.iterator(); it.hasNext(); ) {
+            String name = it.next();
+            it.remove();
+            boolean joined = clients.containsKey(name) || cluster.hasUser(name);
+            online.put(name, joined);
+            deltas.add((joined ? "+" : "-") + name);
+        }
+        if (deltas.isEmpty()) return;
+        List<ByteBuffer> binaryFrames = null;
+        List<ByteBuffer> deltaFrames = null;
+        List<ByteBuffer> fullFrames = null;
+        for (ChatServer.ClientHandler client : clients.values()) {
+            List<ByteBuffer> frames;
+            byte op = Wire.USER_DELTA;
+            if (client.isBinary()) {
+                frames = binaryFrames != null ? binaryFrames : (binaryFrames = List.of(Wire.userDelta(online, ids)));
+            } else if (client.wantsPresenceDeltas()) {
+                frames = deltaFrames != null ? deltaFrames : (deltaFrames = frames("USER_DELTA", "USER_DELTA", deltas));
+            } else {
+                frames = fullFrames != null ? fullFrames : (fullFrames = snapshot(everyone()));
+                op = Wire.USER_LIST;
+            }
+            try {
+                for (ByteBuffer frame : frames) {
+                    client.sendFrame(op, frame);
+                }
+            } catch (IOException e) {
+                // closed or overflowed; the connection is being torn down
+            }
+        }
+    }
+
+    /** Users connected here and, in a cluster, on the other nodes. */
+    private Collection<String> everyone() {
+        if (cluster.remoteUsers().isEmpty()) return clients.keySet();
+        Set<String> all = new LinkedHashSet<>(clients.keySet());
+        all.addAll(cluster.remoteUsers());
+        return all;
+    }
+
+    /** "USER_LIST/..." followed, for a very long list, by "USER_DELTA/+..." frames with the rest. */
+    static List<ByteBuffer> snapshot(Collection<String> names) {
+        return frames("USER_LIST", null, new ArrayList<>(names));
+    }
+
+    /**
+     * Joins entries with "/" after the prefix, starting a new frame with nextPrefix
+     * whenever one gets long. A null nextPrefix means the continuation frames are
+     * deltas, so their entries get a "+".
+     */
+    private static List<ByteBuffer> frames(String prefix, String nextPrefix, List<String> entries) {
+        List<ByteBuffer> frames = new ArrayList<>();
+        StringBuilder sb = new StringBuilder(prefix);
+        boolean continuation = false;
+        for (String entry : entries) {
+            if (sb.length() + entry.length() > MAX_FRAME_CHARS) {
+                frames.add(encode(sb));
+                sb.setLength(0);
+                sb.append(nextPrefix != null ? nextPrefix : "USER_DELTA");
+                continuation = nextPrefix == null;
+            }
+            sb.append('/');
+            if (continuation) {
+                sb.append('+');
+            }
+            sb.append(entry);
+        }
+        frames.add(encode(sb));
+        return frames;
+    }
+
+    private static ByteBuffer encode(StringBuilder sb) {
+        try {
+            return Frames.text(sb.toString());
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e); // MAX_FRAME_CHARS and the login's name limit keep frames under it
+        }
+    }
+
+    private static long bytes(List<ByteBuffer> frames) {
+        long total = 0;
+        for (ByteBuffer frame : frames) {
+            total += frame.remaining();
+        }
+        return total;
+    }
+
+    /**
+     * Compares what a reconnect storm of N users (default 5,000, arriving evenly over
+     * two seconds) costs in bytes sent and encoding CPU: a full list to everyone on
+     * every connect, against a snapshot per joiner plus one delta per window.
+     */
+    public static void main(String[] args) {
+        int users = args.length > 0 ? Integer.parseInt(args[0]) : 5000;
+        long windowMillis = args.length > 1 ? Long.parseLong(args[1]) : 100;
+        long stormMillis = 2000;
+        int perWindow = (int) Math.max(1, users * windowMillis / stormMillis);
+        java.lang.management.ThreadMXBean threads = java.lang.management.ManagementFactory.getThreadMXBean();
+        for (int round = 0; round < 3; round++) {
+            Set<String> online = new LinkedHashSet<>();
+            long cpu = threads.getCurrentThreadCpuTime();
+            long sent = 0;
+            long frames = 0;
+            for (int i = 0; i < users; i++) {
+                online.add("user" + i);
+                List<ByteBuffer> list = snapshot(online);
+                sent += bytes(list) * online.size();
+                frames += (long) list.size() * online.size();
+            }
+            double fullMillis = (threads.getCurrentThreadCpuTime() - cpu) / 1e6;
+            System.out.printf("full list per connect: %,d frames, %,.1f MB sent, %.0f ms CPU encoding%n", frames, sent / 1e6, fullMillis);
+
+            online.clear();
+            cpu = threads.getCurrentThreadCpuTime();
+            sent = 0;
+            frames = 0;
+            for (int i = 0; i < users; i += perWindow) {
+                List<String> deltas = new ArrayList<>();
+                for (int j = i; j < Math.min(users, i + perWindow); j++) {
+                    online.add("user" + j);
+                    List<ByteBuffer> list = snapshot(online); // to the joiner only
+                    sent += bytes(list);
+                    frames += list.size();
+                    deltas.add("+user" + j);
+                }
+                List<ByteBuffer> delta = frames("USER_DELTA", "USER_DELTA", deltas);
+                sent += bytes(delta) * online.size();
+                frames += (long) delta.size() * online.size();
+            }
+            double deltaMillis = (threads.getCurrentThreadCpuTime() - cpu) / 1e6;
+            System.out.printf("snapshot + %d ms deltas: %,d frames, %,.1f MB sent, %.0f ms CPU encoding%n", windowMillis, frames, sent / 1e6, deltaMillis);
+        }
+    }
+}
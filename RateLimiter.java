@@ -0,0 +1,117 @@
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Per-user limits on what clients send, checked by ChatServer before a command is
+ * relayed, so one client looping on sends cannot make the server fan out more than
+ * its share. Each user has a token bucket per {@link Limit}, kept by name so that
+ * reconnecting does not refill them. Buckets are lock-free and checking one is a
+ * read and a compare-and-set.
+ */
+final class RateLimiter {
+    enum Limit {
+        BROADCASTS, PRIVATES, ROOM_MESSAGES, ROOM_CHANGES, FILES, SEARCHES, BYTES;
+
+        final String label = name().toLowerCase(Locale.ROOT);
+    }
+
+    /** What happens to a command over a limit. */
+    enum Action {
+        /** Not relayed; the client is told now and then. */
+        DROP,
+        /** Relayed, and the server stops reading from the client until the bucket has refilled. */
+        DELAY,
+        /** The client is disconnected. */
+        DISCONNECT
+    }
+
+    private final double[] perSecond = new double[Limit.values().length];
+    private final double burstSeconds;
+    private final Map<String, Bucket[]> users = new ConcurrentHashMap<>();
+
+    RateLimiter(ServerConfig config) {
+        perSecond[Limit.BROADCASTS.ordinal()] = config.limitBroadcasts;
+        perSecond[Limit.PRIVATES.ordinal()] = config.limitPrivates;
+        perSecond[Limit.ROOM_MESSAGES.ordinal()] = config.limitRoomMessages;
+        perSecond[Limit.ROOM_CHANGES.ordinal()] = config.limitRoomChanges;
+        perSecond[Limit.FILES.ordinal()] = config.limitFiles;
+        perSecond[Limit.SEARCHES.ordinal()] = config.limitSearches;
+        perSecond[Limit.BYTES.ordinal()] = config.limitBytes;
+        this.burstSeconds = config.limitBurstSeconds;
+    }
+
+    /** The buckets of user, shared by all of the user's connections; null where a limit is off. */
+    Bucket[] bucketsFor(String user) {
+        return users.computeIfAbsent(user, u -> {
+            Bucket[] buckets = new Bucket[perSecond.length];
+            for (int i = 0; i < buckets.length; i++) {
+                if (perSecond[i] > 0) {
+                    buckets[i] = new Bucket(perSecond[i], Math.max(1, perSecond[i] * burstSeconds));
+                }
+            }
+            return buckets;
+        });
+    }
+
+    /** Forgets users whose buckets have all refilled and who are not connected, as a new set would be the same. */
+    void sweep(Set<String> connected) {
+        long now = System.nanoTime();
+        users.entrySet().removeIf(e -> !connected.contains(e.getKey()) && Arrays.stream(e.getValue()).allMatch(b -> b == null || b.isFull(now)));
+    }
+
+    /**
+     * A token bucket stored as the time it will next be full (the generic cell rate
+     * algorithm): taking tokens moves that time forward, and there are enough tokens
+     * as long as it stays within one bucket's worth of time from now.
+     */
+    static final class Bucket {
+        private final double nanosPerToken;
+        private final long capacityNanos;
+        private final AtomicLong fullAt = new AtomicLong(System.nanoTime());
+
+        Bucket(double perSecond, double capacity) {
+            this.nanosPerToken = 1e9 / perSecond;
+            this.capacityNanos = (long) (capacity * nanosPerToken);
+        }
+
+        /**
+         * Takes tokens if the bucket has them and returns 0; otherwise takes none and
+         * returns how many nanoseconds until it will have them. A request larger than
+         * the bucket counts as a full bucket.
+         */
+        long tryTake(long tokens, long now) {
+            long cost = cost(tokens);
+            while (true) {
+                long current = fullAt.get();
+                long next = Math.max(current, now) + cost;
+                long over = next - now - capacityNanos;
+                if (over > 0) return over;
+                if (fullAt.compareAndSet(current, next)) return 0;
+            }
+        }
+
+        /** Takes tokens even if that leaves the bucket owing; returns how long until the debt is paid, or 0. */
+        long take(long tokens, long now) {
+            long cost = cost(tokens);
+            while (true) {
+                long current = fullAt.get();
+                long next = Math.max(current, now) + cost;
+                if (fullAt.compareAndSet(current, next)) return Math.max(0, next - now - capacityNanos);
+            }
+        }
+
+        /** Returns tokens taken for a command that was not relayed after all. */
+        void giveBack(long tokens) {
+            fullAt.addAndGet(-cost(tokens));
+        }
+
+        boolean isFull(long now) {
+            return fullAt.get() - now <= 0;
+        }
+
+        private long cost(long tokens) {
+            return Math.min(capacityNanos, (long) (tokens * nanosPerToken));
+        }
+    }
+}
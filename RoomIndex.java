@@ -0,0 +1,73 @@
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Who is in which room, indexed both ways: room to members for routing a post, and
+ * member to rooms for cleaning up when a client leaves. Both sides are concurrent
+ * maps of concurrent sets, so posting iterates a room's members without a lock while
+ * joins and leaves elsewhere go on; only changes to the same room contend, briefly,
+ * in compute() on that room's entry. A room disappears with its last member.
+ */
+final class RoomIndex<M> {
+    private final Map<String, Set<M>> members = new ConcurrentHashMap<>();
+    private final Map<M, Set<String>> rooms = new ConcurrentHashMap<>();
+
+    /** Returns false if member was already in the room. */
+    boolean join(String room, M member) {
+        boolean[] added = new boolean[1];
+        members.compute(room, (k, set) -> {
+            if (set == null) {
+                set = ConcurrentHashMap.newKeySet();
+            }
+            added[0] = set.add(member);
+            return set;
+        });
+        rooms.computeIfAbsent(member, k -> ConcurrentHashMap.newKeySet()).add(room);
+        return added[0];
+    }
+
+    /** Returns false if member was not in the room. */
+    boolean leave(String room, M member) {
+        boolean[] removed = new boolean[1];
+        members.computeIfPresent(room, (k, set) -> {
+            removed[0] = set.remove(member);
+            return set.isEmpty() ? null : set;
+        });
+        Set<String> joined = rooms.get(member);
+        if (joined != null) {
+            joined.remove(room);
+        }
+        return removed[0];
+    }
+
+    /** Takes member out of every room it is in. */
+    void leaveAll(M member) {
+        Set<String> joined = rooms.remove(member);
+        if (joined == null) return;
+        for (String room : joined) {
+            members.computeIfPresent(room, (k, set) -> {
+                set.remove(member);
+                return set.isEmpty() ? null : set;
+            });
+        }
+    }
+
+    /** A live view of the room's members; empty if the room does not exist. */
+    Set<M> members(String room) {
+        Set<M> set = members.get(room);
+        return set != null ? set : Collections.emptySet();
+    }
+
+    boolean isMember(String room, M member) {
+        return members(room).contains(member);
+    }
+
+    Set<String> roomsOf(M member) {
+        Set<String> joined = rooms.get(member);
+        return joined != null ? joined : Collections.emptySet();
+    }
+
+    int roomCount() {
+        return members.size();
+    }
+}
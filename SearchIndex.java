@@ -0,0 +1,416 @@
+import java.io.*;
+import java.time.*;
+import java.time.format.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.*;
+
+/**
+ * Inverted index over the message history, for keyword, sender and time-range search.
+ * {@link MessageLog} hands over the position of each message as it is appended; it
+ * goes into a tail that searches scan as it is, reading the records from the log. A
+ * background thread turns every full tail, and every tail left waiting for the seal
+ * interval, into an immutable segment: a sorted term dictionary with the sorted
+ * message numbers of each term. Segments are merged with
+ * their neighbours once these are no bigger, so months of history end up in a few
+ * dozen segments. Searches read the current segments and tails without waiting for
+ * the indexer, and adding a message only stores its position, so indexing never holds
+ * up the message being relayed.
+ *
+ * Messages are identified by their position in the log and kept in log order, which
+ * is also time order. Senders and conversations are indexed as the terms "from:name"
+ * and "in:conversation"; words never contain a colon, so these cannot collide. The
+ * index lives in memory and is rebuilt from the log at startup, like the log's own.
+ */
+final class SearchIndex implements Closeable {
+    private static final int TAIL_DOCS = 4096;
+    private static final long SEAL_MILLIS = 200;
+    private static final int MAX_WORD = 40;
+
+    /** Messages not in a segment yet. Only add() writes, and searches read up to size. */
+    private static final class Tail {
+        final long[] positions = new long[TAIL_DOCS];
+        volatile int size;
+    }
+
+    /** What a search sees, oldest first in each list; replaced whole, never changed. */
+    private static final class State {
+        final List<Segment> segments;
+        final List<Tail> sealed;
+        final Tail tail;
+
+        State(List<Segment> segments, List<Tail> sealed, Tail tail) {
+            this.segments = segments;
+            this.sealed = sealed;
+            this.tail = tail;
+        }
+    }
+
+    private final LongFunction<MessageLog.Entry> log;
+    private volatile State state = new State(List.of(), List.of(), new Tail());
+    private final ScheduledExecutorService indexer;
+
+    /** log reads the record at a position; any position handed to add() must be readable. */
+    SearchIndex(LongFunction<MessageLog.Entry> log) {
+        this.log = log;
+        indexer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "chat-search-index");
+            t.setDaemon(true);
+            return t;
+        });
+        indexer.scheduleWithFixedDelay(this::sealWaiting, SEAL_MILLIS, SEAL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /** Called by the log for every message once it is written, in log order. */
+    synchronized void add(long position) {
+        Tail tail = state.tail;
+        tail.positions[tail.size] = position;
+        tail.size++; // publishes the slot to searches
+        if (tail.size == TAIL_DOCS) {
+            seal();
+        }
+    }
+
+    private synchronized void sealWaiting() {
+        if (state.tail.size > 0) {
+            seal();
+        }
+    }
+
+    /** Starts a new tail and has the indexer build a segment from the old one; the lock is held. */
+    private void seal() {
+        State s = state;
+        List<Tail> sealed = new ArrayList<>(s.sealed);
+        sealed.add(s.tail);
+        state = new State(s.segments, sealed, new Tail());
+        indexer.execute(this::build);
+    }
+
+    /** Runs on the indexer, once for each sealed tail and in the order they were sealed. */
+    private void build() {
+        Tail tail = state.sealed.get(0);
+        List<Segment> segments = new ArrayList<>(state.segments);
+        segments.add(Segment.build(tail, log));
+        synchronized (this) {
+            List<Tail> sealed = new ArrayList<>(state.sealed);
+            sealed.remove(0);
+            state = new State(List.copyOf(segments), sealed, state.tail);
+        }
+        int n;
+        while ((n = segments.size()) >= 2 && level(segments.get(n - 2)) <= level(segments.get(n - 1))) {
+            Segment merged = Segment.merge(segments.get(n - 2), segments.remove(n - 1));
+            segments.set(n - 2, merged);
+            synchronized (this) {
+                state = new State(List.copyOf(segments), state.sealed, state.tail);
+            }
+        }
+    }
+
+    private static int level(Segment segment) {
+        return 31 - Integer.numberOfLeadingZeros(segment.size());
+    }
+
+    /**
+     * Log positions of the newest messages that match query and are in a conversation
+     * visible accepts, at most max of them, newest first.
+     */
+    List<Long> search(Query query, Predicate<String> visible, int max) {
+        State s = state;
+        List<Long> found = new ArrayList<>();
+        scan(s.tail, query, visible, max, found);
+        for (int i = s.sealed.size() - 1; i >= 0 && found.size() < max; i--) {
+            scan(s.sealed.get(i), query, visible, max, found);
+        }
+        for (int i = s.segments.size() - 1; i >= 0 && found.size() < max; i--) {
+            s.segments.get(i).search(query, visible, max, found);
+        }
+        return found;
+    }
+
+    private void scan(Tail tail, Query query, Predicate<String> visible, int max, List<Long> found) {
+        for (int i = tail.size - 1; i >= 0 && found.size() < max; i--) {
+            MessageLog.Entry e = log.apply(tail.positions[i]);
+            if (query.matches(e) && visible.test(e.conversation)) {
+                found.add(tail.positions[i]);
+            }
+        }
+    }
+
+    public void close() {
+        indexer.shutdownNow();
+    }
+
+    /** Passes each word of text to sink, lower-cased: runs of letters and digits, those longer than MAX_WORD left out. */
+    static void words(String text, Consumer<String> sink) {
+        StringBuilder word = new StringBuilder();
+        for (int i = 0; i <= text.length(); ) {
+            int c = i < text.length() ? text.codePointAt(i) : ' ';
+            i += Character.charCount(c);
+            if (Character.isLetterOrDigit(c)) {
+                word.appendCodePoint(Character.toLowerCase(c));
+            } else if (word.length() > 0) {
+                if (word.length() <= MAX_WORD) {
+                    sink.accept(word.toString());
+                }
+                word.setLength(0);
+            }
+        }
+    }
+
+    /**
+     * A search as a user typed it: words that must all appear, and optionally
+     * from:name, in:#room, with:name (the private conversation with name), after:time
+     * and before:time. A time is a date (2026-10-18), a date and time
+     * (2026-10-18T09:30) in the server's time zone, or an age such as 90m, 12h or 7d.
+     */
+    static final class Query {
+        final Set<String> words = new LinkedHashSet<>();
+        String sender;
+        String conversation;
+        long from = Long.MIN_VALUE;
+        long to = Long.MAX_VALUE;
+
+        /** Throws IllegalArgumentException, with a message for the user, if a filter cannot be read. */
+        static Query parse(String text, String user, long now) {
+            Query q = new Query();
+            for (String part : text.trim().split("\\s+")) {
+                int colon = part.indexOf(':');
+                String key = colon > 0 ? part.substring(0, colon).toLowerCase(Locale.ROOT) : "";
+                String value = part.substring(colon + 1);
+                if (key.equals("from") && !value.isEmpty()) {
+                    q.sender = value;
+                } else if (key.equals("in") && !value.isEmpty()) {
+                    q.conversation = value.startsWith("#") ? value : "#" + value;
+                } else if (key.equals("with") && !value.isEmpty()) {
+                    q.conversation = MessageLog.privateConversation(user, value);
+                } else if (key.equals("after")) {
+                    q.from = time(value, now);
+                } else if (key.equals("before")) {
+                    q.to = time(value, now);
+                } else {
+                    words(part, q.words::add);
+                }
+            }
+            return q;
+        }
+
+        private static long time(String value, long now) {
+            try {
+                if (value.matches("\\d+[mhdw]")) {
+                    long n = Long.parseLong(value.substring(0, value.length() - 1));
+                    long unit = value.endsWith("m") ? 60_000 : value.endsWith("h") ? 3_600_000 : value.endsWith("d") ? 86_400_000 : 604_800_000;
+                    return now - n * unit;
+                }
+                ZoneId zone = ZoneId.systemDefault();
+                if (value.contains("T")) {
+                    return LocalDateTime.parse(value).atZone(zone).toInstant().toEpochMilli();
+                }
+                return LocalDate.parse(value).atStartOfDay(zone).toInstant().toEpochMilli();
+            } catch (DateTimeParseException | ArithmeticException e) {
+                throw new IllegalArgumentException("cannot read the time '" + value + "'; use a date like 2026-10-18, 2026-10-18T09:30, or an age like 90m, 12h or 7d");
+            }
+        }
+
+        /** Every term a matching message must have in the index. */
+        List<String> terms() {
+            List<String> terms = new ArrayList<>(words);
+            if (sender != null) {
+                terms.add("from:" + sender);
+            }
+            if (conversation != null) {
+                terms.add("in:" + conversation);
+            }
+            return terms;
+        }
+
+        private boolean matches(MessageLog.Entry e) {
+            if (e.timestamp < from || e.timestamp >= to) return false;
+            if (sender != null && !sender.equals(e.sender)) return false;
+            if (conversation != null && !conversation.equals(e.conversation)) return false;
+            if (words.isEmpty()) return true;
+            Set<String> found = new HashSet<>();
+            words(e.text, found::add);
+            return found.containsAll(words);
+        }
+    }
+
+    /**
+     * Messages numbered 0 to size-1 in log order, with their positions, timestamps and
+     * conversations, and for every term the numbers of the messages that have it.
+     */
+    static final class Segment {
+        private final long[] positions;
+        private final long[] timestamps;
+        private final int[] conversations;
+        private final String[] conversationNames;
+        private final String[] terms;
+        private final int[][] postings;
+
+        private Segment(long[] positions, long[] timestamps, int[] conversations, String[] conversationNames, String[] terms, int[][] postings) {
+            this.positions = positions;
+            this.timestamps = timestamps;
+            this.conversations = conversations;
+            this.conversationNames = conversationNames;
+            this.terms = terms;
+            this.postings = postings;
+        }
+
+        int size() {
+            return positions.length;
+        }
+
+        private static Segment build(Tail tail, LongFunction<MessageLog.Entry> log) {
+            int size = tail.size;
+            long[] positions = Arrays.copyOf(tail.positions, size);
+            long[] timestamps = new long[size];
+            int[] conversations = new int[size];
+            Map<String, Integer> conversationIds = new LinkedHashMap<>();
+            Map<String, Postings> index = new HashMap<>();
+            for (int i = 0; i < size; i++) {
+                MessageLog.Entry e = log.apply(positions[i]);
+                int number = i;
+                timestamps[i] = e.timestamp;
+                conversations[i] = conversationIds.computeIfAbsent(e.conversation, k -> conversationIds.size());
+                words(e.text, word -> index.computeIfAbsent(word, k -> new Postings()).add(number));
+                index.computeIfAbsent("from:" + e.sender, k -> new Postings()).add(i);
+                index.computeIfAbsent("in:" + e.conversation, k -> new Postings()).add(i);
+            }
+            String[] terms = index.keySet().toArray(new String[0]);
+            Arrays.sort(terms);
+            int[][] postings = new int[terms.length][];
+            for (int i = 0; i < terms.length; i++) {
+                postings[i] = index.get(terms[i]).toArray();
+            }
+            return new Segment(positions, timestamps, conversations, conversationIds.keySet().toArray(new String[0]), terms, postings);
+        }
+
+        /** One segment holding older's messages followed by newer's. */
+        static Segment merge(Segment older, Segment newer) {
+            int offset = older.size();
+            long[] positions = concat(older.positions, newer.positions);
+            long[] timestamps = concat(older.timestamps, newer.timestamps);
+
+            Map<String, Integer> conversationIds = new LinkedHashMap<>();
+            for (String name : older.conversationNames) {
+                conversationIds.put(name, conversationIds.size());
+            }
+            int[] renumber = new int[newer.conversationNames.length];
+            for (int i = 0; i < renumber.length; i++) {
+                renumber[i] = conversationIds.computeIfAbsent(newer.conversationNames[i], k -> conversationIds.size());
+            }
+            int[] conversations = Arrays.copyOf(older.conversations, offset + newer.size());
+            for (int i = 0; i < newer.size(); i++) {
+                conversations[offset + i] = renumber[newer.conversations[i]];
+            }
+
+            List<String> terms = new ArrayList<>(older.terms.length + newer.terms.length);
+            List<int[]> postings = new ArrayList<>(older.terms.length + newer.terms.length);
+            int a = 0, b = 0;
+            while (a < older.terms.length || b < newer.terms.length) {
+                int order = a == older.terms.length ? 1 : b == newer.terms.length ? -1 : older.terms[a].compareTo(newer.terms[b]);
+                if (order < 0) {
+                    terms.add(older.terms[a]);
+                    postings.add(older.postings[a++]);
+                } else {
+                    int[] first = order == 0 ? older.postings[a] : new int[0];
+                    int[] second = newer.postings[b];
+                    int[] both = Arrays.copyOf(first, first.length + second.length);
+                    for (int i = 0; i < second.length; i++) {
+                        both[first.length + i] = offset + second[i];
+                    }
+                    terms.add(newer.terms[b++]);
+                    postings.add(both);
+                    if (order == 0) {
+                        a++;
+                    }
+                }
+            }
+            return new Segment(positions, timestamps, conversations, conversationIds.keySet().toArray(new String[0]),
+                    terms.toArray(new String[0]), postings.toArray(new int[0][]));
+        }
+
+        /**
+         * Adds matching positions to found, newest first, until it holds max. Candidates
+         * come from the term with the fewest messages, clipped to the time range, and
+         * are looked up in the other terms' lists by binary search.
+         */
+        void search(Query query, Predicate<String> visible, int max, List<Long> found) {
+            int lo = lowerBound(timestamps, query.from);
+            int hi = query.to == Long.MAX_VALUE ? size() : lowerBound(timestamps, query.to);
+            if (lo >= hi) return;
+            List<int[]> lists = new ArrayList<>();
+            for (String term : query.terms()) {
+                int i = Arrays.binarySearch(terms, term);
+                if (i < 0) return;
+                lists.add(postings[i]);
+            }
+            lists.sort(Comparator.comparingInt(list -> list.length));
+            byte[] seen = new byte[conversationNames.length]; // 0 not checked yet, 1 visible, 2 not
+            if (lists.isEmpty()) {
+                for (int doc = hi - 1; doc >= lo && found.size() < max; doc--) {
+                    consider(doc, visible, seen, found);
+                }
+                return;
+            }
+            int[] shortest = lists.get(0);
+            int start = lowerBound(shortest, lo);
+            candidates:
+            for (int k = lowerBound(shortest, hi) - 1; k >= start && found.size() < max; k--) {
+                int doc = shortest[k];
+                for (int i = 1; i < lists.size(); i++) {
+                    if (Arrays.binarySearch(lists.get(i), doc) < 0) continue candidates;
+                }
+                consider(doc, visible, seen, found);
+            }
+        }
+
+        private void consider(int doc, Predicate<String> visible, byte[] seen, List<Long> found) {
+            int c = conversations[doc];
+            if (seen[c] == 0) {
+                seen[c] = visible.test(conversationNames[c]) ? (byte) 1 : (byte) 2;
+            }
+            if (seen[c] == 1) {
+                found.add(positions[doc]);
+            }
+        }
+
+        private static int lowerBound(long[] values, long key) {
+            int lo = 0, hi = values.length;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (values[mid] < key) lo = mid + 1;
+                else hi = mid;
+            }
+            return lo;
+        }
+
+        private static int lowerBound(int[] values, int key) {
+            int i = Arrays.binarySearch(values, key);
+            return i >= 0 ? i : -i - 1;
+        }
+
+        private static long[] concat(long[] a, long[] b) {
+            long[] both = Arrays.copyOf(a, a.length + b.length);
+            System.arraycopy(b, 0, both, a.length, b.length);
+            return both;
+        }
+    }
+
+    /** The message numbers of one term while a segment is built; each number once, in order. */
+    private static final class Postings {
+        private int[] numbers = new int[4];
+        private int size;
+
+        void add(int number) {
+            if (size > 0 && numbers[size - 1] == number) return;
+            if (size == numbers.length) {
+                numbers = Arrays.copyOf(numbers, size * 2);
+            }
+            numbers[size++] = number;
+        }
+
+        int[] toArray() {
+            return Arrays.copyOf(numbers, size);
+        }
+    }
+}
@@ -0,0 +1,95 @@
+/**
+ * Startup settings for {@link ChatServer}, read from environment variables
+ * the same way {@code LoginClient} picks up its database settings.
+ */
+public class ServerConfig {
+    final int port = envInt("CHAT_PORT", 7500);
+    final String engine = env("CHAT_ENGINE", "nio");
+    final int ioThreads = envInt("CHAT_IO_THREADS", Math.max(2, Runtime.getRuntime().availableProcessors()));
+    final int acceptBacklog = envInt("CHAT_ACCEPT_BACKLOG", 1024);
+    final long handshakeTimeoutMillis = envLong("CHAT_HANDSHAKE_TIMEOUT_MS", 10_000);
+    final long pingIntervalMillis = envLong("CHAT_PING_INTERVAL_MS", 30_000);
+    final long idleTimeoutMillis = envLong("CHAT_IDLE_TIMEOUT_MS", 90_000);
+    final long writeTimeoutMillis = envLong("CHAT_WRITE_TIMEOUT_MS", 30_000);
+    final String historyDir = env("CHAT_HISTORY_DIR", "history");
+    final int historySegmentBytes = envInt("CHAT_HISTORY_SEGMENT_MB", 64) * 1024 * 1024;
+    final long historyFsyncMillis = envLong("CHAT_HISTORY_FSYNC_MS", 200);
+    final int historyReplay = envInt("CHAT_HISTORY_REPLAY", 50);
+    final int historyMaxReplay = envInt("CHAT_HISTORY_MAX_REPLAY", 1000);
+    final boolean searchIndex = !env("CHAT_SEARCH", "on").equalsIgnoreCase("off");
+    final int searchResults = envInt("CHAT_SEARCH_RESULTS", 50);
+    final String mailboxDir = env("CHAT_MAILBOX_DIR", "mailbox");
+    final long mailboxMaxBytes = envLong("CHAT_MAILBOX_MB", 64) * 1024 * 1024;
+    final long mailboxTtlMillis = envLong("CHAT_MAILBOX_TTL_HOURS", 7 * 24) * 60 * 60 * 1000;
+    final long queueBytes = envLong("CHAT_QUEUE_BYTES", 8L * 1024 * 1024);
+    final OutboundQueue.OverflowPolicy overflowPolicy =
+            OutboundQueue.OverflowPolicy.valueOf(env("CHAT_OVERFLOW_POLICY", "DROP_OLDEST").toUpperCase());
+    final long blockTimeoutMillis = envLong("CHAT_BLOCK_TIMEOUT_MS", 1000);
+    final boolean authRequired = env("CHAT_AUTH", System.getenv("DB_URL") != null ? "required" : "off").equalsIgnoreCase("required");
+    final int authThreads = envInt("CHAT_AUTH_THREADS", Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
+    final int authQueue = envInt("CHAT_AUTH_QUEUE", 256);
+    final long usersReloadMillis = envLong("CHAT_USERS_RELOAD_MS", 60_000);
+    final String logFile = env("CHAT_LOG_FILE", "server.log");
+    final long presenceWindowMillis = envLong("CHAT_PRESENCE_WINDOW_MS", 100);
+    final long sessionTtlMillis = envLong("CHAT_SESSION_TTL_MS", 30 * 60 * 1000);
+    final int protocolVersion = envInt("CHAT_PROTOCOL", Wire.VERSION);
+    final int maxFrameBytes = envInt("CHAT_MAX_FRAME_BYTES", 1024 * 1024);
+    final boolean tcpNoDelay = !env("CHAT_TCP_NODELAY", "true").equalsIgnoreCase("false");
+    final long flushDelayNanos = envLong("CHAT_FLUSH_DELAY_US", 0) * 1000;
+    final int flushBytes = envInt("CHAT_FLUSH_BYTES", 64 * 1024);
+    final int clusterPort = envInt("CHAT_CLUSTER_PORT", 0);
+    final String clusterHost = env("CHAT_CLUSTER_HOST", "127.0.0.1");
+    /** Shared by all nodes; a peer that does not present it in its hello is cut off. */
+    final String clusterSecret = env("CHAT_CLUSTER_SECRET", "");
+    final String clusterPeers = env("CHAT_CLUSTER_PEERS", "");
+    final String nodeId = env("CHAT_NODE_ID", "localhost:" + clusterPort);
+    final long clusterFlushNanos = envLong("CHAT_CLUSTER_FLUSH_US", 200) * 1000;
+    final int metricsPort = envInt("CHAT_METRICS_PORT", 9750);
+    final String metricsHost = env("CHAT_METRICS_HOST", "127.0.0.1");
+    /** Per-user rates, per second, enforced by {@link RateLimiter}; 0 turns a limit off. */
+    final double limitBroadcasts = envDouble("CHAT_LIMIT_BROADCASTS", 10);
+    final double limitPrivates = envDouble("CHAT_LIMIT_PRIVATES", 50);
+    final double limitRoomMessages = envDouble("CHAT_LIMIT_ROOM_MESSAGES", 20);
+    final double limitRoomChanges = envDouble("CHAT_LIMIT_ROOM_CHANGES", 10);
+    final double limitFiles = envDouble("CHAT_LIMIT_FILES", 2);
+    final double limitSearches = envDouble("CHAT_LIMIT_SEARCHES", 2);
+    final double limitBytes = envDouble("CHAT_LIMIT_BYTES", 8 * 1024 * 1024);
+    final double limitBurstSeconds = envDouble("CHAT_LIMIT_BURST_SECONDS", 3);
+    final RateLimiter.Action limitAction = RateLimiter.Action.valueOf(env("CHAT_LIMIT_ACTION", "DROP").toUpperCase());
+    final long limitMaxDelayMillis = envLong("CHAT_LIMIT_MAX_DELAY_MS", 5000);
+
+    ConnectionEngine createEngine(ServerMetrics metrics, AsyncLog logger) {
+        if (engine.equalsIgnoreCase("nio")) {
+            if (overflowPolicy == OutboundQueue.OverflowPolicy.BLOCK) {
+                // the waiting sender would hold up its whole I/O thread, maybe the one that has to drain the queue
+                throw new IllegalArgumentException("CHAT_OVERFLOW_POLICY=BLOCK needs CHAT_ENGINE=thread");
+            }
+            return new NioConnectionEngine(this, metrics, logger);
+        }
+        if (engine.equalsIgnoreCase("thread") || engine.equalsIgnoreCase("virtual")) {
+            return new ThreadPerConnectionEngine(this, metrics, logger);
+        }
+        throw new IllegalArgumentException("Unknown CHAT_ENGINE: " + engine);
+    }
+
+    OutboundQueue newOutboundQueue() {
+        return new OutboundQueue(queueBytes, overflowPolicy, blockTimeoutMillis);
+    }
+
+    static String env(String name, String defaultValue) {
+        String value = System.getenv(name);
+        return value == null || value.isEmpty() ? defaultValue : value;
+    }
+
+    static int envInt(String name, int defaultValue) {
+        return Integer.parseInt(env(name, String.valueOf(defaultValue)));
+    }
+
+    static long envLong(String name, long defaultValue) {
+        return Long.parseLong(env(name, String.valueOf(defaultValue)));
+    }
+
+    static double envDouble(String name, double defaultValue) {
+        return Double.parseDouble(env(name, String.valueOf(defaultValue)));
+    }
+}
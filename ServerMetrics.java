@@ -0,0 +1,149 @@
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Counters ChatServer keeps about itself. Everything here only counts up; {@link
+ * MetricsExporter} publishes them, and rates are the difference between two reads.
+ */
+final class ServerMetrics {
+    final LongAdder accepted = new LongAdder();
+    /** accept() calls that failed, and accepted sockets closed again before they could be served. */
+    final LongAdder acceptFailures = new LongAdder();
+    final LongAdder handshakesCompleted = new LongAdder();
+    final LongAdder handshakesTimedOut = new LongAdder();
+    final LongAdder handshakesRefused = new LongAdder();
+    /** Sessions closed for not answering pings, and for not taking their queued frames. */
+    final LongAdder idleReaped = new LongAdder();
+    final LongAdder writeTimeouts = new LongAdder();
+    /** Frames handed to the socket, and the write calls that carried them. */
+    final LongAdder framesWritten = new LongAdder();
+    final LongAdder writeCalls = new LongAdder();
+    /** Bytes read from client sockets, whatever they turn out to hold. */
+    final LongAdder bytesRead = new LongAdder();
+    /** Commands from clients and frames to them, by {@link Wire} opcode; writeUTF traffic is counted under the opcode it matches. */
+    final Traffic received = new Traffic(true);
+    final Traffic sent = new Traffic(false);
+    /** How long one message takes to be queued for every local recipient. */
+    final LatencyHistogram broadcastFanout = new LatencyHistogram();
+    final LatencyHistogram roomFanout = new LatencyHistogram();
+    /** How long a search takes, from parsing the query to having the matching messages read. */
+    final LatencyHistogram searchLatency = new LatencyHistogram();
+    /** Commands over a {@link RateLimiter} limit, by the limit they hit, and what was done with them. */
+    final LongAdder[] rateLimited = adders(RateLimiter.Limit.values().length);
+    final LongAdder limitDrops = new LongAdder();
+    final LongAdder limitDelays = new LongAdder();
+    final LongAdder limitDisconnects = new LongAdder();
+
+    private long lastAccepted;
+    private long lastTimedOut;
+    private long lastSampleNanos = System.nanoTime();
+    private long lastFrames;
+    private long lastWrites;
+
+    /**
+     * Returns a one-line summary of connection activity since the previous call, or
+     * null if nothing happened.
+     */
+    synchronized String sampleAccepts() {
+        long now = System.nanoTime();
+        long total = accepted.sum();
+        long timedOut = handshakesTimedOut.sum();
+        long newAccepts = total - lastAccepted;
+        long newTimeouts = timedOut - lastTimedOut;
+        double seconds = (now - lastSampleNanos) / 1e9;
+        lastAccepted = total;
+        lastTimedOut = timedOut;
+        lastSampleNanos = now;
+        if (newAccepts == 0 && newTimeouts == 0) return null;
+        return String.format("Accepted %d connections in %.0fs (%.1f/s), %d handshake timeouts, %d total",
+                newAccepts, seconds, newAccepts / seconds, newTimeouts, total);
+    }
+
+    /** How many frames each write call carried since the previous call, or null if nothing was written. */
+    synchronized String sampleWrites() {
+        long frames = framesWritten.sum();
+        long writes = writeCalls.sum();
+        long newFrames = frames - lastFrames;
+        long newWrites = writes - lastWrites;
+        lastFrames = frames;
+        lastWrites = writes;
+        if (newWrites == 0) return null;
+        return String.format("Wrote %d frames in %d writes (%.1f per write)", newFrames, newWrites, (double) newFrames / newWrites);
+    }
+
+    /** Adds every counter to into, under names in the Prometheus text style. */
+    void collect(Map<String, Number> into) {
+        into.put("chat_connections_accepted_total", accepted.sum());
+        into.put("chat_connections_accept_failures_total", acceptFailures.sum());
+        into.put("chat_handshakes_completed_total", handshakesCompleted.sum());
+        into.put("chat_handshakes_timed_out_total", handshakesTimedOut.sum());
+        into.put("chat_handshakes_refused_total", handshakesRefused.sum());
+        into.put("chat_sessions_idle_reaped_total", idleReaped.sum());
+        into.put("chat_sessions_write_timeouts_total", writeTimeouts.sum());
+        into.put("chat_bytes_read_total", bytesRead.sum());
+        into.put("chat_frames_written_total", framesWritten.sum());
+        into.put("chat_write_calls_total", writeCalls.sum());
+        received.collect("chat_received", into);
+        sent.collect("chat_sent", into);
+        collect("chat_broadcast_fanout_seconds", broadcastFanout, into);
+        collect("chat_room_fanout_seconds", roomFanout, into);
+        collect("chat_search_seconds", searchLatency, into);
+        for (RateLimiter.Limit limit : RateLimiter.Limit.values()) {
+            into.put("chat_rate_limited_total{limit=\"" + limit.label + "\"}", rateLimited[limit.ordinal()].sum());
+        }
+        into.put("chat_rate_limit_actions_total{action=\"drop\"}", limitDrops.sum());
+        into.put("chat_rate_limit_actions_total{action=\"delay\"}", limitDelays.sum());
+        into.put("chat_rate_limit_actions_total{action=\"disconnect\"}", limitDisconnects.sum());
+    }
+
+    private static LongAdder[] adders(int n) {
+        LongAdder[] adders = new LongAdder[n];
+        for (int i = 0; i < n; i++) {
+            adders[i] = new LongAdder();
+        }
+        return adders;
+    }
+
+    private static void collect(String name, LatencyHistogram h, Map<String, Number> into) {
+        for (double q : new double[] {0.5, 0.9, 0.99, 0.999}) {
+            into.put(name + "{quantile=\"" + q + "\"}", h.percentile(q) / 1e9);
+        }
+        into.put(name + "_max", h.max() / 1e9);
+        into.put(name + "_sum", h.sum() / 1e9);
+        into.put(name + "_count", h.count());
+    }
+
+    /** Message and byte counts per opcode, for one direction. */
+    static final class Traffic {
+        private final boolean toServer;
+        private final LongAdder[] messages = new LongAdder[256];
+        private final LongAdder[] bytes = new LongAdder[256];
+
+        Traffic(boolean toServer) {
+            this.toServer = toServer;
+            for (int i = 0; i < 256; i++) {
+                messages[i] = new LongAdder();
+                bytes[i] = new LongAdder();
+            }
+        }
+
+        void add(byte op, long byteCount) {
+            add(op, 1, byteCount);
+        }
+
+        void add(byte op, int count, long byteCount) {
+            messages[op & 0xff].add(count);
+            bytes[op & 0xff].add(byteCount);
+        }
+
+        private void collect(String prefix, Map<String, Number> into) {
+            for (int i = 0; i < 256; i++) {
+                long n = messages[i].sum();
+                if (n == 0) continue;
+                String label = "{op=\"" + Wire.opName((byte) i, toServer) + "\"}";
+                into.put(prefix + "_messages_total" + label, n);
+                into.put(prefix + "_bytes_total" + label, bytes[i].sum());
+            }
+        }
+    }
+}
@@ -3,40 +3,57 @@ import javax.swing.*;
 import java.awt.*;
 import java.io.*;
 import java.net.*;
-import java.util.logging.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
 
 public class SimpleChatClient extends JFrame {
     Socket socket;
-    DataOutputStream dataOut;
+    volatile DataOutputStream dataOut;
     DataInputStream dataIn;
+    final Object sendLock = new Object();
+    String sessionToken;
+    /** Whether the server agreed to {@link Wire} frames for this connection. */
+    volatile boolean binary;
+    /** Payload of the binary frame being written; used under sendLock. */
+    final ByteArrayOutputStream payload = new ByteArrayOutputStream();
+    final DataOutputStream payloadOut = new DataOutputStream(payload);
+    /** The server's ids for users, learned from USER_LIST, USER_DELTA and USER_NAME. */
+    final Map<String, Integer> userIds = new ConcurrentHashMap<>();
+    final Map<Integer, String> userNames = new HashMap<>(); // only touched by the reading thread
 
     ImageBackgroundPanel messagePanel;
-    JScrollPane scrollPane;
+    ChatView chatView;
     JTextField inputField;
     JButton sendButton, attachButton;
     JComboBox<String> userComboBox;
     boolean isBroadcast = true;
     String name;
+    final Set<String> rooms = Collections.synchronizedSet(new LinkedHashSet<>());
+    final Set<String> onlineUsers = new HashSet<>(); // only touched on the EDT
 
-    private static final Logger logger = Logger.getLogger(SimpleChatClient.class.getName());
+    static final int FILE_CHUNK_SIZE = 64 * 1024;
+    final AtomicInteger nextFileId = new AtomicInteger();
+    final Map<Integer, IncomingFile> incomingFiles = new HashMap<>();
 
-    public SimpleChatClient(String name) {
+    AsyncLog logger;
+
+    /** Logs in before showing the window; throws with the server's reason if the login is refused. */
+    public SimpleChatClient(String name, String password) throws IOException {
         this.name = name;
         setupLogger();
+        connectToServer(password, false);
+        chatView = new ChatView(ServerConfig.envInt("CHAT_VIEW_MAX_MESSAGES", 2000));
         setupGUI();
-        connectToServer();
+        addMessageBubble("Connected", false);
         startReading();
     }
 
     void setupLogger() {
-        try {
-            FileHandler fh = new FileHandler("client_" + name + ".txt", true);
-            fh.setFormatter(new SimpleFormatter());
-            logger.addHandler(fh);
-            logger.setUseParentHandlers(false);
-        } catch (IOException e) {
-            System.out.println("Logger failed: " + e.getMessage());
-        }
+        logger = AsyncLog.fromEnv("client", "client_" + name + ".txt");
     }
 
     void setupGUI() {
@@ -46,11 +63,8 @@ public class SimpleChatClient extends JFrame {
         setLayout(new BorderLayout());
 
         messagePanel = new ImageBackgroundPanel("C:\\Users\\mukes\\OneDrive\\Desktop\\97c00759d90d786d9b6096d274ad3e07.jpg");
-        scrollPane = new JScrollPane(messagePanel);
-        scrollPane.setVerticalScrollBarPolicy(JScrollPane.VERTICAL_SCROLLBAR_AS_NEEDED);
-        scrollPane.getVerticalScrollBar().setUnitIncrement(16);
-        scrollPane.setBorder(null);
-        add(scrollPane, BorderLayout.CENTER);
+        messagePanel.add(chatView.component(), BorderLayout.CENTER);
+        add(messagePanel, BorderLayout.CENTER);
 
         inputField = new JTextField();
         inputField.setFont(new Font("Arial", Font.PLAIN, 16));
@@ -85,8 +99,29 @@ public class SimpleChatClient extends JFrame {
         String text = inputField.getText().trim();
         if (text.isEmpty()) return;
 
+        if (text.startsWith("/join ") || text.startsWith("/leave ")) {
+            String room = text.substring(text.indexOf(' ') + 1).trim();
+            if (room.startsWith("#")) {
+                room = room.substring(1);
+            }
+            if (text.startsWith("/join ")) {
+                joinRoom(room);
+            } else {
+                leaveRoom(room);
+            }
+            inputField.setText("");
+            return;
+        }
+        if (text.startsWith("/search ")) {
+            search(text.substring(8).trim());
+            inputField.setText("");
+            return;
+        }
+
         String selectedUser = (String) userComboBox.getSelectedItem();
-        if (!isBroadcast && selectedUser != null && !selectedUser.equals("Broadcast to All")) {
+        if (!isBroadcast && selectedUser != null && selectedUser.startsWith("#")) {
+            sendRoomMessage(selectedUser.substring(1), text);
+        } else if (!isBroadcast && selectedUser != null && !selectedUser.equals("Broadcast to All")) {
             sendPrivateMessage(selectedUser, text);
         } else {
             sendMessage(text);
@@ -95,77 +130,340 @@ public class SimpleChatClient extends JFrame {
         inputField.setText("");
     }
 
+    /** Safe to call from any thread; the view adds it on the next frame. */
     void addMessageBubble(String message, boolean isSent) {
-        JPanel bubbleWrapper = new JPanel(new FlowLayout(isSent ? FlowLayout.RIGHT : FlowLayout.LEFT));
-        bubbleWrapper.setOpaque(false);//using custom background
-
-        JTextArea bubbleText = new JTextArea(message);
-        bubbleText.setLineWrap(true);
-        bubbleText.setWrapStyleWord(true);
-        bubbleText.setEditable(false);
-        bubbleText.setFont(new Font("Arial", Font.PLAIN, 14));
-        bubbleText.setBackground(isSent ? new Color(220, 248, 198, 230) : new Color(240, 240, 240, 200));
-        bubbleText.setBorder(BorderFactory.createEmptyBorder(8, 10, 8, 10));
-        bubbleText.setOpaque(true);
-
-        bubbleWrapper.add(bubbleText);
-        messagePanel.add(bubbleWrapper);
-        messagePanel.revalidate();
-        messagePanel.repaint();
-
-        SwingUtilities.invokeLater(() -> scrollPane.getVerticalScrollBar().setValue(scrollPane.getVerticalScrollBar().getMaximum()));
+        chatView.post(message, isSent);
     }
 
-    void connectToServer() {
+    /**
+     * Connects and logs in with a password, or with the session token from an earlier
+     * login, which the server checks without re-hashing the password. Asks for the
+     * binary protocol unless CHAT_PROTOCOL is 1, and stays on writeUTF strings if the
+     * server does not agree.
+     */
+    void connectToServer(String secret, boolean isToken) throws IOException {
+        Socket s = new Socket(ServerConfig.env("CHAT_HOST", "localhost"), ServerConfig.envInt("CHAT_PORT", 7500));
         try {
-            socket = new Socket("localhost", 7500);
-            dataOut = new DataOutputStream(socket.getOutputStream());
-            dataIn = new DataInputStream(socket.getInputStream());
-            dataOut.writeUTF(name);
-            dataOut.flush();
-            addMessageBubble("Connected", false);
+            s.setTcpNoDelay(true); // every send ends with an explicit flush of a whole message
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream(), FILE_CHUNK_SIZE + 64));
+            DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream(), 64 * 1024));
+            if (ServerConfig.envInt("CHAT_PROTOCOL", Wire.VERSION) >= Wire.VERSION) {
+                out.writeUTF("PROTO");
+                out.writeUTF(String.valueOf(Wire.VERSION));
+            }
+            out.writeUTF(isToken ? "TOKEN" : "AUTH");
+            out.writeUTF(name);
+            out.writeUTF(secret);
+            out.flush();
+
+            String reply = in.readUTF();
+            if (!reply.startsWith("AUTH_OK ")) {
+                throw new IOException(reply.startsWith("AUTH_FAIL ") ? reply.substring(10) : "Unexpected reply: " + reply);
+            }
+            String[] parts = reply.substring(8).split(" ");
+            sessionToken = parts[0];
+            userIds.clear();
+            userNames.clear();
+            socket = s;
+            dataIn = in;
+            synchronized (sendLock) {
+                binary = parts.length > 1 && parts[1].equals("v" + Wire.VERSION);
+                dataOut = out;
+            }
+            if (binary) {
+                s.setSoTimeout((int) ServerConfig.envLong("CHAT_PING_INTERVAL_MS", 30_000));
+            }
         } catch (IOException e) {
-            addMessageBubble("Connection failed: ", false);
+            s.close();
+            throw e;
         }
     }
 
+    /** Tries to get back in with the session token, backing off between attempts. */
+    boolean reconnect() {
+        for (int attempt = 0; attempt < 5; attempt++) {
+            try {
+                Thread.sleep(1000L << attempt);
+                connectToServer(sessionToken, true);
+                return true;
+            } catch (IOException e) {
+                logger.warn("Reconnect failed: {}", e.getMessage());
+            } catch (InterruptedException e) {
+                return false;
+            }
+        }
+        return false;
+    }
+
     void startReading() {
         new Thread(() -> {
-            try {
-                while (true) {
-                    String type = dataIn.readUTF();
-                    if (type.equals("File")) {
-                        String filename = dataIn.readUTF();
-                        int size = dataIn.readInt();
-                        byte[] fileBytes = new byte[size];
-                        dataIn.readFully(fileBytes);
-                        FileOutputStream fos = new FileOutputStream("received_" + filename);
-                        fos.write(fileBytes);
-                        fos.close();
-                        addMessageBubble("Received file: " + filename, false);
-                        logger.info("Received file: " + filename);
-                    } else if (type.startsWith("USER_LIST")) {
-                        updateUserList(type);
-                    } else {
-                        addMessageBubble(type, false);
-                        logger.info("Message received: " + type);
+            while (true) {
+                try {
+                    readMessages();
+                } catch (IOException e) {
+                    addMessageBubble("Disconnected.", false);
+                    logger.warn("Disconnected: {}", e.getMessage());
+                    for (IncomingFile file : incomingFiles.values()) {
+                        file.discard();
+                    }
+                    incomingFiles.clear();
+                    if (!reconnect()) return;
+                    addMessageBubble("Reconnected", false);
+                    synchronized (rooms) {
+                        for (String room : rooms) {
+                            sendRoomCommand("JOIN", room); // the server forgets rooms on disconnect
+                        }
                     }
                 }
-            } catch (IOException e) {
-                addMessageBubble("Disconnected.", false);
-                logger.warning("Disconnected: " + e.getMessage());
             }
         }).start();
     }
 
+    void readMessages() throws IOException {
+        if (binary) {
+            readBinaryMessages();
+            return;
+        }
+        while (true) {
+            String type = dataIn.readUTF();
+            if (type.equals("FILE_BEGIN")) {
+                int id = dataIn.readInt();
+                String filename = dataIn.readUTF();
+                receiveFileBegin(id, filename, dataIn.readLong());
+            } else if (type.equals("FILE_CHUNK")) {
+                int id = dataIn.readInt();
+                long offset = dataIn.readLong();
+                receiveFileChunk(id, offset, dataIn.readInt());
+            } else if (type.equals("FILE_ABORT")) {
+                receiveFileAbort(dataIn.readInt());
+            } else if (type.startsWith("USER_LIST")) {
+                updateUserList(type);
+            } else if (type.startsWith("USER_DELTA")) {
+                applyUserDelta(type);
+            } else {
+                showReceived(type);
+            }
+        }
+    }
+
+    /**
+     * The read loop for a connection on the binary protocol. Each frame is read into
+     * one array that is kept for the connection; file chunks go straight to disk. When
+     * the server has been quiet for the ping interval it is pinged, and if the next
+     * interval brings nothing either the connection is given up as dead.
+     */
+    void readBinaryMessages() throws IOException {
+        byte[] frame = new byte[256];
+        Wire.Reader r = new Wire.Reader();
+        boolean pinged = false;
+        while (true) {
+            byte op;
+            try {
+                op = dataIn.readByte();
+            } catch (SocketTimeoutException e) {
+                if (pinged) throw new IOException("Server stopped answering");
+                pinged = true;
+                sendEmptyFrame(Wire.PING);
+                continue;
+            }
+            pinged = false;
+            long length = Wire.readVarint(dataIn);
+            if (length < 0) {
+                throw new IOException("Negative frame length: " + length);
+            }
+            if (op == Wire.FILE_CHUNK) {
+                long id = Wire.readVarint(dataIn);
+                long offset = Wire.readVarint(dataIn);
+                long data = length - Wire.varintSize(id) - Wire.varintSize(offset);
+                if (id > Integer.MAX_VALUE || data > Integer.MAX_VALUE) {
+                    throw new IOException("Bad file chunk: id " + id + ", " + data + " bytes");
+                }
+                receiveFileChunk((int) id, offset, (int) data);
+                continue;
+            }
+            if (length > Integer.MAX_VALUE - 8) {
+                throw new IOException("Frame too large: " + length);
+            }
+            if (frame.length < length) {
+                frame = new byte[(int) Math.max(length, frame.length * 2L)];
+            }
+            dataIn.readFully(frame, 0, (int) length);
+            r.reset(frame, (int) length);
+            switch (op) {
+                case Wire.MESSAGE: {
+                    byte kind = r.get();
+                    String sender = userNames.get(r.id());
+                    String room = kind == Wire.IN_ROOM ? r.string() : null;
+                    showReceived(Wire.display(kind, sender, room, r.rest()));
+                    break;
+                }
+                case Wire.USER_LIST: {
+                    java.util.List<String> names = new ArrayList<>();
+                    while (r.hasRemaining()) {
+                        int id = r.id();
+                        String user = r.string();
+                        named(id, user);
+                        names.add(user);
+                    }
+                    setUsers(names);
+                    break;
+                }
+                case Wire.USER_DELTA: {
+                    java.util.List<String> changes = new ArrayList<>();
+                    while (r.hasRemaining()) {
+                        boolean joined = r.get() != 0;
+                        int id = r.id();
+                        if (joined) {
+                            String user = r.string();
+                            named(id, user);
+                            changes.add("+" + user);
+                        } else if (userNames.containsKey(id)) {
+                            changes.add("-" + userNames.get(id));
+                        }
+                    }
+                    applyUserChanges(changes);
+                    break;
+                }
+                case Wire.USER_NAME: {
+                    int id = r.id();
+                    named(id, r.rest());
+                    break;
+                }
+                case Wire.SEARCH_RESULTS:
+                    while (r.hasRemaining()) {
+                        long timestamp = r.varint();
+                        byte kind = r.get();
+                        String sender = userNames.get(r.id());
+                        String room = kind == Wire.IN_ROOM ? r.string() : null;
+                        showReceived(Wire.searchHit(timestamp, kind, sender, room, r.string()));
+                    }
+                    break;
+                case Wire.FILE_BEGIN: {
+                    int id = r.id();
+                    long size = r.varint();
+                    receiveFileBegin(id, r.rest(), size);
+                    break;
+                }
+                case Wire.FILE_ABORT:
+                    receiveFileAbort(r.id());
+                    break;
+                case Wire.PING:
+                    sendEmptyFrame(Wire.PONG);
+                    break;
+                case Wire.PONG:
+                    break;
+                default:
+                    logger.debug("Skipped frame with unknown opcode {}", op & 0xff);
+            }
+        }
+    }
+
+    void sendEmptyFrame(byte op) throws IOException {
+        synchronized (sendLock) {
+            Wire.writeFrame(dataOut, op, payload);
+            dataOut.flush();
+        }
+    }
+
+    void named(int id, String user) {
+        userNames.put(id, user);
+        userIds.put(user, id);
+    }
+
+    void showReceived(String message) {
+        addMessageBubble(message, false);
+        logger.info("Message received: {}", message);
+    }
+
+    void receiveFileBegin(int id, String name, long size) {
+        String filename = new File(name).getName();
+        try {
+            IncomingFile file = new IncomingFile(filename, size);
+            if (file.isComplete()) {
+                fileReceived(file);
+            } else {
+                incomingFiles.put(id, file);
+            }
+        } catch (IOException e) {
+            addMessageBubble("Cannot save file: " + filename, false);
+            logger.warn("Cannot save file {}: {}", filename, e.getMessage());
+        }
+    }
+
+    /** Reads the chunk's length bytes from dataIn, into the file if it is one being received. */
+    void receiveFileChunk(int id, long offset, int length) throws IOException {
+        if (id < 0 || offset < 0 || length < 0) {
+            throw new IOException("Bad file chunk: id " + id + ", offset " + offset + ", " + length + " bytes");
+        }
+        IncomingFile file = incomingFiles.get(id);
+        if (file == null) {
+            dataIn.skipNBytes(length);
+        } else if (!file.write(dataIn, offset, length)) {
+            incomingFiles.remove(id);
+            addMessageBubble("File transfer failed: " + file.filename, false);
+            logger.warn("Chunk missing for {} at offset {}", file.filename, offset);
+        } else if (file.isComplete()) {
+            incomingFiles.remove(id);
+            fileReceived(file);
+        }
+    }
+
+    void receiveFileAbort(int id) {
+        IncomingFile file = incomingFiles.remove(id);
+        if (file != null) {
+            file.discard();
+            addMessageBubble("File transfer cancelled: " + file.filename, false);
+        }
+    }
+
+    void fileReceived(IncomingFile file) throws IOException {
+        file.close();
+        addMessageBubble("Received file: " + file.filename, false);
+        logger.info("Received file: {}", file.filename);
+    }
+
     void updateUserList(String message) {
+        java.util.List<String> parts = Arrays.asList(message.split("/"));
+        setUsers(parts.subList(1, parts.size()));
+    }
+
+    void setUsers(java.util.List<String> users) {
         SwingUtilities.invokeLater(() -> {
             userComboBox.removeAllItems();
             userComboBox.addItem("Broadcast to All");
-            String[] parts = message.split("/");
-            for (int i = 1; i < parts.length; i++) {
-                if (!parts[i].equals(name)) {
-                    userComboBox.addItem(parts[i]);
+            synchronized (rooms) {
+                for (String room : rooms) {
+                    userComboBox.addItem("#" + room);
+                }
+            }
+            onlineUsers.clear();
+            for (String user : users) {
+                if (!user.equals(name) && onlineUsers.add(user)) {
+                    userComboBox.addItem(user);
+                }
+            }
+        });
+    }
+
+    /** Applies "USER_DELTA/+joined/-left" to the list the last USER_LIST started. */
+    void applyUserDelta(String message) {
+        java.util.List<String> parts = Arrays.asList(message.split("/"));
+        applyUserChanges(parts.subList(1, parts.size()));
+    }
+
+    /** changes are "+name" for a user who joined and "-name" for one who left. */
+    void applyUserChanges(java.util.List<String> changes) {
+        SwingUtilities.invokeLater(() -> {
+            for (String change : changes) {
+                if (change.length() < 2) continue;
+                String user = change.substring(1);
+                if (user.equals(name)) continue;
+                if (change.charAt(0) == '+') {
+                    if (onlineUsers.add(user)) {
+                        userComboBox.addItem(user);
+                    }
+                } else if (onlineUsers.remove(user)) {
+                    userComboBox.removeItem(user);
                 }
             }
         });
@@ -173,25 +471,120 @@ public class SimpleChatClient extends JFrame {
 
     void sendMessage(String msg) {
         try {
-            dataOut.writeUTF(msg);
-            dataOut.flush();
-            logger.info("Sent message: " + msg);
+            synchronized (sendLock) {
+                if (binary) {
+                    payloadOut.write(Wire.utf8(msg));
+                    Wire.writeFrame(dataOut, Wire.TEXT, payload);
+                } else {
+                    dataOut.writeUTF(msg);
+                }
+                dataOut.flush();
+            }
+            logger.info("Sent message: {}", msg);
         } catch (IOException e) {
             addMessageBubble("Error sending message.", false);
-            logger.warning("Error sending message: " + e.getMessage());
+            logger.warn("Error sending message: {}", e.getMessage());
         }
     }
 
     void sendPrivateMessage(String receiver, String msg) {
         try {
-            dataOut.writeUTF("PRIVATE");
-            dataOut.writeUTF(receiver);
-            dataOut.writeUTF(msg);
-            dataOut.flush();
-            logger.info("Sent private message to " + receiver + ": " + msg);
+            synchronized (sendLock) {
+                if (binary) {
+                    Wire.writeVarint(payloadOut, idOf(receiver));
+                    payloadOut.write(Wire.utf8(msg));
+                    Wire.writeFrame(dataOut, Wire.PRIVATE, payload);
+                } else {
+                    dataOut.writeUTF("PRIVATE");
+                    dataOut.writeUTF(receiver);
+                    dataOut.writeUTF(msg);
+                }
+                dataOut.flush();
+            }
+            logger.info("Sent private message to {}: {}", receiver, msg);
         } catch (IOException e) {
             addMessageBubble("Error sending private message.", false);
-            logger.warning("Error sending private message: " + e.getMessage());
+            logger.warn("Error sending private message: {}", e.getMessage());
+        }
+    }
+
+    /** The server's id for a user the binary protocol refers to; only users seen online have one. */
+    int idOf(String user) throws IOException {
+        Integer id = userIds.get(user);
+        if (id == null) {
+            payload.reset();
+            throw new IOException("No id for user " + user);
+        }
+        return id;
+    }
+
+    void joinRoom(String room) {
+        if (room.isEmpty() || !rooms.add(room)) return;
+        sendRoomCommand("JOIN", room);
+        SwingUtilities.invokeLater(() -> userComboBox.insertItemAt("#" + room, 1));
+    }
+
+    void leaveRoom(String room) {
+        if (!rooms.remove(room)) return;
+        sendRoomCommand("LEAVE", room);
+        SwingUtilities.invokeLater(() -> userComboBox.removeItem("#" + room));
+    }
+
+    void sendRoomCommand(String command, String room) {
+        try {
+            synchronized (sendLock) {
+                if (binary) {
+                    payloadOut.write(Wire.utf8(room));
+                    Wire.writeFrame(dataOut, command.equals("JOIN") ? Wire.JOIN : Wire.LEAVE, payload);
+                } else {
+                    dataOut.writeUTF(command);
+                    dataOut.writeUTF(room);
+                }
+                dataOut.flush();
+            }
+        } catch (IOException e) {
+            logger.warn("Error sending {} for #{}: {}", command, room, e.getMessage());
+        }
+    }
+
+    void sendRoomMessage(String room, String msg) {
+        try {
+            synchronized (sendLock) {
+                if (binary) {
+                    Wire.writeString(payloadOut, room);
+                    payloadOut.write(Wire.utf8(msg));
+                    Wire.writeFrame(dataOut, Wire.ROOM, payload);
+                } else {
+                    dataOut.writeUTF("ROOM");
+                    dataOut.writeUTF(room);
+                    dataOut.writeUTF(msg);
+                }
+                dataOut.flush();
+            }
+            logger.info("Sent message to #{}: {}", room, msg);
+        } catch (IOException e) {
+            addMessageBubble("Error sending room message.", false);
+            logger.warn("Error sending room message: {}", e.getMessage());
+        }
+    }
+
+    /** Asks the server to search its history; the results arrive like messages. */
+    void search(String query) {
+        try {
+            synchronized (sendLock) {
+                if (binary) {
+                    payloadOut.write(Wire.utf8(query));
+                    Wire.writeFrame(dataOut, Wire.SEARCH, payload);
+                } else {
+                    dataOut.writeUTF("SEARCH");
+                    dataOut.writeUTF(query);
+                }
+                dataOut.flush();
+            }
+            logger.info("Searched for: {}", query);
+        } catch (IOException e) {
+            addMessageBubble("Error sending search.", false);
+            logger.warn("Error sending search: {}", e.getMessage());
         }
     }
 
@@ -199,32 +592,135 @@ public class SimpleChatClient extends JFrame {
         JFileChooser fileChooser = new JFileChooser();
         if (fileChooser.showOpenDialog(this) == JFileChooser.APPROVE_OPTION) {
             File file = fileChooser.getSelectedFile();
-            try {
-                FileInputStream fis = new FileInputStream(file);
-                byte[] buffer = new byte[(int) file.length()];
-                fis.read(buffer);
-                fis.close();
-
-                String selectedUser = (String) userComboBox.getSelectedItem();
-                if (!isBroadcast && selectedUser != null && !selectedUser.equals("Broadcast to All")) {
-                    dataOut.writeUTF("PRIVATE_FILE");
-                    dataOut.writeUTF(selectedUser);
+            String selectedUser = (String) userComboBox.getSelectedItem();
+            String receiver = !isBroadcast && selectedUser != null && !selectedUser.equals("Broadcast to All") ? selectedUser : "";
+            new Thread(() -> streamFile(file, receiver)).start();
+        }
+    }
+
+    /**
+     * Sends a file as a FILE_BEGIN header followed by FILE_CHUNK frames read straight
+     * from disk, so only one chunk is in memory and chat messages can go out between
+     * chunks. receiver is empty for a broadcast and starts with "#" for a room.
+     */
+    void streamFile(File file, String receiver) {
+        int id = nextFileId.incrementAndGet();
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            synchronized (sendLock) {
+                if (binary) {
+                    Wire.writeVarint(payloadOut, id);
+                    if (receiver.isEmpty()) {
+                        payloadOut.writeByte(Wire.TO_ALL);
+                    } else if (receiver.startsWith("#")) {
+                        payloadOut.writeByte(Wire.TO_ROOM);
+                        Wire.writeString(payloadOut, receiver.substring(1));
+                    } else {
+                        payloadOut.writeByte(Wire.TO_USER);
+                        Wire.writeVarint(payloadOut, idOf(receiver));
+                    }
+                    Wire.writeVarint(payloadOut, size);
+                    payloadOut.write(Wire.utf8(file.getName()));
+                    Wire.writeFrame(dataOut, Wire.FILE_BEGIN, payload);
                 } else {
-                    dataOut.writeUTF("File");
+                    dataOut.writeUTF("FILE_BEGIN");
+                    dataOut.writeInt(id);
+                    dataOut.writeUTF(receiver);
+                    dataOut.writeUTF(file.getName());
+                    dataOut.writeLong(size);
                 }
+            }
 
-                dataOut.writeUTF(file.getName());
-                dataOut.writeInt(buffer.length);
-                dataOut.write(buffer);
+            ByteBuffer chunk = ByteBuffer.allocate(FILE_CHUNK_SIZE);
+            long sent = 0;
+            while (sent < size) {
+                chunk.clear();
+                chunk.limit((int) Math.min(chunk.capacity(), size - sent));
+                while (chunk.hasRemaining()) {
+                    if (channel.read(chunk) < 0) {
+                        throw new EOFException(file.getName() + " shrank while it was being sent");
+                    }
+                }
+                synchronized (sendLock) {
+                    if (binary) {
+                        dataOut.writeByte(Wire.FILE_CHUNK);
+                        Wire.writeVarint(dataOut, Wire.varintSize(id) + chunk.position());
+                        Wire.writeVarint(dataOut, id);
+                    } else {
+                        dataOut.writeUTF("FILE_CHUNK");
+                        dataOut.writeInt(id);
+                        dataOut.writeInt(chunk.position());
+                    }
+                    dataOut.write(chunk.array(), 0, chunk.position());
+                }
+                sent += chunk.position();
+            }
+            synchronized (sendLock) {
                 dataOut.flush();
+            }
 
-                addMessageBubble("File sent: " + file.getName(), true);
-                logger.info("File sent: " + file.getName());
-            } catch (IOException e) {
-                addMessageBubble("Error sending file.", false);
-                logger.warning("Error sending file: " + e.getMessage());
+            addMessageBubble("File sent: " + file.getName(), true);
+            logger.info("File sent: {}", file.getName());
+        } catch (IOException e) {
+            addMessageBubble("Error sending file.", false);
+            logger.warn("Error sending file: {}", e.getMessage());
+        }
+    }
+}
+
+/** A file being received chunk by chunk, written straight to disk as it arrives. */
+class IncomingFile {
+    final String filename;
+    final long size;
+    private final Path path;
+    private final FileChannel channel;
+    private final byte[] buffer = new byte[SimpleChatClient.FILE_CHUNK_SIZE];
+    private long written;
+
+    IncomingFile(String filename, long size) throws IOException {
+        this.filename = filename;
+        this.size = size;
+        this.path = Paths.get("received_" + filename);
+        this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+    }
+
+    /**
+     * Copies one chunk from in to the file. Returns false, after consuming and
+     * discarding the chunk, if it is not the next one expected (an earlier chunk was
+     * dropped by the server); the partial file is deleted.
+     */
+    boolean write(DataInputStream in, long offset, int length) throws IOException {
+        if (offset != written || written + length > size) {
+            in.skipNBytes(length);
+            discard();
+            return false;
+        }
+        while (length > 0) {
+            int n = Math.min(length, buffer.length);
+            in.readFully(buffer, 0, n);
+            ByteBuffer data = ByteBuffer.wrap(buffer, 0, n);
+            while (data.hasRemaining()) {
+                channel.write(data);
             }
+            written += n;
+            length -= n;
         }
+        return true;
+    }
+
+    boolean isComplete() {
+        return written == size;
+    }
+
+    void close() throws IOException {
+        channel.close();
+    }
+
+    void discard() {
+        try {
+            channel.close();
+            Files.deleteIfExists(path);
+        } catch (IOException e) {}
     }
 }
 
@@ -233,7 +729,7 @@ class ImageBackgroundPanel extends JPanel {
 
     public ImageBackgroundPanel(String imagePath) {
         this.background = new ImageIcon(imagePath).getImage();
-        setLayout(new BoxLayout(this, BoxLayout.Y_AXIS));
+        setLayout(new BorderLayout());
     }
 
     @Override
@@ -0,0 +1,221 @@
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
+import java.util.function.*;
+
+/**
+ * One blocking reader and one writer per connection, the writer draining the
+ * connection's {@link OutboundQueue}. Runs on virtual threads when the JVM has them
+ * (Java 21+) and falls back to a cached pool of platform threads otherwise. The
+ * writer sends runs of queued frames with one gathering write, and while the
+ * connection is busy it waits up to the flush delay for a run to build up.
+ */
+final class ThreadPerConnectionEngine implements ConnectionEngine {
+    private static final int MAX_BATCH = 64;
+    private static final long BUSY_NANOS = 1_000_000;
+
+    private final ServerConfig config;
+    private final ServerMetrics metrics;
+    private final AsyncLog logger;
+    private final ExecutorService executor;
+    private final boolean virtual;
+
+    ThreadPerConnectionEngine(ServerConfig config, ServerMetrics metrics, AsyncLog logger) {
+        this.config = config;
+        this.metrics = metrics;
+        this.logger = logger;
+        ExecutorService virtualExecutor = null;
+        try {
+            virtualExecutor = (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            // pre-21 JVM
+        }
+        virtual = virtualExecutor != null;
+        executor = virtual ? virtualExecutor : Executors.newCachedThreadPool();
+    }
+
+    public String name() {
+        return virtual ? "virtual-thread" : "thread-per-connection";
+    }
+
+    public void serve(int port, Function<Connection, FrameDecoder.Listener> sessions) throws IOException {
+        try (ServerSocketChannel server = ServerSocketChannel.open()) {
+            server.bind(new InetSocketAddress(port), config.acceptBacklog);
+            while (true) {
+                SocketChannel channel;
+                try {
+                    channel = server.accept();
+                } catch (IOException e) {
+                    ConnectionEngine.acceptFailed(server, e, metrics, logger);
+                    continue;
+                }
+                try {
+                    executor.execute(() -> handle(channel, sessions));
+                } catch (RejectedExecutionException e) {
+                    ConnectionEngine.dropAccepted(channel, e, metrics, logger);
+                }
+            }
+        }
+    }
+
+    private void handle(SocketChannel channel, Function<Connection, FrameDecoder.Listener> sessions) {
+        try {
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, config.tcpNoDelay);
+            channel.setOption(StandardSocketOptions.SO_KEEPALIVE, true);
+        } catch (IOException e) {
+            // keep the default
+        }
+        BlockingConnection connection = new BlockingConnection(channel, config.newOutboundQueue());
+        try {
+            connection.listener = sessions.apply(connection);
+            executor.execute(connection::writeLoop);
+        } catch (RuntimeException e) {
+            ConnectionEngine.dropAccepted(channel, e, metrics, logger);
+            connection.close();
+            return;
+        }
+        FrameDecoder decoder = new FrameDecoder(connection.listener);
+        ByteBuffer buffer = ByteBuffer.allocate(8192);
+        try {
+            while (channel.read(buffer) >= 0) {
+                connection.lastReadNanos = System.nanoTime();
+                buffer.flip();
+                metrics.bytesRead.add(buffer.remaining());
+                decoder.decode(buffer);
+                buffer.clear();
+                connection.waitOutPause();
+            }
+        } catch (IOException e) {
+            // treated as a disconnect
+        } catch (RuntimeException e) {
+            logger.error("Closing {} after an unexpected error: {}", connection.remoteAddress(), e);
+        } finally {
+            connection.close();
+        }
+    }
+
+    final class BlockingConnection implements Connection {
+        private final SocketChannel channel;
+        private final OutboundQueue outbound;
+        private final AtomicBoolean closed = new AtomicBoolean();
+        private volatile long lastReadNanos = System.nanoTime();
+        /** Set by pauseReading(); reader thread only. */
+        private long readResumeNanos = System.nanoTime();
+        FrameDecoder.Listener listener;
+
+        BlockingConnection(SocketChannel channel, OutboundQueue outbound) {
+            this.channel = channel;
+            this.outbound = outbound;
+        }
+
+        public void send(ByteBuffer frame) throws IOException {
+            queued(outbound.offer(frame.duplicate()));
+        }
+
+        public void sendControl(ByteBuffer frame) throws IOException {
+            queued(outbound.offerControl(frame.duplicate()));
+        }
+
+        public void send(FileSpool.Region region) throws IOException {
+            queued(outbound.offer(region));
+        }
+
+        private void queued(boolean accepted) throws IOException {
+            if (!accepted) {
+                boolean overflow = !closed.get();
+                close();
+                throw new IOException(overflow ? "Outbound queue full" : "Connection closed");
+            }
+        }
+
+        public OutboundQueue outbound() {
+            return outbound;
+        }
+
+        public long lastReadNanos() {
+            return lastReadNanos;
+        }
+
+        public void pauseReading(long nanos) {
+            long until = System.nanoTime() + nanos;
+            if (until - readResumeNanos > 0) {
+                readResumeNanos = until;
+            }
+        }
+
+        /** Called by the reader between reads; sleeps out a pause, or returns at once. */
+        void waitOutPause() {
+            long wait;
+            while ((wait = readResumeNanos - System.nanoTime()) > 0 && !closed.get()) {
+                LockSupport.parkNanos(wait);
+            }
+        }
+
+        void writeLoop() {
+            ByteBuffer[] batch = new ByteBuffer[MAX_BATCH];
+            Object frame = null;
+            long lastWriteNanos = System.nanoTime() - BUSY_NANOS;
+            try {
+                while (outbound.awaitFrames(System.nanoTime() - lastWriteNanos < BUSY_NANOS ? config.flushDelayNanos : 0, config.flushBytes)) {
+                    int n = outbound.pollBatch(batch, config.flushBytes);
+                    if (n > 0) {
+                        metrics.framesWritten.add(n);
+                        for (int start = 0; start < n; ) {
+                            channel.write(batch, start, n - start);
+                            metrics.writeCalls.increment();
+                            while (start < n && !batch[start].hasRemaining()) {
+                                batch[start++] = null;
+                            }
+                        }
+                        outbound.wrote(true);
+                    } else if ((frame = outbound.poll()) != null) {
+                        metrics.framesWritten.increment();
+                        metrics.writeCalls.increment();
+                        while (!OutboundQueue.write(frame, channel)) {
+                            // a blocking channel always makes progress
+                        }
+                        frame = null;
+                        outbound.wrote(true);
+                    }
+                    lastWriteNanos = System.nanoTime();
+                }
+                close(); // queue finished and drained, or already closed
+            } catch (IOException | InterruptedException | RuntimeException e) {
+                if (e instanceof RuntimeException) {
+                    logger.error("Closing {} after an unexpected error: {}", remoteAddress(), e);
+                }
+                if (frame != null) {
+                    OutboundQueue.abandon(frame);
+                }
+                close();
+            }
+        }
+
+        public void closeWhenFlushed() {
+            outbound.finish();
+        }
+
+        public void close() {
+            if (!closed.compareAndSet(false, true)) return;
+            outbound.close();
+            try {
+                channel.close();
+            } catch (IOException e) {}
+            if (listener != null) {
+                listener.onClose();
+            }
+        }
+
+        public String remoteAddress() {
+            try {
+                return String.valueOf(channel.getRemoteAddress());
+            } catch (IOException e) {
+                return "?";
+            }
+        }
+    }
+}
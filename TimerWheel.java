@@ -0,0 +1,90 @@
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Hashed timer wheel: one thread and a ring of slots, each holding the timeouts due
+ * in that tick of a turn. Scheduling and cancelling are O(1) and touch no shared
+ * lock, so every connection can keep a timeout (handshake, heartbeat) without a heap
+ * of scheduled futures or a thread of its own. Timeouts fire on the wheel's thread,
+ * up to one tick late, and must not block.
+ */
+final class TimerWheel {
+    final class Timeout {
+        private final Runnable task;
+        private final long deadline;
+        private volatile boolean cancelled;
+
+        private Timeout(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        void cancel() {
+            cancelled = true;
+        }
+    }
+
+    private final long tickNanos;
+    private final ArrayDeque<Timeout>[] slots;
+    private final int mask;
+    private final Queue<Timeout> added = new ConcurrentLinkedQueue<>();
+    private final long start = System.nanoTime();
+    private long tick;
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    TimerWheel(String name, long tickMillis, int slotCount) {
+        this.tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+        int size = Integer.highestOneBit(Math.max(2, slotCount - 1)) << 1;
+        this.slots = new ArrayDeque[size];
+        for (int i = 0; i < size; i++) {
+            slots[i] = new ArrayDeque<>();
+        }
+        this.mask = size - 1;
+        Thread t = new Thread(this::run, name);
+        t.setDaemon(true);
+        t.start();
+    }
+
+    Timeout schedule(Runnable task, long delayMillis) {
+        Timeout timeout = new Timeout(task, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delayMillis));
+        added.add(timeout);
+        return timeout;
+    }
+
+    private void run() {
+        while (true) {
+            long next = start + (tick + 1) * tickNanos;
+            long wait;
+            while ((wait = next - System.nanoTime()) > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(wait);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+            Timeout timeout;
+            while ((timeout = added.poll()) != null) {
+                if (timeout.cancelled) continue;
+                // a timeout already due goes in the current slot, which is expired below
+                long due = Math.max(tick, (timeout.deadline - start + tickNanos - 1) / tickNanos - 1);
+                slots[(int) (due & mask)].add(timeout);
+            }
+            ArrayDeque<Timeout> slot = slots[(int) (tick & mask)];
+            long now = System.nanoTime();
+            for (int n = slot.size(); n > 0; n--) {
+                timeout = slot.poll();
+                if (timeout.cancelled) continue;
+                if (timeout.deadline - now > tickNanos) {
+                    slot.add(timeout); // due in a later turn of the wheel
+                    continue;
+                }
+                try {
+                    timeout.task.run();
+                } catch (RuntimeException e) {
+                    // one failing task must not stop the wheel
+                }
+            }
+            tick++;
+        }
+    }
+}
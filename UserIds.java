@@ -0,0 +1,30 @@
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Numbers that stand for user names in binary frames. An id is never reused while the
+ * server runs, so a frame that mentions one still means the same user after they
+ * leave, and a message from a user costs a varint instead of their name.
+ */
+final class UserIds {
+    private final Map<String, Integer> ids = new ConcurrentHashMap<>();
+    private final Map<Integer, String> names = new ConcurrentHashMap<>();
+    private final AtomicInteger next = new AtomicInteger();
+
+    /** Ids start at 1; 0 means no user. */
+    int idOf(String name) {
+        Integer id = ids.get(name);
+        if (id != null) return id;
+        return ids.computeIfAbsent(name, n -> {
+            int assigned = next.incrementAndGet();
+            names.put(assigned, n);
+            return assigned;
+        });
+    }
+
+    /** null for an id that was never handed out. */
+    String nameOf(int id) {
+        return names.get(id);
+    }
+}
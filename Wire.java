@@ -0,0 +1,374 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.charset.*;
+import java.time.*;
+import java.time.format.*;
+import java.util.*;
+
+/**
+ * Version 2 of the wire protocol, shared by {@link ChatServer} and
+ * {@link SimpleChatClient}. A client asks for it by sending "PROTO", "2" before its
+ * login; a server that agrees answers "AUTH_OK token v2", and from then on both sides
+ * send binary frames: an opcode byte, the payload length as a varint, the payload.
+ * Numbers inside a payload are varints and strings are UTF-8; a string is prefixed with
+ * its length unless it is the last field, which runs to the end of the payload. Users
+ * are referred to by the ids the server hands out in USER_LIST, USER_DELTA and
+ * USER_NAME frames instead of by name. Clients that do not ask, or get a reply without
+ * "v2", keep using the writeUTF format.
+ */
+final class Wire {
+    static final int VERSION = 2;
+
+    // client to server
+    static final byte TEXT = 0x01;       // text
+    static final byte PRIVATE = 0x02;    // user id, text
+    static final byte ROOM = 0x03;       // room, text
+    static final byte JOIN = 0x04;       // room
+    static final byte LEAVE = 0x05;      // room
+    static final byte SEARCH = 0x06;     // query, as SearchIndex.Query reads it
+
+    // server to client
+    static final byte MESSAGE = 0x01;    // kind, sender id (0 for none), room if kind is IN_ROOM, text
+    static final byte USER_LIST = 0x10;  // (id, name)*: everyone online
+    static final byte USER_DELTA = 0x11; // (1, id, name | 0, id)*: joined or left
+    static final byte USER_NAME = 0x12;  // id, name: a user mentioned before the client saw them online
+    static final byte SEARCH_RESULTS = 0x13; // (timestamp, kind, sender id, room if kind is IN_ROOM, text)*, oldest first
+
+    // both directions
+    static final byte FILE_BEGIN = 0x20; // to the server: id, target, size, name; to a client: id, size, name
+    static final byte FILE_CHUNK = 0x21; // to the server: id, bytes; to a client: id, offset, bytes
+    static final byte FILE_ABORT = 0x22; // id
+    static final byte PING = 0x30;       // empty; answered with PONG
+    static final byte PONG = 0x31;       // empty
+
+    // MESSAGE kinds
+    static final byte BROADCAST = 0;
+    static final byte DIRECT = 1;
+    static final byte IN_ROOM = 2;
+    static final byte NOTICE = 3;
+
+    // FILE_BEGIN targets, followed by nothing, a user id or a room
+    static final byte TO_ALL = 0;
+    static final byte TO_USER = 1;
+    static final byte TO_ROOM = 2;
+
+    /** PING and PONG carry nothing, so one frame of each is shared. */
+    static final ByteBuffer PING_FRAME = ByteBuffer.wrap(new byte[] {PING, 0}).asReadOnlyBuffer();
+    static final ByteBuffer PONG_FRAME = ByteBuffer.wrap(new byte[] {PONG, 0}).asReadOnlyBuffer();
+
+    private static final DateTimeFormatter SEARCH_TIME = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm").withZone(ZoneId.systemDefault());
+
+    private Wire() {}
+
+    /**
+     * Frames to a client that its view of the chat depends on: the user list, the names
+     * behind ids, and pings. Losing one leaves the client wrong for good, so they are
+     * never dropped to make room in its queue.
+     */
+    static boolean isControl(byte op) {
+        return op == USER_LIST || op == USER_DELTA || op == USER_NAME || op == PING || op == PONG;
+    }
+
+    /** A short lower-case name for op, for metrics; toServer tells TEXT from MESSAGE, which share a number. */
+    static String opName(byte op, boolean toServer) {
+        switch (op) {
+            case TEXT: return toServer ? "text" : "message";
+            case PRIVATE: return "private";
+            case ROOM: return "room";
+            case JOIN: return "join";
+            case LEAVE: return "leave";
+            case SEARCH: return "search";
+            case USER_LIST: return "user_list";
+            case USER_DELTA: return "user_delta";
+            case USER_NAME: return "user_name";
+            case SEARCH_RESULTS: return "search_results";
+            case FILE_BEGIN: return "file_begin";
+            case FILE_CHUNK: return "file_chunk";
+            case FILE_ABORT: return "file_abort";
+            case PING: return "ping";
+            case PONG: return "pong";
+            default: return "unknown";
+        }
+    }
+
+    /** The line a MESSAGE stands for, as older clients are sent it in full. */
+    static String display(byte kind, String sender, String room, String text) {
+        switch (kind) {
+            case DIRECT: return "[Private] " + sender + ": " + text;
+            case IN_ROOM: return "[#" + room + "] " + sender + ": " + text;
+            case NOTICE: return text;
+            default: return sender + ": " + text;
+        }
+    }
+
+    /** A search hit as a line to show, with the time it was sent. */
+    static String searchHit(long timestamp, byte kind, String sender, String room, String text) {
+        return "[" + SEARCH_TIME.format(Instant.ofEpochMilli(timestamp)) + "] " + display(kind, sender, room, text);
+    }
+
+    static ByteBuffer message(byte kind, int senderId, String room, String text) {
+        byte[] r = room != null ? utf8(room) : null;
+        byte[] t = utf8(text);
+        ByteBuffer buf = start(MESSAGE, 1 + varintSize(senderId) + (r != null ? varintSize(r.length) + r.length : 0) + t.length);
+        buf.put(kind);
+        putVarint(buf, senderId);
+        if (r != null) {
+            putVarint(buf, r.length);
+            buf.put(r);
+        }
+        buf.put(t);
+        return finish(buf);
+    }
+
+    static ByteBuffer notice(String text) {
+        return message(NOTICE, 0, null, text);
+    }
+
+    /** The MESSAGE kind a logged message was sent as. */
+    static byte kindOf(MessageLog.Entry e) {
+        return e.isPrivate() ? DIRECT : e.room() != null ? IN_ROOM : BROADCAST;
+    }
+
+    static ByteBuffer searchResults(List<MessageLog.Entry> hits, UserIds ids) {
+        int[] senderIds = new int[hits.size()];
+        byte[][] rooms = new byte[hits.size()][];
+        byte[][] texts = new byte[hits.size()][];
+        int length = 0;
+        for (int i = 0; i < hits.size(); i++) {
+            MessageLog.Entry e = hits.get(i);
+            senderIds[i] = ids.idOf(e.sender);
+            texts[i] = utf8(e.text);
+            length += varintSize(e.timestamp) + 1 + varintSize(senderIds[i]) + varintSize(texts[i].length) + texts[i].length;
+            if (kindOf(e) == IN_ROOM) {
+                rooms[i] = utf8(e.room());
+                length += varintSize(rooms[i].length) + rooms[i].length;
+            }
+        }
+        ByteBuffer buf = start(SEARCH_RESULTS, length);
+        for (int i = 0; i < hits.size(); i++) {
+            MessageLog.Entry e = hits.get(i);
+            putVarint(buf, e.timestamp);
+            buf.put(kindOf(e));
+            putVarint(buf, senderIds[i]);
+            if (rooms[i] != null) {
+                putVarint(buf, rooms[i].length);
+                buf.put(rooms[i]);
+            }
+            putVarint(buf, texts[i].length);
+            buf.put(texts[i]);
+        }
+        return finish(buf);
+    }
+
+    static ByteBuffer userName(int id, String name) {
+        byte[] n = utf8(name);
+        ByteBuffer buf = start(USER_NAME, varintSize(id) + n.length);
+        putVarint(buf, id);
+        buf.put(n);
+        return finish(buf);
+    }
+
+    static ByteBuffer userList(Collection<String> names, UserIds ids) {
+        Map<String, Boolean> online = new LinkedHashMap<>();
+        for (String name : names) {
+            online.put(name, true);
+        }
+        return users(USER_LIST, online, ids);
+    }
+
+    /** changes maps each name to whether the user is now online. */
+    static ByteBuffer userDelta(Map<String, Boolean> changes, UserIds ids) {
+        return users(USER_DELTA, changes, ids);
+    }
+
+    private static ByteBuffer users(byte op, Map<String, Boolean> users, UserIds ids) {
+        int[] id = new int[users.size()];
+        byte[][] name = new byte[users.size()][];
+        int length = 0;
+        int i = 0;
+        for (Map.Entry<String, Boolean> user : users.entrySet()) {
+            id[i] = ids.idOf(user.getKey());
+            length += (op == USER_DELTA ? 1 : 0) + varintSize(id[i]);
+            if (user.getValue()) {
+                name[i] = utf8(user.getKey());
+                length += varintSize(name[i].length) + name[i].length;
+            }
+            i++;
+        }
+        ByteBuffer buf = start(op, length);
+        for (i = 0; i < id.length; i++) {
+            if (op == USER_DELTA) {
+                buf.put((byte) (name[i] != null ? 1 : 0));
+            }
+            putVarint(buf, id[i]);
+            if (name[i] != null) {
+                putVarint(buf, name[i].length);
+                buf.put(name[i]);
+            }
+        }
+        return finish(buf);
+    }
+
+    static ByteBuffer fileBegin(int id, String fileName, long size) {
+        byte[] n = utf8(fileName);
+        ByteBuffer buf = start(FILE_BEGIN, varintSize(id) + varintSize(size) + n.length);
+        putVarint(buf, id);
+        putVarint(buf, size);
+        buf.put(n);
+        return finish(buf);
+    }
+
+    /** The frame up to the chunk's bytes, which follow from the spool. */
+    static ByteBuffer fileChunkHeader(int id, long offset, int length) {
+        int header = varintSize(id) + varintSize(offset);
+        ByteBuffer buf = ByteBuffer.allocate(1 + varintSize(header + length) + header);
+        buf.put(FILE_CHUNK);
+        putVarint(buf, header + length);
+        putVarint(buf, id);
+        putVarint(buf, offset);
+        return finish(buf);
+    }
+
+    static ByteBuffer fileAbort(int id) {
+        ByteBuffer buf = start(FILE_ABORT, varintSize(id));
+        putVarint(buf, id);
+        return finish(buf);
+    }
+
+    private static ByteBuffer start(byte op, int length) {
+        ByteBuffer buf = ByteBuffer.allocate(1 + varintSize(length) + length);
+        buf.put(op);
+        putVarint(buf, length);
+        return buf;
+    }
+
+    private static ByteBuffer finish(ByteBuffer buf) {
+        return buf.flip().asReadOnlyBuffer();
+    }
+
+    static byte[] utf8(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /** What {@link #utf8} would return the length of, without encoding. */
+    static int utf8Length(String s) {
+        int length = s.length();
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c >= 0x800 && !Character.isSurrogate(c)) {
+                length += 2;
+            } else if (c >= 0x80) {
+                length++; // two bytes, or half of a four-byte pair
+            }
+        }
+        return length;
+    }
+
+    static int varintSize(long v) {
+        int size = 1;
+        while ((v >>>= 7) != 0) {
+            size++;
+        }
+        return size;
+    }
+
+    /** Seven bits per byte, low bits first, high bit set on all but the last byte. */
+    static void putVarint(ByteBuffer buf, long v) {
+        while ((v & ~0x7fL) != 0) {
+            buf.put((byte) ((v & 0x7f) | 0x80));
+            v >>>= 7;
+        }
+        buf.put((byte) v);
+    }
+
+    static void writeVarint(DataOutput out, long v) throws IOException {
+        while ((v & ~0x7fL) != 0) {
+            out.writeByte((int) ((v & 0x7f) | 0x80));
+            v >>>= 7;
+        }
+        out.writeByte((int) v);
+    }
+
+    static long readVarint(DataInput in) throws IOException {
+        long v = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.readUnsignedByte();
+            v |= (long) (b & 0x7f) << shift;
+            if (b < 0x80) return v;
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    /** A length-prefixed string, for any field but the last. */
+    static void writeString(DataOutput out, String s) throws IOException {
+        byte[] b = utf8(s);
+        writeVarint(out, b.length);
+        out.write(b);
+    }
+
+    /** Writes op, the payload's length and the payload, and empties it for the next frame. */
+    static void writeFrame(DataOutputStream out, byte op, ByteArrayOutputStream payload) throws IOException {
+        out.writeByte(op);
+        writeVarint(out, payload.size());
+        payload.writeTo(out);
+        payload.reset();
+    }
+
+    /**
+     * Reads the fields of one payload held in a byte array. The reader and the array
+     * are reused from frame to frame; only the strings it returns are allocated.
+     */
+    static final class Reader {
+        private byte[] buf;
+        private int pos;
+        private int end;
+
+        Reader reset(byte[] buf, int length) {
+            this.buf = buf;
+            this.pos = 0;
+            this.end = length;
+            return this;
+        }
+
+        boolean hasRemaining() {
+            return pos < end;
+        }
+
+        byte get() throws IOException {
+            if (pos >= end) throw new EOFException("Frame ends early");
+            return buf[pos++];
+        }
+
+        long varint() throws IOException {
+            long v = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                int b = get() & 0xff;
+                v |= (long) (b & 0x7f) << shift;
+                if (b < 0x80) return v;
+            }
+            throw new IOException("Malformed varint");
+        }
+
+        int id() throws IOException {
+            long v = varint();
+            if (v < 0 || v > Integer.MAX_VALUE) throw new IOException("Id out of range: " + v);
+            return (int) v;
+        }
+
+        String string() throws IOException {
+            long length = varint();
+            if (length < 0) throw new IOException("Negative string length: " + length);
+            if (length > end - pos) throw new EOFException("Frame ends early");
+            String s = new String(buf, pos, (int) length, StandardCharsets.UTF_8);
+            pos += (int) length;
+            return s;
+        }
+
+        /** The last field: everything left in the payload. */
+        String rest() {
+            String s = new String(buf, pos, end - pos, StandardCharsets.UTF_8);
+            pos = end;
+            return s;
+        }
+    }
+}
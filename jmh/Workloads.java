@@ -0,0 +1,204 @@
+import java.io.*;
+import java.nio.*;
+import java.util.*;
+
+/**
+ * The code the benchmarks in jmh/bench time. JMH will not generate benchmarks for
+ * classes in the default package, and a class in a named package cannot name the
+ * server's classes, so the benchmarks call these methods through method handles and
+ * everything that crosses over is a JDK type. This class is public for that reason.
+ */
+public final class Workloads {
+    private Workloads() {}
+
+    public static ByteBuffer encodeLegacy(String text) throws IOException {
+        return Outgoing.broadcast("alice", 1, text).legacy();
+    }
+
+    public static ByteBuffer encodeBinary(String text) {
+        return Outgoing.broadcast("alice", 1, text).binary();
+    }
+
+    /** A name-only login followed by count chat lines, as an older client sends them. */
+    public static ByteBuffer legacyCommands(String text, int count) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeUTF("alice");
+        for (int i = 0; i < count; i++) {
+            out.writeUTF(text);
+        }
+        return ByteBuffer.wrap(bytes.toByteArray()).asReadOnlyBuffer();
+    }
+
+    /** count TEXT frames, as a client on the binary protocol sends them after logging in. */
+    public static ByteBuffer binaryCommands(String text, int count) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        for (int i = 0; i < count; i++) {
+            payload.write(Wire.utf8(text));
+            Wire.writeFrame(out, Wire.TEXT, payload);
+        }
+        return ByteBuffer.wrap(bytes.toByteArray()).asReadOnlyBuffer();
+    }
+
+    /** Returns the characters decoded, so the work cannot be optimized away. */
+    public static long decodeLegacy(ByteBuffer commands) throws IOException {
+        Counter counter = new Counter();
+        new FrameDecoder(counter).decode(commands.duplicate());
+        return counter.chars;
+    }
+
+    public static long decodeBinary(ByteBuffer commands) throws IOException {
+        Counter counter = new Counter();
+        new BinaryDecoder(counter, id -> "bob", 1024 * 1024).decode(commands.duplicate());
+        return counter.chars;
+    }
+
+    /** Outbound queues for recipients clients, legacyPercent of them on the writeUTF protocol. */
+    public static Object fanout(int recipients, int legacyPercent) {
+        return new Fanout(recipients, legacyPercent);
+    }
+
+    /**
+     * Queues one broadcast for every recipient the way ChatServer does, then takes a
+     * batch from each queue the way a writer does, so the queues stay short.
+     */
+    public static void broadcast(Object fanout) throws IOException {
+        Fanout f = (Fanout) fanout;
+        Outgoing message = Outgoing.broadcast("alice", 1, "Is everyone here for the release meeting?");
+        for (int i = 0; i < f.queues.length; i++) {
+            f.queues[i].offer((f.binary[i] ? message.binary() : message.legacy()).duplicate());
+        }
+        for (OutboundQueue queue : f.queues) {
+            int n = queue.pollBatch(f.batch, 64 * 1024);
+            Arrays.fill(f.batch, 0, n, null);
+        }
+    }
+
+    /**
+     * The same broadcast encoded again for every recipient, as ChatServer did before
+     * frames were shared: the baseline for {@link #broadcast}.
+     */
+    public static void broadcastEncodingEach(Object fanout) throws IOException {
+        Fanout f = (Fanout) fanout;
+        for (int i = 0; i < f.queues.length; i++) {
+            Outgoing message = Outgoing.broadcast("alice", 1, "Is everyone here for the release meeting?");
+            f.queues[i].offer(f.binary[i] ? message.binary() : message.legacy());
+        }
+        for (OutboundQueue queue : f.queues) {
+            int n = queue.pollBatch(f.batch, 64 * 1024);
+            Arrays.fill(f.batch, 0, n, null);
+        }
+    }
+
+    /** count online users, and a presence window of 100 joins and leaves among them. */
+    public static Object users(int count) {
+        return new Users(count);
+    }
+
+    public static Object legacySnapshot(Object users) {
+        return Presence.snapshot(((Users) users).names);
+    }
+
+    public static ByteBuffer binarySnapshot(Object users) {
+        Users u = (Users) users;
+        return Wire.userList(u.names, u.ids);
+    }
+
+    public static ByteBuffer binaryDelta(Object users) {
+        Users u = (Users) users;
+        return Wire.userDelta(u.changes, u.ids);
+    }
+
+    private static final class Fanout {
+        final OutboundQueue[] queues;
+        final boolean[] binary;
+        final ByteBuffer[] batch = new ByteBuffer[64];
+
+        Fanout(int recipients, int legacyPercent) {
+            queues = new OutboundQueue[recipients];
+            binary = new boolean[recipients];
+            Random random = new Random(1);
+            for (int i = 0; i < recipients; i++) {
+                queues[i] = new OutboundQueue(1024 * 1024, OutboundQueue.OverflowPolicy.DROP_OLDEST, 0);
+                binary[i] = random.nextInt(100) >= legacyPercent;
+            }
+        }
+    }
+
+    private static final class Users {
+        final List<String> names = new ArrayList<>();
+        final UserIds ids = new UserIds();
+        final Map<String, Boolean> changes = new LinkedHashMap<>();
+
+        Users(int count) {
+            for (int i = 0; i < count; i++) {
+                names.add("user" + i);
+                ids.idOf("user" + i);
+            }
+            for (int i = 0; i < 100; i++) {
+                changes.put("user" + (i * 7 % count), i % 2 == 0);
+            }
+        }
+    }
+
+    /** A session that only counts what it is handed. */
+    private static final class Counter implements FrameDecoder.Listener {
+        long chars;
+
+        public BinaryDecoder onProtocol(int version) {
+            return null;
+        }
+
+        public void onHandshake(String name) {
+            chars += name.length();
+        }
+
+        public void onLogin(String name, String password) {
+            chars += name.length();
+        }
+
+        public void onResume(String name, String token) {
+            chars += name.length();
+        }
+
+        public void onText(String message) {
+            chars += message.length();
+        }
+
+        public void onPrivate(String receiver, String message) {
+            chars += message.length();
+        }
+
+        public void onJoinRoom(String room) {
+            chars += room.length();
+        }
+
+        public void onLeaveRoom(String room) {
+            chars += room.length();
+        }
+
+        public void onRoomMessage(String room, String message) {
+            chars += message.length();
+        }
+
+        public void onSearch(String query) {
+            chars += query.length();
+        }
+
+        public void onFileBegin(int id, String receiver, String fileName, long size) {
+            chars += fileName.length();
+        }
+
+        public void onFileData(int id, ByteBuffer data) {
+            chars += data.remaining();
+        }
+
+        public void onPing() {
+        }
+
+        public void onClose() {
+        }
+    }
+}
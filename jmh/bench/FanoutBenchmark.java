@@ -0,0 +1,47 @@
+package bench;
+
+import java.lang.invoke.*;
+import java.util.concurrent.*;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * One broadcast queued for every recipient and taken off their queues again, without
+ * sockets: the part of a broadcast the sender's thread pays for. broadcast shares one
+ * encoded frame between recipients; encodeEach is the baseline that encodes it for
+ * each of them. Run with -prof gc for the bytes allocated per broadcast.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class FanoutBenchmark {
+    private static final MethodHandle FANOUT = Workload.find("fanout", Object.class, int.class, int.class);
+    private static final MethodHandle BROADCAST = Workload.find("broadcast", void.class, Object.class);
+    private static final MethodHandle ENCODE_EACH = Workload.find("broadcastEncodingEach", void.class, Object.class);
+
+    @Param({"10", "1000", "10000"})
+    int recipients;
+
+    /** Share of recipients on the writeUTF protocol. */
+    @Param({"0", "50"})
+    int legacyPercent;
+
+    Object fanout;
+
+    @Setup
+    public void setUp() throws Throwable {
+        fanout = (Object) FANOUT.invokeExact(recipients, legacyPercent);
+    }
+
+    @Benchmark
+    public void broadcast() throws Throwable {
+        BROADCAST.invokeExact(fanout);
+    }
+
+    @Benchmark
+    public void encodeEach() throws Throwable {
+        ENCODE_EACH.invokeExact(fanout);
+    }
+}
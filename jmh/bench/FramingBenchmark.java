@@ -0,0 +1,62 @@
+package bench;
+
+import java.lang.invoke.*;
+import java.nio.*;
+import java.util.concurrent.*;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Encoding a chat message for each protocol, and decoding 100 chat lines from a client
+ * of each protocol (scores are per line).
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class FramingBenchmark {
+    private static final int COMMANDS = 100;
+    private static final MethodHandle ENCODE_LEGACY = Workload.find("encodeLegacy", ByteBuffer.class, String.class);
+    private static final MethodHandle ENCODE_BINARY = Workload.find("encodeBinary", ByteBuffer.class, String.class);
+    private static final MethodHandle LEGACY_COMMANDS = Workload.find("legacyCommands", ByteBuffer.class, String.class, int.class);
+    private static final MethodHandle BINARY_COMMANDS = Workload.find("binaryCommands", ByteBuffer.class, String.class, int.class);
+    private static final MethodHandle DECODE_LEGACY = Workload.find("decodeLegacy", long.class, ByteBuffer.class);
+    private static final MethodHandle DECODE_BINARY = Workload.find("decodeBinary", long.class, ByteBuffer.class);
+
+    @Param({"16", "256", "4096"})
+    int textLength;
+
+    String text;
+    ByteBuffer legacyCommands;
+    ByteBuffer binaryCommands;
+
+    @Setup
+    public void setUp() throws Throwable {
+        text = "x".repeat(textLength);
+        legacyCommands = (ByteBuffer) LEGACY_COMMANDS.invokeExact(text, COMMANDS);
+        binaryCommands = (ByteBuffer) BINARY_COMMANDS.invokeExact(text, COMMANDS);
+    }
+
+    @Benchmark
+    public ByteBuffer encodeLegacy() throws Throwable {
+        return (ByteBuffer) ENCODE_LEGACY.invokeExact(text);
+    }
+
+    @Benchmark
+    public ByteBuffer encodeBinary() throws Throwable {
+        return (ByteBuffer) ENCODE_BINARY.invokeExact(text);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(COMMANDS)
+    public long decodeLegacy() throws Throwable {
+        return (long) DECODE_LEGACY.invokeExact(legacyCommands);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(COMMANDS)
+    public long decodeBinary() throws Throwable {
+        return (long) DECODE_BINARY.invokeExact(binaryCommands);
+    }
+}
@@ -0,0 +1,48 @@
+package bench;
+
+import java.lang.invoke.*;
+import java.nio.*;
+import java.util.concurrent.*;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Building the user list frames Presence sends: the full list a joining client gets,
+ * in each protocol, and a window of 100 joins and leaves as a binary delta.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class UserListBenchmark {
+    private static final MethodHandle USERS = Workload.find("users", Object.class, int.class);
+    private static final MethodHandle LEGACY_SNAPSHOT = Workload.find("legacySnapshot", Object.class, Object.class);
+    private static final MethodHandle BINARY_SNAPSHOT = Workload.find("binarySnapshot", ByteBuffer.class, Object.class);
+    private static final MethodHandle BINARY_DELTA = Workload.find("binaryDelta", ByteBuffer.class, Object.class);
+
+    @Param({"1000", "20000"})
+    int users;
+
+    Object state;
+
+    @Setup
+    public void setUp() throws Throwable {
+        state = (Object) USERS.invokeExact(users);
+    }
+
+    @Benchmark
+    public Object legacySnapshot() throws Throwable {
+        return (Object) LEGACY_SNAPSHOT.invokeExact(state);
+    }
+
+    @Benchmark
+    public ByteBuffer binarySnapshot() throws Throwable {
+        return (ByteBuffer) BINARY_SNAPSHOT.invokeExact(state);
+    }
+
+    @Benchmark
+    public ByteBuffer binaryDelta() throws Throwable {
+        return (ByteBuffer) BINARY_DELTA.invokeExact(state);
+    }
+}
@@ -0,0 +1,17 @@
+package bench;
+
+import java.lang.invoke.*;
+
+/** Finds methods of the default-package Workloads class; see its comment for why. */
+final class Workload {
+    private Workload() {}
+
+    static MethodHandle find(String name, Class<?> returnType, Class<?>... parameterTypes) {
+        try {
+            Class<?> workloads = Class.forName("Workloads");
+            return MethodHandles.publicLookup().findStatic(workloads, name, MethodType.methodType(returnType, parameterTypes));
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+}
@@ -0,0 +1,97 @@
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.*;
+import java.nio.*;
+import java.util.*;
+import org.junit.jupiter.api.Test;
+
+class BinaryDecoderTest {
+    private static final int MAX_FRAME_BYTES = 1024;
+
+    @Test
+    void rejectsNegativeFrameLength() {
+        IOException e = assertThrows(IOException.class, () -> decode(header(Wire.TEXT, -1)));
+        assertTrue(e.getMessage().startsWith("Negative frame length"), e.getMessage());
+    }
+
+    @Test
+    void rejectsFrameOverTheLimit() {
+        IOException e = assertThrows(IOException.class, () -> decode(header(Wire.TEXT, MAX_FRAME_BYTES + 1)));
+        assertTrue(e.getMessage().contains("over the " + MAX_FRAME_BYTES + " byte limit"), e.getMessage());
+    }
+
+    @Test
+    void acceptsFrameAtTheLimit() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        bytes.writeBytes(header(Wire.TEXT, MAX_FRAME_BYTES));
+        bytes.writeBytes(new byte[MAX_FRAME_BYTES]);
+        assertEquals(List.of("text " + new String(new byte[MAX_FRAME_BYTES])), decode(bytes.toByteArray()).events);
+    }
+
+    @Test
+    void rejectsVarintLongerThanALong() {
+        byte[] frame = new byte[12];
+        frame[0] = Wire.TEXT;
+        Arrays.fill(frame, 1, frame.length, (byte) 0x80);
+        IOException e = assertThrows(IOException.class, () -> decode(frame));
+        assertEquals("Malformed varint", e.getMessage());
+    }
+
+    @Test
+    void rejectsNegativeAndOversizeFileIds() {
+        for (long id : new long[] {-1, Integer.MAX_VALUE + 1L}) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            bytes.writeBytes(header(Wire.FILE_CHUNK, Wire.varintSize(id) + 1));
+            bytes.writeBytes(varint(id));
+            bytes.write(0);
+            IOException e = assertThrows(IOException.class, () -> decode(bytes.toByteArray()));
+            assertTrue(e.getMessage().startsWith("File id out of range"), e.getMessage());
+        }
+    }
+
+    @Test
+    void rejectsNegativeFileSize() {
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        payload.writeBytes(varint(3));
+        payload.write(Wire.TO_ALL);
+        payload.writeBytes(varint(-5));
+        payload.writeBytes(Wire.utf8("a.bin"));
+        IOException e = assertThrows(IOException.class, () -> decode(frame(Wire.FILE_BEGIN, payload.toByteArray())));
+        assertTrue(e.getMessage().startsWith("Negative file size"), e.getMessage());
+    }
+
+    @Test
+    void rejectsNegativeUserId() {
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        payload.writeBytes(varint(-7));
+        payload.writeBytes(Wire.utf8("hi"));
+        IOException e = assertThrows(IOException.class, () -> decode(frame(Wire.PRIVATE, payload.toByteArray())));
+        assertTrue(e.getMessage().startsWith("Id out of range"), e.getMessage());
+    }
+
+    private static RecordingListener decode(byte[] stream) throws IOException {
+        RecordingListener listener = new RecordingListener(Map.of());
+        new BinaryDecoder(listener, id -> id == 7 ? "bob" : null, MAX_FRAME_BYTES).decode(ByteBuffer.wrap(stream));
+        return listener;
+    }
+
+    private static byte[] header(byte op, long length) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        bytes.write(op);
+        bytes.writeBytes(varint(length));
+        return bytes.toByteArray();
+    }
+
+    private static byte[] frame(byte op, byte[] payload) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        bytes.writeBytes(header(op, payload.length));
+        bytes.writeBytes(payload);
+        return bytes.toByteArray();
+    }
+
+    private static byte[] varint(long v) {
+        ByteBuffer buf = ByteBuffer.allocate(Wire.varintSize(v));
+        Wire.putVarint(buf, v);
+        return buf.array();
+    }
+}
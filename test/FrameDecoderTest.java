@@ -0,0 +1,183 @@
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.*;
+import java.nio.*;
+import java.util.*;
+import org.junit.jupiter.api.Test;
+
+class FrameDecoderTest {
+    private static final Map<String, Integer> IDS = Map.of("bob", 7);
+
+    @Test
+    void decodesEveryLegacyCommand() throws IOException {
+        RecordingListener r = decode(legacyStream(), null, List.of());
+        assertEquals(List.of(
+                "login alice secret",
+                "text hello",
+                "private bob hi bob",
+                "join dev",
+                "room dev hi dev",
+                "leave dev",
+                "search from:bob",
+                "file 3 bob a.bin 5",
+                "file -1 null old.bin 4"), r.events);
+        assertArrayEquals(new byte[] {1, 2, 3, 4, 5}, r.files.get(3).toByteArray());
+        assertArrayEquals(new byte[] {9, 8, 7, 6}, r.files.get(FrameDecoder.LEGACY_FILE_ID).toByteArray());
+    }
+
+    @Test
+    void legacyStreamSplitAnywhereDecodesTheSame() throws IOException {
+        byte[] stream = legacyStream();
+        RecordingListener whole = decode(stream, null, List.of());
+        for (int split = 1; split < stream.length; split++) {
+            assertDecodedAlike(whole, decode(stream, null, List.of(split)), "split at " + split);
+        }
+        assertDecodedAlike(whole, decode(stream, null, everyByte(stream)), "one byte at a time");
+    }
+
+    @Test
+    void decodesEveryBinaryFrame() throws IOException {
+        RecordingListener r = decode(binaryStream(), IDS, List.of());
+        assertEquals(List.of(
+                "protocol 2",
+                "login alice secret",
+                "text hello",
+                "private bob hi bob",
+                "join dev",
+                "room dev hi dev",
+                "file 3 bob a.bin 5",
+                "ping"), r.events);
+        assertArrayEquals(new byte[] {1, 2, 3, 4, 5}, r.files.get(3).toByteArray());
+    }
+
+    @Test
+    void binaryStreamSplitAnywhereDecodesTheSame() throws IOException {
+        byte[] stream = binaryStream();
+        RecordingListener whole = decode(stream, IDS, List.of());
+        for (int split = 1; split < stream.length; split++) {
+            assertDecodedAlike(whole, decode(stream, IDS, List.of(split)), "split at " + split);
+        }
+        assertDecodedAlike(whole, decode(stream, IDS, everyByte(stream)), "one byte at a time");
+    }
+
+    @Test
+    void rejectsNegativeChunkLength() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeUTF("alice");
+        out.writeUTF("FILE_CHUNK");
+        out.writeInt(3);
+        out.writeInt(-1);
+        assertThrows(IOException.class, () -> decode(bytes.toByteArray(), null, List.of()));
+    }
+
+    private static void assertDecodedAlike(RecordingListener expected, RecordingListener actual, String message) {
+        assertEquals(expected.events, actual.events, message);
+        assertEquals(expected.files.keySet(), actual.files.keySet(), message);
+        for (Integer id : expected.files.keySet()) {
+            assertArrayEquals(expected.files.get(id).toByteArray(), actual.files.get(id).toByteArray(), message);
+        }
+    }
+
+    /** Feeds stream to a new decoder in pieces that end at the given offsets, reusing one read buffer like the engines do. */
+    private static RecordingListener decode(byte[] stream, Map<String, Integer> ids, List<Integer> splits) throws IOException {
+        RecordingListener listener = new RecordingListener(ids);
+        FrameDecoder decoder = new FrameDecoder(listener);
+        ByteBuffer buffer = ByteBuffer.allocate(stream.length);
+        int from = 0;
+        List<Integer> ends = new ArrayList<>(splits);
+        ends.add(stream.length);
+        for (int to : ends) {
+            buffer.clear();
+            buffer.put(stream, from, to - from).flip();
+            decoder.decode(buffer);
+            assertFalse(buffer.hasRemaining());
+            Arrays.fill(buffer.array(), (byte) 0); // nothing may be read from the buffer after decode returns
+            from = to;
+        }
+        return listener;
+    }
+
+    private static List<Integer> everyByte(byte[] stream) {
+        List<Integer> splits = new ArrayList<>();
+        for (int i = 1; i < stream.length; i++) {
+            splits.add(i);
+        }
+        return splits;
+    }
+
+    private static byte[] legacyStream() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeUTF("AUTH");
+        out.writeUTF("alice");
+        out.writeUTF("secret");
+        out.writeUTF("hello");
+        out.writeUTF("PRIVATE");
+        out.writeUTF("bob");
+        out.writeUTF("hi bob");
+        out.writeUTF("JOIN");
+        out.writeUTF("dev");
+        out.writeUTF("ROOM");
+        out.writeUTF("dev");
+        out.writeUTF("hi dev");
+        out.writeUTF("LEAVE");
+        out.writeUTF("dev");
+        out.writeUTF("SEARCH");
+        out.writeUTF("from:bob");
+        out.writeUTF("FILE_BEGIN");
+        out.writeInt(3);
+        out.writeUTF("bob");
+        out.writeUTF("a.bin");
+        out.writeLong(5);
+        out.writeUTF("FILE_CHUNK");
+        out.writeInt(3);
+        out.writeInt(2);
+        out.write(new byte[] {1, 2});
+        out.writeUTF("FILE_CHUNK");
+        out.writeInt(3);
+        out.writeInt(3);
+        out.write(new byte[] {3, 4, 5});
+        out.writeUTF("File");
+        out.writeUTF("old.bin");
+        out.writeInt(4);
+        out.write(new byte[] {9, 8, 7, 6});
+        return bytes.toByteArray();
+    }
+
+    private static byte[] binaryStream() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeUTF("PROTO");
+        out.writeUTF("2");
+        out.writeUTF("AUTH");
+        out.writeUTF("alice");
+        out.writeUTF("secret");
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        DataOutputStream p = new DataOutputStream(payload);
+        p.write(Wire.utf8("hello"));
+        Wire.writeFrame(out, Wire.TEXT, payload);
+        Wire.writeVarint(p, 7);
+        p.write(Wire.utf8("hi bob"));
+        Wire.writeFrame(out, Wire.PRIVATE, payload);
+        p.write(Wire.utf8("dev"));
+        Wire.writeFrame(out, Wire.JOIN, payload);
+        Wire.writeString(p, "dev");
+        p.write(Wire.utf8("hi dev"));
+        Wire.writeFrame(out, Wire.ROOM, payload);
+        Wire.writeVarint(p, 3);
+        p.writeByte(Wire.TO_USER);
+        Wire.writeVarint(p, 7);
+        Wire.writeVarint(p, 5);
+        p.write(Wire.utf8("a.bin"));
+        Wire.writeFrame(out, Wire.FILE_BEGIN, payload);
+        Wire.writeVarint(p, 3);
+        p.write(new byte[] {1, 2, 3});
+        Wire.writeFrame(out, Wire.FILE_CHUNK, payload);
+        Wire.writeVarint(p, 3);
+        p.write(new byte[] {4, 5});
+        Wire.writeFrame(out, Wire.FILE_CHUNK, payload);
+        Wire.writeFrame(out, Wire.PING, payload);
+        return bytes.toByteArray();
+    }
+}
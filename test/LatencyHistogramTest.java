@@ -0,0 +1,43 @@
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.Test;
+
+class LatencyHistogramTest {
+    @Test
+    void everyBucketHoldsItsUpperBound() {
+        int last = LatencyHistogram.bucket(Long.MAX_VALUE);
+        assertEquals(Long.MAX_VALUE, LatencyHistogram.upperBound(last));
+        for (int b = 0; b <= last; b++) {
+            long upper = LatencyHistogram.upperBound(b);
+            assertEquals(b, LatencyHistogram.bucket(upper), "bucket " + b);
+            if (b > 0) {
+                assertEquals(b, LatencyHistogram.bucket(LatencyHistogram.upperBound(b - 1) + 1), "lower end of bucket " + b);
+            }
+        }
+    }
+
+    @Test
+    void valuesFallInTheirBucketWithinPrecision() {
+        long[] values = {0, 1, 31, 32, 33, 1000, 1023, 1024, 1025, 999_999, 1_000_000_000L, Long.MAX_VALUE - 1};
+        for (long v : values) {
+            int b = LatencyHistogram.bucket(v);
+            long upper = LatencyHistogram.upperBound(b);
+            assertTrue(v <= upper, v + " above its bucket's bound " + upper);
+            assertTrue(b == 0 || v > LatencyHistogram.upperBound(b - 1), v + " below its bucket");
+            assertTrue(upper - v <= v / 16, v + " reported as " + upper);
+        }
+    }
+
+    @Test
+    void percentilesAreCappedByTheMaximum() {
+        LatencyHistogram h = new LatencyHistogram();
+        for (long v = 1; v <= 100; v++) {
+            h.record(v * 1000);
+        }
+        assertEquals(100, h.count());
+        assertEquals(100_000, h.max());
+        long median = h.percentile(0.5);
+        assertTrue(median >= 50_000 && median <= 50_000 * 17 / 16, "median " + median);
+        assertEquals(100_000, h.percentile(1.0));
+    }
+}
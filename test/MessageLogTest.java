@@ -0,0 +1,85 @@
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.util.*;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class MessageLogTest {
+    private static final int SEGMENT_BYTES = 4096;
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void reopenRecoversEveryRecord() throws IOException {
+        try (MessageLog log = open()) {
+            log.append(MessageLog.ROOM, "alice", "one");
+            log.append(MessageLog.privateConversation("alice", "bob"), "bob", "two");
+        }
+        try (MessageLog log = open()) {
+            assertEquals(List.of("one", "two"), texts(log.recentFor("alice", 10)));
+            assertEquals(List.of("one"), texts(log.recentFor("carol", 10)));
+        }
+    }
+
+    @Test
+    void reopenAfterTornWriteDropsTheTornRecordAndAppendsOverIt() throws IOException {
+        try (MessageLog log = open()) {
+            log.append(MessageLog.ROOM, "alice", "one");
+            log.append(MessageLog.ROOM, "alice", "two");
+            log.append(MessageLog.ROOM, "alice", "three");
+        }
+        // the third record's header reached the disk, but not all of its body
+        int third = recordBytes("alice", "one") + recordBytes("alice", "two");
+        zero(third + 12, recordBytes("alice", "three") - 12);
+
+        try (MessageLog log = open()) {
+            assertEquals(List.of("one", "two"), texts(log.recentFor("alice", 10)));
+            log.append(MessageLog.ROOM, "alice", "four");
+        }
+        try (MessageLog log = open()) {
+            assertEquals(List.of("one", "two", "four"), texts(log.recentFor("alice", 10)));
+        }
+    }
+
+    @Test
+    void reopenStopsAtARecordWithABadChecksum() throws IOException {
+        try (MessageLog log = open()) {
+            log.append(MessageLog.ROOM, "alice", "one");
+            log.append(MessageLog.ROOM, "alice", "two");
+        }
+        zero(recordBytes("alice", "one") + 4, 4);
+        try (MessageLog log = open()) {
+            assertEquals(List.of("one"), texts(log.recentFor("alice", 10)));
+        }
+    }
+
+    private MessageLog open() throws IOException {
+        return new MessageLog(dir, SEGMENT_BYTES, 1000);
+    }
+
+    /** A room record's size on disk; see the layout in MessageLog. */
+    private static int recordBytes(String sender, String text) {
+        return 4 + 4 + 8 + 2 + MessageLog.ROOM.length() + 2 + sender.getBytes(StandardCharsets.UTF_8).length
+                + 4 + text.getBytes(StandardCharsets.UTF_8).length;
+    }
+
+    private void zero(int offset, int length) throws IOException {
+        try (FileChannel channel = FileChannel.open(dir.resolve("00000000.log"), StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.allocate(length), offset);
+        }
+    }
+
+    private static List<String> texts(List<MessageLog.Entry> entries) {
+        List<String> texts = new ArrayList<>();
+        for (MessageLog.Entry e : entries) {
+            texts.add(e.text);
+        }
+        return texts;
+    }
+}
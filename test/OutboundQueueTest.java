@@ -0,0 +1,91 @@
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.nio.*;
+import java.util.*;
+import org.junit.jupiter.api.Test;
+
+class OutboundQueueTest {
+    @Test
+    void dropOldestMakesRoomFromTheHead() {
+        OutboundQueue q = new OutboundQueue(30, OutboundQueue.OverflowPolicy.DROP_OLDEST, 0);
+        for (int i = 0; i < 3; i++) {
+            assertTrue(q.offer(frame(i, 10)));
+        }
+        assertTrue(q.offer(frame(3, 15)));
+        assertEquals(2, q.droppedMessages());
+        assertEquals(25, q.queuedBytes());
+        assertEquals(List.of(2, 3), drain(q));
+    }
+
+    @Test
+    void dropOldestKeepsControlFrames() {
+        OutboundQueue q = new OutboundQueue(30, OutboundQueue.OverflowPolicy.DROP_OLDEST, 0);
+        assertTrue(q.offerControl(frame(0, 10)));
+        assertTrue(q.offer(frame(1, 10)));
+        assertTrue(q.offerControl(frame(2, 10)));
+        assertTrue(q.offer(frame(3, 10)));
+        assertEquals(1, q.droppedMessages());
+        assertEquals(List.of(0, 2, 3), drain(q));
+    }
+
+    @Test
+    void dropOldestRefusesWhenOnlyControlFramesAreLeft() {
+        OutboundQueue q = new OutboundQueue(20, OutboundQueue.OverflowPolicy.DROP_OLDEST, 0);
+        assertTrue(q.offerControl(frame(0, 10)));
+        assertTrue(q.offerControl(frame(1, 10)));
+        assertFalse(q.offer(frame(2, 10)));
+        assertEquals(1, q.droppedMessages());
+        assertEquals(List.of(0, 1), drain(q));
+    }
+
+    @Test
+    void disconnectRefusesWithoutDropping() {
+        OutboundQueue q = new OutboundQueue(20, OutboundQueue.OverflowPolicy.DISCONNECT, 0);
+        assertTrue(q.offer(frame(0, 10)));
+        assertTrue(q.offer(frame(1, 10)));
+        assertFalse(q.offer(frame(2, 1)));
+        assertFalse(q.offerControl(frame(3, 1)));
+        assertEquals(2, q.droppedMessages());
+        assertEquals(List.of(0, 1), drain(q));
+        assertTrue(q.offer(frame(4, 20)));
+    }
+
+    @Test
+    void oversizeFrameFitsAnEmptyQueue() {
+        for (OutboundQueue.OverflowPolicy policy : OutboundQueue.OverflowPolicy.values()) {
+            OutboundQueue q = new OutboundQueue(10, policy, 0);
+            assertTrue(q.offer(frame(0, 50)), policy.name());
+            assertEquals(0, q.droppedMessages(), policy.name());
+        }
+    }
+
+    @Test
+    void closedQueueRefusesAndEmpties() {
+        OutboundQueue q = new OutboundQueue(100, OutboundQueue.OverflowPolicy.DROP_OLDEST, 0);
+        assertTrue(q.offer(frame(0, 10)));
+        q.close();
+        assertTrue(q.isEmpty());
+        assertEquals(0, q.queuedBytes());
+        assertFalse(q.offer(frame(1, 10)));
+        assertFalse(q.offerControl(frame(2, 10)));
+    }
+
+    /** A frame of size bytes whose first byte tells it apart. */
+    private static ByteBuffer frame(int tag, int size) {
+        ByteBuffer frame = ByteBuffer.allocate(size);
+        frame.put(0, (byte) tag);
+        return frame;
+    }
+
+    private static List<Integer> drain(OutboundQueue q) {
+        List<Integer> tags = new ArrayList<>();
+        ByteBuffer[] batch = new ByteBuffer[8];
+        int n;
+        while ((n = q.pollBatch(batch, Long.MAX_VALUE)) > 0) {
+            for (int i = 0; i < n; i++) {
+                tags.add((int) batch[i].get(0));
+            }
+        }
+        return tags;
+    }
+}
@@ -0,0 +1,54 @@
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.Test;
+
+class RateLimiterTest {
+    private static final long TOKEN_NANOS = 100_000_000; // 10 per second
+
+    @Test
+    void burstUpToCapacityThenWaitsForRefill() {
+        RateLimiter.Bucket bucket = new RateLimiter.Bucket(10, 5);
+        long now = System.nanoTime();
+        for (int i = 0; i < 5; i++) {
+            assertEquals(0, bucket.tryTake(1, now), "token " + i);
+        }
+        assertEquals(TOKEN_NANOS, bucket.tryTake(1, now));
+        assertEquals(3 * TOKEN_NANOS, bucket.tryTake(3, now));
+
+        assertEquals(TOKEN_NANOS / 2, bucket.tryTake(1, now + TOKEN_NANOS / 2));
+        assertEquals(0, bucket.tryTake(1, now + TOKEN_NANOS));
+        assertEquals(TOKEN_NANOS, bucket.tryTake(1, now + TOKEN_NANOS));
+    }
+
+    @Test
+    void refillsToCapacityAndNoFurther() {
+        RateLimiter.Bucket bucket = new RateLimiter.Bucket(10, 5);
+        long now = System.nanoTime();
+        assertEquals(0, bucket.tryTake(5, now));
+        assertFalse(bucket.isFull(now));
+
+        long later = now + 60 * 1_000_000_000L;
+        assertTrue(bucket.isFull(later));
+        assertEquals(0, bucket.tryTake(5, later));
+        assertEquals(TOKEN_NANOS, bucket.tryTake(1, later));
+    }
+
+    @Test
+    void requestLargerThanTheBucketCostsAFullBucket() {
+        RateLimiter.Bucket bucket = new RateLimiter.Bucket(10, 5);
+        long now = System.nanoTime();
+        assertEquals(0, bucket.tryTake(1000, now));
+        assertEquals(TOKEN_NANOS, bucket.tryTake(1, now));
+    }
+
+    @Test
+    void takeRunsIntoDebtAndGiveBackRepaysIt() {
+        RateLimiter.Bucket bucket = new RateLimiter.Bucket(10, 5);
+        long now = System.nanoTime();
+        assertEquals(0, bucket.take(5, now));
+        assertEquals(2 * TOKEN_NANOS, bucket.take(2, now));
+        bucket.giveBack(2);
+        assertEquals(0, bucket.take(0, now));
+        assertEquals(TOKEN_NANOS, bucket.tryTake(1, now));
+    }
+}
@@ -0,0 +1,84 @@
+import java.io.*;
+import java.nio.*;
+import java.util.*;
+
+/**
+ * Notes what a decoder reports, one line per event. File data is gathered per transfer
+ * id instead, since how it is split depends on how the bytes arrived.
+ */
+final class RecordingListener implements FrameDecoder.Listener {
+    final List<String> events = new ArrayList<>();
+    final Map<Integer, ByteArrayOutputStream> files = new TreeMap<>();
+    private final Map<String, Integer> ids;
+
+    /** ids are the users a binary client may refer to; null to stay on the writeUTF protocol. */
+    RecordingListener(Map<String, Integer> ids) {
+        this.ids = ids;
+    }
+
+    public BinaryDecoder onProtocol(int version) {
+        events.add("protocol " + version);
+        if (ids == null) return null;
+        return new BinaryDecoder(this, id -> {
+            for (Map.Entry<String, Integer> e : ids.entrySet()) {
+                if (e.getValue() == id) return e.getKey();
+            }
+            return null;
+        }, 1024);
+    }
+
+    public void onHandshake(String name) {
+        events.add("handshake " + name);
+    }
+
+    public void onLogin(String name, String password) {
+        events.add("login " + name + " " + password);
+    }
+
+    public void onResume(String name, String token) {
+        events.add("resume " + name + " " + token);
+    }
+
+    public void onText(String message) {
+        events.add("text " + message);
+    }
+
+    public void onPrivate(String receiver, String message) {
+        events.add("private " + receiver + " " + message);
+    }
+
+    public void onJoinRoom(String room) {
+        events.add("join " + room);
+    }
+
+    public void onLeaveRoom(String room) {
+        events.add("leave " + room);
+    }
+
+    public void onRoomMessage(String room, String message) {
+        events.add("room " + room + " " + message);
+    }
+
+    public void onSearch(String query) {
+        events.add("search " + query);
+    }
+
+    public void onFileBegin(int id, String receiver, String fileName, long size) {
+        events.add("file " + id + " " + receiver + " " + fileName + " " + size);
+        files.put(id, new ByteArrayOutputStream());
+    }
+
+    public void onFileData(int id, ByteBuffer data) {
+        byte[] bytes = new byte[data.remaining()];
+        data.get(bytes);
+        files.get(id).writeBytes(bytes);
+    }
+
+    public void onPing() {
+        events.add("ping");
+    }
+
+    public void onClose() {
+        events.add("close");
+    }
+}